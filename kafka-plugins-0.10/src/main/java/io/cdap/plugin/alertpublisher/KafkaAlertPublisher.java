@@ -30,9 +30,10 @@ import io.cdap.cdap.etl.api.AlertPublisherContext;
 import io.cdap.cdap.etl.api.FailureCollector;
 import io.cdap.cdap.etl.api.PipelineConfigurer;
 import io.cdap.plugin.common.KafkaHelpers;
+import io.cdap.plugin.common.KafkaProducerPool;
 import io.cdap.plugin.common.KeyValueListParser;
 import kafka.common.Topic;
-import org.apache.kafka.clients.producer.KafkaProducer;
+import org.apache.kafka.clients.producer.Producer;
 import org.apache.kafka.clients.producer.ProducerConfig;
 import org.apache.kafka.clients.producer.ProducerRecord;
 import org.apache.kafka.common.errors.InvalidTopicException;
@@ -55,7 +56,7 @@ public class KafkaAlertPublisher extends AlertPublisher {
   private static final Gson GSON = new Gson();
   private final Config config;
 
-  private KafkaProducer<String, String> producer;
+  private Producer<String, String> producer;
 
   public KafkaAlertPublisher(Config config) {
     this.config = config;
@@ -84,7 +85,7 @@ public class KafkaAlertPublisher extends AlertPublisher {
       props.put(producerProperty.getKey(), producerProperty.getValue());
     }
 
-    this.producer = new KafkaProducer<>(props);
+    this.producer = KafkaProducerPool.acquire(props);
   }
 
   @Override
@@ -106,7 +107,11 @@ public class KafkaAlertPublisher extends AlertPublisher {
   @Override
   public void destroy() {
     super.destroy();
-    producer.close();
+    if (producer != null) {
+      // The producer is shared, hence only the alerts published are flushed before giving it back
+      producer.flush();
+      KafkaProducerPool.release(producer);
+    }
   }
 
   /**
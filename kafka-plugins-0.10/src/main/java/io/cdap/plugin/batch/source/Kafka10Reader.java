@@ -16,8 +16,8 @@
 
 package io.cdap.plugin.batch.source;
 
-import com.google.common.collect.Lists;
 import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerConfig;
 import org.apache.kafka.clients.consumer.ConsumerRecord;
 import org.apache.kafka.clients.consumer.ConsumerRecords;
 import org.apache.kafka.clients.consumer.KafkaConsumer;
@@ -26,100 +26,205 @@ import org.apache.kafka.common.serialization.ByteArrayDeserializer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Properties;
 import java.util.concurrent.TimeUnit;
 
 
 /**
- * A class which reads from the fetch results from kafka.
+ * A class which reads from the fetch results from kafka. All partitions of the given requests are assigned to a single
+ * consumer and positioned once when the reader is created; subsequent polls continue from the consumer position so that
+ * records already prefetched by the consumer are not discarded.
  */
 final class Kafka10Reader implements KafkaReader {
   private static final Logger LOG = LoggerFactory.getLogger(Kafka10Reader.class);
   private static final byte[] EMPTY_BYTE_ARRAY = new byte[0];
+  private static final long POLL_TIMEOUT_MS = TimeUnit.SECONDS.toMillis(30);
+
+  // Bounds for the fetch sizing derived from the split, used when not set explicitly in the kafka properties
+  private static final int MAX_POLL_RECORDS = 10000;
+  private static final long MIN_PARTITION_FETCH_BYTES = 1024 * 1024;
+  private static final long MAX_PARTITION_FETCH_BYTES = 16 * 1024 * 1024;
+  private static final long MAX_FETCH_MIN_BYTES = 64 * 1024;
 
-  // index of context
-  private final KafkaRequest kafkaRequest;
   private final Consumer<byte[], byte[]> consumer;
+  private final Map<TopicPartition, PartitionRange> ranges;
 
-  private long currentOffset;
-  private long lastOffset;
+  private int pendingPartitions;
+  private ConsumerRecords<byte[], byte[]> consumerRecords;
+  private Iterator<TopicPartition> partitionIter;
+  private PartitionRange currentRange;
   private Iterator<ConsumerRecord<byte[], byte[]>> messageIter;
-
+  private ConsumerRecord<byte[], byte[]> nextRecord;
 
   /**
    * Construct a reader based on the given {@link KafkaRequest}.
    */
   Kafka10Reader(KafkaRequest request) {
-    kafkaRequest = request;
-    currentOffset = request.getStartOffset();
-    lastOffset = request.getEndOffset();
+    this(Collections.singletonList(request));
+  }
 
-    // read data from queue
-    Properties properties = new Properties();
-    properties.putAll(request.getConf());
-    consumer = new KafkaConsumer<>(properties, new ByteArrayDeserializer(), new ByteArrayDeserializer());
+  /**
+   * Construct a reader that reads all the given {@link KafkaRequest}s with one consumer. Each request must be for a
+   * different partition.
+   */
+  Kafka10Reader(List<KafkaRequest> requests) {
+    this(requests, createConsumer(requests));
+  }
+
+  /**
+   * Construct a reader that reads all the given {@link KafkaRequest}s with the given consumer, which is closed with
+   * the reader. Each request must be for a different partition.
+   */
+  Kafka10Reader(List<KafkaRequest> requests, Consumer<byte[], byte[]> consumer) {
+    this.consumer = consumer;
+    ranges = new HashMap<>();
+    for (KafkaRequest request : requests) {
+      if (request.getStartOffset() < request.getEndOffset()) {
+        TopicPartition topicPartition = new TopicPartition(request.getTopic(), request.getPartition());
+        ranges.put(topicPartition, new PartitionRange(topicPartition, request.getStartOffset(),
+                                                      request.getEndOffset()));
+      }
+    }
+    pendingPartitions = ranges.size();
+
+    if (!ranges.isEmpty()) {
+      consumer.assign(ranges.keySet());
+      for (PartitionRange range : ranges.values()) {
+        consumer.seek(range.topicPartition, range.currentOffset);
+      }
+    }
   }
 
   @Override
   public boolean hasNext() {
-    if (currentOffset >= lastOffset) {
-      return false;
+    while (nextRecord == null) {
+      if (messageIter != null && messageIter.hasNext()) {
+        ConsumerRecord<byte[], byte[]> consumerRecord = messageIter.next();
+        // The consumer can return records past the end offset, which belong to the next split of the same partition
+        if (consumerRecord.offset() >= currentRange.endOffset) {
+          finish(currentRange);
+          messageIter = null;
+        } else {
+          nextRecord = consumerRecord;
+        }
+      } else if (partitionIter != null && partitionIter.hasNext()) {
+        currentRange = ranges.get(partitionIter.next());
+        messageIter = currentRange == null || currentRange.isDone()
+          ? null : consumerRecords.records(currentRange.topicPartition).iterator();
+      } else if (!fetch()) {
+        return false;
+      }
     }
-    if (messageIter != null && messageIter.hasNext()) {
-      return true;
-    }
-    return fetch();
+    return true;
   }
 
   /**
-   * Fetches the next Kafka message. The message key will be set into the given {@link KafkaKey} object, and the message
-   * payload will be returned.
+   * Fetches the next Kafka message. The message key and payload are set into the given {@link KafkaKey} and
+   * {@link KafkaMessage} objects without copying.
    */
   @Override
-  public KafkaMessage getNext(KafkaKey kafkaKey) {
+  public void getNext(KafkaKey kafkaKey, KafkaMessage kafkaMessage) {
     if (!hasNext()) {
       throw new NoSuchElementException("No message is available");
     }
 
-    ConsumerRecord<byte[], byte[]> consumerRecord = messageIter.next();
+    ConsumerRecord<byte[], byte[]> consumerRecord = nextRecord;
+    nextRecord = null;
 
     byte[] keyBytes = consumerRecord.key();
     byte[] value = consumerRecord.value();
 
-    ByteBuffer key = keyBytes == null ? ByteBuffer.wrap(EMPTY_BYTE_ARRAY) :  ByteBuffer.wrap(keyBytes);
-    ByteBuffer payload = value == null ? ByteBuffer.wrap(EMPTY_BYTE_ARRAY) : ByteBuffer.wrap(value);
-
-    kafkaKey.set(currentOffset, consumerRecord.offset() + 1,
+    kafkaKey.set(consumerRecord.topic(), consumerRecord.partition(), currentRange.currentOffset,
+                 consumerRecord.offset() + 1,
                  consumerRecord.serializedKeySize() + consumerRecord.serializedValueSize(), consumerRecord.checksum());
-    currentOffset = consumerRecord.offset() + 1; // increase offset
-    return new KafkaMessage(payload, key);
+    kafkaMessage.set(value == null ? EMPTY_BYTE_ARRAY : value, keyBytes == null ? EMPTY_BYTE_ARRAY : keyBytes);
+    currentRange.currentOffset = consumerRecord.offset() + 1; // increase offset
+    if (currentRange.isDone()) {
+      finish(currentRange);
+    }
   }
 
   /**
-   * Fetch messages from Kafka.
+   * Fetch messages from Kafka. The consumer keeps its position between calls, hence no seek is needed.
    *
    * @return {@code true} if there is some messages available, {@code false} otherwise
    */
   private boolean fetch() {
-    if (currentOffset >= lastOffset) {
+    if (pendingPartitions <= 0) {
       return false;
     }
 
-    TopicPartition topicPartition = new TopicPartition(kafkaRequest.getTopic(), kafkaRequest.getPartition());
-    this.consumer.assign(Lists.newArrayList(topicPartition));
-    this.consumer.seek(topicPartition, currentOffset);
-    ConsumerRecords<byte[], byte[]> consumerRecords = consumer.poll(TimeUnit.SECONDS.toMillis(30));
-    messageIter = consumerRecords.iterator();
-    if (!messageIter.hasNext()) {
-      messageIter = null;
+    consumerRecords = consumer.poll(POLL_TIMEOUT_MS);
+    if (consumerRecords.isEmpty()) {
+      for (PartitionRange range : ranges.values()) {
+        if (!range.isDone()) {
+          LOG.warn("No message received from topic {} and partition {} within {} ms at offset {}, " +
+                     "stopping before the end offset {}", range.topicPartition.topic(),
+                   range.topicPartition.partition(), POLL_TIMEOUT_MS, range.currentOffset, range.endOffset);
+        }
+      }
+      partitionIter = null;
       return false;
     }
+    partitionIter = consumerRecords.partitions().iterator();
     return true;
   }
 
+  /**
+   * Marks the given partition as completely read and stops fetching from it.
+   */
+  private void finish(PartitionRange range) {
+    if (range.finished) {
+      return;
+    }
+    range.currentOffset = Math.max(range.currentOffset, range.endOffset);
+    range.finished = true;
+    pendingPartitions--;
+    if (pendingPartitions > 0) {
+      consumer.pause(Collections.singletonList(range.topicPartition));
+    }
+  }
+
+  /**
+   * Creates the consumer to read the given requests with, from the kafka properties of the first request.
+   */
+  private static Consumer<byte[], byte[]> createConsumer(List<KafkaRequest> requests) {
+    Properties properties = new Properties();
+    properties.putAll(requests.get(0).getConf());
+    setFetchSizing(properties, requests);
+    return new KafkaConsumer<>(properties, new ByteArrayDeserializer(), new ByteArrayDeserializer());
+  }
+
+  /**
+   * Sizes the consumer fetches based on the offset ranges and the estimated message size of the requests, so that a
+   * single poll can return a large chunk of the split. Values provided in the kafka properties always take precedence.
+   */
+  private static void setFetchSizing(Properties properties, List<KafkaRequest> requests) {
+    long totalRemaining = 0L;
+    long totalBytes = 0L;
+    long partitionFetchBytes = MIN_PARTITION_FETCH_BYTES;
+    for (KafkaRequest request : requests) {
+      long remaining = Math.max(0L, request.getEndOffset() - request.getStartOffset());
+      long averageMessageSize = Math.max(1L, request.getAverageMessageSize());
+      totalRemaining += remaining;
+      totalBytes += remaining * averageMessageSize;
+      partitionFetchBytes = Math.max(partitionFetchBytes, Math.min(remaining, MAX_POLL_RECORDS) * averageMessageSize);
+    }
+    int maxPollRecords = (int) Math.max(1L, Math.min(totalRemaining, MAX_POLL_RECORDS));
+    partitionFetchBytes = Math.min(MAX_PARTITION_FETCH_BYTES, partitionFetchBytes);
+    long fetchMinBytes = Math.max(1L, Math.min(MAX_FETCH_MIN_BYTES, totalBytes));
+
+    properties.putIfAbsent(ConsumerConfig.MAX_POLL_RECORDS_CONFIG, String.valueOf(maxPollRecords));
+    properties.putIfAbsent(ConsumerConfig.MAX_PARTITION_FETCH_BYTES_CONFIG, String.valueOf(partitionFetchBytes));
+    properties.putIfAbsent(ConsumerConfig.FETCH_MIN_BYTES_CONFIG, String.valueOf(fetchMinBytes));
+  }
+
   /**
    * Closes this reader.
    */
@@ -129,4 +234,24 @@ final class Kafka10Reader implements KafkaReader {
       consumer.close();
     }
   }
+
+  /**
+   * The offset range to read from a partition, together with the next offset to read.
+   */
+  private static final class PartitionRange {
+    private final TopicPartition topicPartition;
+    private final long endOffset;
+    private long currentOffset;
+    private boolean finished;
+
+    PartitionRange(TopicPartition topicPartition, long startOffset, long endOffset) {
+      this.topicPartition = topicPartition;
+      this.currentOffset = startOffset;
+      this.endOffset = endOffset;
+    }
+
+    boolean isDone() {
+      return finished || currentOffset >= endOffset;
+    }
+  }
 }
@@ -22,12 +22,9 @@ import io.cdap.cdap.api.annotation.Macro;
 import io.cdap.cdap.api.annotation.Name;
 import io.cdap.cdap.api.annotation.Plugin;
 import io.cdap.cdap.api.data.batch.Input;
-import io.cdap.cdap.api.data.format.FormatSpecification;
-import io.cdap.cdap.api.data.format.RecordFormat;
 import io.cdap.cdap.api.data.format.StructuredRecord;
 import io.cdap.cdap.api.data.schema.Schema;
 import io.cdap.cdap.api.dataset.lib.KeyValue;
-import io.cdap.cdap.common.io.ByteBuffers;
 import io.cdap.cdap.etl.api.Emitter;
 import io.cdap.cdap.etl.api.FailureCollector;
 import io.cdap.cdap.etl.api.PipelineConfigurer;
@@ -35,9 +32,9 @@ import io.cdap.cdap.etl.api.StageConfigurer;
 import io.cdap.cdap.etl.api.batch.BatchRuntimeContext;
 import io.cdap.cdap.etl.api.batch.BatchSource;
 import io.cdap.cdap.etl.api.batch.BatchSourceContext;
-import io.cdap.cdap.format.RecordFormats;
 import io.cdap.plugin.common.ConfigUtil;
 import io.cdap.plugin.common.KafkaHelpers;
+import io.cdap.plugin.common.KafkaRecordDecoder;
 import io.cdap.plugin.common.KeyValueListParser;
 import io.cdap.plugin.common.LineageRecorder;
 import io.cdap.plugin.common.SourceInputFormatProvider;
@@ -53,11 +50,15 @@ import org.apache.kafka.clients.consumer.ConsumerConfig;
 
 import java.io.IOException;
 import java.net.URI;
-import java.nio.ByteBuffer;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 import java.util.stream.Collectors;
 import javax.annotation.Nullable;
 
@@ -73,8 +74,12 @@ public class KafkaBatchSource extends BatchSource<KafkaKey, KafkaMessage, Struct
   private final Kafka10BatchConfig config;
   private List<KafkaRequest> kafkaRequests;
   private Schema schema;
-  private RecordFormat<ByteBuffer, StructuredRecord> recordFormat;
+  private KafkaRecordDecoder decoder;
   private String messageField;
+  private String keyField;
+  private String partitionField;
+  private String offsetField;
+  private String topicField;
   private FileContext fileContext;
   private Path offsetsFile;
 
@@ -82,6 +87,16 @@ public class KafkaBatchSource extends BatchSource<KafkaKey, KafkaMessage, Struct
    * Config properties for the plugin.
    */
   public static class Kafka10BatchConfig extends KafkaBatchConfig {
+    public static final String START_TIME = "startTime";
+    public static final String END_TIME = "endTime";
+    public static final String TOPIC_PATTERN = "topicPattern";
+
+    @Description("Regular expression of the Kafka topics to read from. All matching topics are read by the same " +
+      "run, in addition to the topics given in the topic property, which also accepts a comma separated list of " +
+      "topics.")
+    @Macro
+    @Nullable
+    private String topicPattern;
 
     @Description("Additional kafka consumer properties to set.")
     @Macro
@@ -98,6 +113,21 @@ public class KafkaBatchSource extends BatchSource<KafkaKey, KafkaMessage, Struct
     @Nullable
     private String keytabLocation;
 
+    @Description("Only read messages with a timestamp at or after this time. It can be given as milliseconds since " +
+      "epoch or as an ISO-8601 date time with offset, such as 2022-01-01T00:00:00Z. When set, it takes precedence " +
+      "over the initial partition offsets and the offsets saved in the offset directory. Requires Kafka message " +
+      "format 0.10 or later.")
+    @Macro
+    @Nullable
+    private String startTime;
+
+    @Description("Only read messages with a timestamp before this time. It can be given as milliseconds since " +
+      "epoch or as an ISO-8601 date time with offset, such as 2022-01-02T00:00:00Z. Requires Kafka message " +
+      "format 0.10 or later.")
+    @Macro
+    @Nullable
+    private String endTime;
+
     @Name(ConfigUtil.NAME_USE_CONNECTION)
     @Nullable
     @Description("Whether to use an existing connection.")
@@ -131,6 +161,28 @@ public class KafkaBatchSource extends BatchSource<KafkaKey, KafkaMessage, Struct
       return keytabLocation;
     }
 
+    /**
+     * Returns the pattern of the topics to read from, or {@code null} if it is not set.
+     */
+    @Nullable
+    public Pattern getTopicPattern() {
+      return Strings.isNullOrEmpty(topicPattern) ? null : Pattern.compile(topicPattern);
+    }
+
+    /**
+     * Returns the start time in milliseconds, or -1 if it is not set.
+     */
+    public long getStartTime() {
+      return Strings.isNullOrEmpty(startTime) ? -1 : parseTime(startTime);
+    }
+
+    /**
+     * Returns the end time in milliseconds, or -1 if it is not set.
+     */
+    public long getEndTime() {
+      return Strings.isNullOrEmpty(endTime) ? -1 : parseTime(endTime);
+    }
+
     public Map<String, String> getKafkaProperties() {
       KeyValueListParser kvParser = new KeyValueListParser("\\s*,\\s*", ":");
       Map<String, String> conf = new HashMap<>();
@@ -149,6 +201,62 @@ public class KafkaBatchSource extends BatchSource<KafkaKey, KafkaMessage, Struct
       if (connection != null && connection.getKafkaBrokers() != null) {
         parseBrokerMap(connection.getKafkaBrokers(), collector);
       }
+
+      if (!containsMacro(TOPIC) && !containsMacro(TOPIC_PATTERN)
+        && getTopics().isEmpty() && Strings.isNullOrEmpty(topicPattern)) {
+        collector.addFailure("A topic or a topic pattern must be given.", null)
+          .withConfigProperty(TOPIC).withConfigProperty(TOPIC_PATTERN);
+      }
+      if (!Strings.isNullOrEmpty(topicPattern)) {
+        try {
+          Pattern.compile(topicPattern);
+        } catch (PatternSyntaxException e) {
+          collector.addFailure(String.format("Invalid topic pattern '%s': %s", topicPattern, e.getDescription()),
+                               null)
+            .withConfigProperty(TOPIC_PATTERN);
+        }
+      }
+
+      long start = validateTime(startTime, START_TIME, collector);
+      long end = validateTime(endTime, END_TIME, collector);
+      if (start >= 0 && end >= 0 && start >= end) {
+        collector.addFailure("Start time must be before the end time.", null)
+          .withConfigProperty(START_TIME).withConfigProperty(END_TIME);
+      }
+    }
+
+    /**
+     * Validates the given time, returning it in milliseconds, or -1 if it is not set or invalid.
+     */
+    private static long validateTime(@Nullable String time, String property, FailureCollector collector) {
+      if (Strings.isNullOrEmpty(time)) {
+        return -1;
+      }
+      try {
+        long millis = parseTime(time);
+        if (millis < 0) {
+          collector.addFailure(String.format("Invalid time '%s'.", time), "Time must not be before epoch.")
+            .withConfigProperty(property);
+          return -1;
+        }
+        return millis;
+      } catch (DateTimeParseException e) {
+        collector.addFailure(String.format("Invalid time '%s'.", time),
+                             "Time must be milliseconds since epoch or an ISO-8601 date time with offset.")
+          .withConfigProperty(property);
+        return -1;
+      }
+    }
+
+    /**
+     * Parses the given time given as milliseconds since epoch or as an ISO-8601 date time with offset.
+     */
+    private static long parseTime(String time) {
+      try {
+        return Long.parseLong(time.trim());
+      } catch (NumberFormatException e) {
+        return OffsetDateTime.parse(time.trim()).toInstant().toEpochMilli();
+      }
     }
   }
 
@@ -190,6 +298,8 @@ public class KafkaBatchSource extends BatchSource<KafkaKey, KafkaMessage, Struct
       // Load the offset from the offset file
       partitionOffsets = KafkaPartitionOffsets.load(fileContext, offsetsFile);
     }
+    // Offsets without a topic only apply if a single topic is read, as a pattern can match any number of topics
+    partitionOffsets.setTopics(config.getTopicPattern() == null ? config.getTopics() : Collections.emptyList());
 
     Map<String, String> kafkaConf = new HashMap<>();
     kafkaConf.put(ConsumerConfig.BOOTSTRAP_SERVERS_CONFIG, config.getBrokers());
@@ -197,10 +307,18 @@ public class KafkaBatchSource extends BatchSource<KafkaKey, KafkaMessage, Struct
     kafkaConf.put(ConsumerConfig.ENABLE_AUTO_COMMIT_CONFIG, "false");
     KafkaHelpers.setupKerberosLogin(kafkaConf, config.getPrincipal(), config.getKeytabLocation());
     kafkaConf.putAll(config.getKafkaProperties());
-    kafkaRequests = KafkaInputFormat.saveKafkaRequests(conf, config.getTopic(), kafkaConf,
+    kafkaRequests = KafkaInputFormat.saveKafkaRequests(conf, config.getTopics(), config.getTopicPattern(), kafkaConf,
                                                        partitions,
                                                        config.getMaxNumberRecords(),
+                                                       config.getMaxPartitionBytes(),
+                                                       config.getMaxSplitRecords(),
+                                                       config.getMaxSplitBytes(),
+                                                       config.getStartTime(),
+                                                       config.getEndTime(),
                                                        partitionOffsets);
+    KafkaSplits.setCombineSplits(conf, config.isCombineSplits(), config.getMaxSplitRecords(),
+                                 config.getMaxSplitBytes());
+    KafkaRecordReader.setPrefetchBytes(conf, config.getPrefetchBytes());
     LineageRecorder lineageRecorder = new LineageRecorder(context, config.referenceName);
 
     if (schema != null) {
@@ -220,8 +338,17 @@ public class KafkaBatchSource extends BatchSource<KafkaKey, KafkaMessage, Struct
       return;
     }
     if (succeeded && kafkaRequests != null && fileContext != null && offsetsFile != null) {
-      KafkaPartitionOffsets partitionOffsets = new KafkaPartitionOffsets(
-        kafkaRequests.stream().collect(Collectors.toMap(KafkaRequest::getPartition, KafkaRequest::getEndOffset)));
+      // A partition can be read by multiple requests, in which case the largest end offset is the one to save
+      Map<String, Map<Integer, Long>> topicOffsets = kafkaRequests.stream().collect(
+        Collectors.groupingBy(KafkaRequest::getTopic,
+                              Collectors.toMap(KafkaRequest::getPartition, KafkaRequest::getEndOffset, Math::max)));
+      // The offsets of a single topic are also saved without the topic, so that they can be read by earlier versions.
+      // Their topic is recorded, so that they are not applied to other topics if more topics are read later.
+      Map.Entry<String, Map<Integer, Long>> single = topicOffsets.size() == 1
+        ? topicOffsets.entrySet().iterator().next() : null;
+      KafkaPartitionOffsets partitionOffsets = single == null
+        ? new KafkaPartitionOffsets(Collections.emptyMap(), topicOffsets)
+        : new KafkaPartitionOffsets(single.getValue(), single.getKey(), topicOffsets);
 
       try {
         KafkaPartitionOffsets.save(fileContext, offsetsFile, partitionOffsets);
@@ -235,6 +362,10 @@ public class KafkaBatchSource extends BatchSource<KafkaKey, KafkaMessage, Struct
   public void initialize(BatchRuntimeContext context) throws Exception {
     super.initialize(context);
 
+    keyField = config.getKeyField();
+    partitionField = config.getPartitionField();
+    offsetField = config.getOffsetField();
+    topicField = config.getTopicField();
     schema = config.getSchema(context.getFailureCollector());
     Schema messageSchema = config.getMessageSchema(context.getFailureCollector());
     if (schema == null || messageSchema == null) {
@@ -242,38 +373,43 @@ public class KafkaBatchSource extends BatchSource<KafkaKey, KafkaMessage, Struct
     }
     for (Schema.Field field : schema.getFields()) {
       String name = field.getName();
-      if (!name.equals(config.getKeyField()) && !name.equals(config.getPartitionField()) &&
-        !name.equals(config.getOffsetField())) {
+      if (!name.equals(keyField) && !name.equals(partitionField) && !name.equals(offsetField)
+        && !name.equals(topicField)) {
         messageField = name;
         break;
       }
     }
     if (config.getFormat() != null) {
-      FormatSpecification spec = new FormatSpecification(config.getFormat(), messageSchema, new HashMap<>());
-      recordFormat = RecordFormats.createInitializedFormat(spec);
+      decoder = new KafkaRecordDecoder(schema, messageSchema, config.getFormat());
     }
   }
 
   @Override
   public void transform(KeyValue<KafkaKey, KafkaMessage> input, Emitter<StructuredRecord> emitter) {
+    // The key and message objects are reused by the record reader, but the byte arrays they hold are not,
+    // hence they can be set on the record without copying.
+    KafkaMessage message = input.getValue();
+    if (decoder != null && decoder.isPassThrough()) {
+      emitter.emit(decoder.decode(message.getPayload()));
+      return;
+    }
     StructuredRecord.Builder builder = StructuredRecord.builder(schema);
-    if (config.getKeyField() != null) {
-      builder.set(config.getKeyField(), input.getValue().getKey().array());
+    if (keyField != null) {
+      builder.set(keyField, message.getKeyBytes());
     }
-    if (config.getPartitionField() != null) {
-      builder.set(config.getPartitionField(), input.getKey().getPartition());
+    if (partitionField != null) {
+      builder.set(partitionField, input.getKey().getPartition());
     }
-    if (config.getOffsetField() != null) {
-      builder.set(config.getOffsetField(), input.getKey().getOffset());
+    if (offsetField != null) {
+      builder.set(offsetField, input.getKey().getOffset());
     }
-    if (config.getFormat() == null) {
-      builder.set(messageField, ByteBuffers.getByteArray(input.getValue().getPayload()));
+    if (topicField != null) {
+      builder.set(topicField, input.getKey().getTopic());
+    }
+    if (decoder == null) {
+      builder.set(messageField, message.getPayloadBytes());
     } else {
-      StructuredRecord messageRecord = recordFormat.read(input.getValue().getPayload());
-      for (Schema.Field field : messageRecord.getSchema().getFields()) {
-        String fieldName = field.getName();
-        builder.set(fieldName, messageRecord.get(fieldName));
-      }
+      decoder.decode(message.getPayload(), builder);
     }
     emitter.emit(builder.build());
   }
@@ -18,7 +18,8 @@ package io.cdap.plugin.batch.source;
 
 import com.google.gson.Gson;
 import com.google.gson.reflect.TypeToken;
-import io.cdap.plugin.common.KafkaHelpers;
+import io.cdap.plugin.common.KafkaMessageSizeEstimator;
+import io.cdap.plugin.common.KafkaOffsetResolver;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.mapreduce.InputFormat;
 import org.apache.hadoop.mapreduce.InputSplit;
@@ -28,6 +29,7 @@ import org.apache.hadoop.mapreduce.TaskAttemptContext;
 import org.apache.kafka.clients.consumer.Consumer;
 import org.apache.kafka.clients.consumer.ConsumerConfig;
 import org.apache.kafka.clients.consumer.KafkaConsumer;
+import org.apache.kafka.common.Node;
 import org.apache.kafka.common.PartitionInfo;
 import org.apache.kafka.common.TopicPartition;
 import org.apache.kafka.common.serialization.ByteArrayDeserializer;
@@ -37,11 +39,17 @@ import org.slf4j.LoggerFactory;
 import java.io.IOException;
 import java.lang.reflect.Type;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
+import javax.annotation.Nullable;
 
 
 /**
@@ -50,12 +58,14 @@ import java.util.stream.Collectors;
 public class KafkaInputFormat extends InputFormat<KafkaKey, KafkaMessage> {
   private static final Logger LOG = LoggerFactory.getLogger(KafkaInputFormat.class);
   private static final String KAFKA_REQUEST = "kafka.request";
+  private static final long DEFAULT_AVERAGE_MESSAGE_SIZE = 1024;
+  private static final long SAMPLE_TIMEOUT_MS = 10000L;
 
   private static final Type LIST_TYPE = new TypeToken<List<KafkaRequest>>() { }.getType();
 
   @Override
   public RecordReader<KafkaKey, KafkaMessage> createRecordReader(InputSplit split, TaskAttemptContext context) {
-    return new KafkaRecordReader(Kafka10Reader::new);
+    return new KafkaRecordReader(Kafka10Reader::new, Kafka10Reader::new);
   }
 
 
@@ -63,31 +73,36 @@ public class KafkaInputFormat extends InputFormat<KafkaKey, KafkaMessage> {
   public List<InputSplit> getSplits(JobContext context) {
     Gson gson = new Gson();
     List<KafkaRequest> finalRequests = gson.fromJson(context.getConfiguration().get(KAFKA_REQUEST), LIST_TYPE);
-    List<InputSplit> kafkaSplits = new ArrayList<>();
-
-    for (KafkaRequest r : finalRequests) {
-      KafkaSplit split = new KafkaSplit(r);
-      kafkaSplits.add(split);
-    }
-
-    return kafkaSplits;
+    return KafkaSplits.createSplits(context.getConfiguration(), finalRequests);
   }
 
   /**
    * Generates and serializes a list of requests for reading from Kafka to the given {@link Configuration}.
    *
    * @param conf the hadoop configuration to update
-   * @param topic the Kafka topic
+   * @param topics the Kafka topics
+   * @param topicPattern if not {@code null}, all topics matching this pattern are read in addition to the given topics
    * @param kafkaConf extra Kafka consumer configurations
-   * @param partitions the set of partitions to consume from.
-   *                   If it is empty, it means reading from all available partitions under the given topic.
+   * @param partitions the set of partitions to consume from in each topic.
+   *                   If it is empty, it means reading from all available partitions under the given topics.
    * @param maxNumberRecords maximum number of records to read in one batch per partition
+   * @param maxPartitionBytes maximum estimated number of bytes to read in one batch per partition, or a non-positive
+   *                          value for no limit
+   * @param maxSplitRecords maximum number of records to read by one split, or a non-positive value for no limit
+   * @param maxSplitBytes maximum estimated number of bytes to read by one split, or a non-positive value for no limit
+   * @param startTime only read messages with a timestamp at or after this time in milliseconds, or a negative value
+   *                  to start from the given partition offsets
+   * @param endTime only read messages with a timestamp before this time in milliseconds, or a negative value for no
+   *                limit
    * @param partitionOffsets the {@link KafkaPartitionOffsets} containing the starting offset for each partition
    * @return a {@link List} of {@link KafkaRequest} that get serialized in the hadoop configuration
    * @throws IOException if failed to setup the {@link KafkaRequest}
    */
-  static List<KafkaRequest> saveKafkaRequests(Configuration conf, String topic, Map<String, String> kafkaConf,
+  static List<KafkaRequest> saveKafkaRequests(Configuration conf, Collection<String> topics,
+                                              @Nullable Pattern topicPattern, Map<String, String> kafkaConf,
                                               Set<Integer> partitions, long maxNumberRecords,
+                                              long maxPartitionBytes, long maxSplitRecords, long maxSplitBytes,
+                                              long startTime, long endTime,
                                               KafkaPartitionOffsets partitionOffsets) throws IOException {
     Properties properties = new Properties();
     properties.putAll(kafkaConf);
@@ -103,8 +118,8 @@ public class KafkaInputFormat extends InputFormat<KafkaKey, KafkaMessage> {
     properties.put(ConsumerConfig.REQUEST_TIMEOUT_MS_CONFIG, requestTimeout);
     try (Consumer<byte[], byte[]> consumer =
            new KafkaConsumer<>(properties, new ByteArrayDeserializer(), new ByteArrayDeserializer())) {
-      // Get all partitions for the given topic
-      List<PartitionInfo> partitionInfos = consumer.partitionsFor(topic);
+      // Get all partitions for the given topics
+      List<PartitionInfo> partitionInfos = getPartitionInfos(consumer, topics, topicPattern);
       if (!partitions.isEmpty()) {
         // Filter it by the set of desired partitions
         partitionInfos = partitionInfos.stream()
@@ -113,40 +128,87 @@ public class KafkaInputFormat extends InputFormat<KafkaKey, KafkaMessage> {
       }
 
       // Get the latest offsets and generate the KafkaRequests
-      List<KafkaRequest> finalRequests = createKafkaRequests(consumer, kafkaConf, partitionInfos,
-                                                             maxNumberRecords, partitionOffsets);
+      List<KafkaRequest> finalRequests = createKafkaRequests(consumer, kafkaConf, partitionInfos, maxNumberRecords,
+                                                             maxPartitionBytes, maxSplitRecords, maxSplitBytes,
+                                                             startTime, endTime, partitionOffsets);
 
       conf.set(KAFKA_REQUEST, new Gson().toJson(finalRequests));
       return finalRequests;
     }
   }
 
+  /**
+   * Returns the partitions of the given topics and of the topics matching the given pattern. The metadata of all
+   * topics is fetched with a single request when there is more than one topic to look up.
+   */
+  private static List<PartitionInfo> getPartitionInfos(Consumer<byte[], byte[]> consumer, Collection<String> topics,
+                                                       @Nullable Pattern topicPattern) throws IOException {
+    if (topicPattern == null && topics.size() == 1) {
+      String topic = topics.iterator().next();
+      List<PartitionInfo> partitionInfos = consumer.partitionsFor(topic);
+      if (partitionInfos == null) {
+        throw new IOException("Failed to find partitions of topic " + topic);
+      }
+      return partitionInfos;
+    }
+
+    List<PartitionInfo> partitionInfos = new ArrayList<>();
+    Set<String> missingTopics = new HashSet<>(topics);
+    for (Map.Entry<String, List<PartitionInfo>> entry : consumer.listTopics().entrySet()) {
+      String topic = entry.getKey();
+      if (missingTopics.remove(topic) || (topicPattern != null && topicPattern.matcher(topic).matches())) {
+        partitionInfos.addAll(entry.getValue());
+      }
+    }
+    if (!missingTopics.isEmpty()) {
+      throw new IOException("Failed to find partitions of topics " + missingTopics);
+    }
+    LOG.debug("Reading {} partitions from topics {} and topics matching {}", partitionInfos.size(), topics,
+              topicPattern);
+    return partitionInfos;
+  }
+
   /**
    * Creates a list of {@link KafkaRequest} by setting up the start and end offsets for each request. It may
    * query Kafka using the given {@link Consumer} for the earliest and latest offsets in the given set of partitions.
+   * If a start or end time is given, the offsets are bounded by the offsets of the first messages at these times,
+   * as found in the timestamp index of the partitions. If a byte limit is given, the end offsets are also bounded
+   * by the average size of the messages to read, as sampled from each partition.
    */
   private static List<KafkaRequest> createKafkaRequests(Consumer<byte[], byte[]> consumer,
                                                         Map<String, String> kafkaConf,
                                                         List<PartitionInfo> partitionInfos,
-                                                        long maxNumberRecords,
+                                                        long maxNumberRecords, long maxPartitionBytes,
+                                                        long maxSplitRecords, long maxSplitBytes,
+                                                        long startTime, long endTime,
                                                         KafkaPartitionOffsets partitionOffsets) throws IOException {
     List<TopicPartition> topicPartitions = partitionInfos.stream()
       .map(info -> new TopicPartition(info.topic(), info.partition()))
       .collect(Collectors.toList());
 
-    Map<TopicPartition, Long> latestOffsets = KafkaHelpers.getLatestOffsets(consumer, topicPartitions);
-    Map<TopicPartition, Long> earliestOffsets = KafkaHelpers.getEarliestOffsets(consumer, topicPartitions);
+    // The earliest offsets are only needed for partitions without a known offset
+    List<TopicPartition> earliestPartitions = startTime >= 0 ? Collections.emptyList() : topicPartitions.stream()
+      .filter(p -> partitionOffsets.getPartitionOffset(p.topic(), p.partition(), Long.MIN_VALUE) == Long.MIN_VALUE)
+      .collect(Collectors.toList());
+    Map<TopicPartition, Long> startTimeOffsets = startTime < 0 ? Collections.emptyMap()
+      : KafkaOffsetResolver.getOffsetsForTime(consumer, topicPartitions, startTime);
+    Map<TopicPartition, Long> endTimeOffsets = endTime < 0 ? Collections.emptyMap()
+      : KafkaOffsetResolver.getOffsetsForTime(consumer, topicPartitions, endTime);
+    Map<TopicPartition, Long> latestOffsets = KafkaOffsetResolver.getLatestOffsets(consumer, topicPartitions);
+    Map<TopicPartition, Long> earliestOffsets = KafkaOffsetResolver.getEarliestOffsets(consumer, kafkaConf,
+                                                                                       earliestPartitions);
 
-    List<KafkaRequest> requests = new ArrayList<>();
+    List<KafkaRequest> partitionRequests = new ArrayList<>();
     for (PartitionInfo partitionInfo : partitionInfos) {
       String topic = partitionInfo.topic();
       int partition = partitionInfo.partition();
 
       TopicPartition topicPartition = new TopicPartition(topic, partition);
 
-      long startOffset = partitionOffsets.getPartitionOffset(partitionInfo.partition(),
-                                                             earliestOffsets.getOrDefault(topicPartition, -1L));
       long endOffset = latestOffsets.get(topicPartition);
+      // A partition without messages at or after the start time is read from the latest offset, i.e. not at all
+      long startOffset = startTime >= 0 ? startTimeOffsets.getOrDefault(topicPartition, endOffset)
+        : partitionOffsets.getPartitionOffset(topic, partition, earliestOffsets.getOrDefault(topicPartition, -1L));
       // StartOffset shouldn't be negative, as it should either in the partitionOffsets or in the earlierOffsets
       if (startOffset < 0) {
         throw new IOException("Failed to find start offset for topic " + topic + " and partition " + partition);
@@ -156,16 +218,63 @@ public class KafkaInputFormat extends InputFormat<KafkaKey, KafkaMessage> {
         throw new IOException("Failed to find end offset for topic " + topic + " and partition " + partition);
       }
 
+      if (endTime >= 0) {
+        endOffset = Math.max(startOffset, Math.min(endOffset, endTimeOffsets.getOrDefault(topicPartition, endOffset)));
+      }
+
       // Limit the number of records fetched
       if (maxNumberRecords > 0) {
         endOffset = Math.min(endOffset, startOffset + maxNumberRecords);
       }
 
+      // The leader is carried in the requests, so that splits can be placed on the leader hosts
+      Node leader = partitionInfo.leader();
+      partitionRequests.add(new KafkaRequest(topic, partition, kafkaConf, startOffset, endOffset,
+                                             DEFAULT_AVERAGE_MESSAGE_SIZE,
+                                             leader == null ? null : leader.host() + ":" + leader.port()));
+    }
+
+    if (maxPartitionBytes > 0) {
+      partitionRequests = limitBytes(consumer, partitionRequests, maxPartitionBytes);
+    }
+
+    List<KafkaRequest> requests = new ArrayList<>();
+    for (KafkaRequest request : partitionRequests) {
       LOG.debug("Getting kafka messages from topic {}, partition {}, with earlistOffset {}, latest offset {}",
-                topic, partition, startOffset, endOffset);
+                request.getTopic(), request.getPartition(), request.getStartOffset(), request.getEndOffset());
 
-      requests.add(new KafkaRequest(topic, partition, kafkaConf, startOffset, endOffset));
+      // Large offset ranges are divided into multiple requests so that they can be read in parallel
+      requests.addAll(request.split(maxSplitRecords, maxSplitBytes));
     }
     return requests;
   }
+
+  /**
+   * Bounds the end offsets of the given requests so that each of them covers at most the given estimated number of
+   * bytes. The average message size of each partition is sampled from the messages at its start offset. Partitions
+   * that could not be sampled are assumed to have messages as large as the largest sampled average.
+   */
+  private static List<KafkaRequest> limitBytes(Consumer<byte[], byte[]> consumer, List<KafkaRequest> requests,
+                                               long maxBytes) {
+    Map<TopicPartition, Long> startOffsets = new HashMap<>();
+    for (KafkaRequest request : requests) {
+      if (request.getEndOffset() > request.getStartOffset()) {
+        startOffsets.put(new TopicPartition(request.getTopic(), request.getPartition()), request.getStartOffset());
+      }
+    }
+    Map<TopicPartition, Long> messageSizes = KafkaMessageSizeEstimator.estimate(consumer, startOffsets,
+                                                                               SAMPLE_TIMEOUT_MS);
+    long defaultSize = messageSizes.values().stream().max(Long::compare).orElse(DEFAULT_AVERAGE_MESSAGE_SIZE);
+
+    List<KafkaRequest> result = new ArrayList<>();
+    for (KafkaRequest request : requests) {
+      long messageSize = messageSizes.getOrDefault(new TopicPartition(request.getTopic(), request.getPartition()),
+                                                   defaultSize);
+      // The sampled size is kept in the request, so that splits and fetches are sized with it
+      result.add(new KafkaRequest(request.getTopic(), request.getPartition(), request.getConf(),
+                                  request.getStartOffset(), request.getEndOffset(), messageSize, request.getLeader())
+                   .limitBytes(maxBytes));
+    }
+    return result;
+  }
 }
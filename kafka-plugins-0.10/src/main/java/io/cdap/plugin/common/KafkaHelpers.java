@@ -50,15 +50,8 @@ public final class KafkaHelpers {
    */
   public static <K, V> Map<TopicPartition, Long> getLatestOffsets(Consumer<K, V> consumer,
                                                                   List<TopicPartition> topicAndPartitions) {
-    consumer.assign(topicAndPartitions);
-    consumer.seekToEnd(topicAndPartitions);
-
-    Map<TopicPartition, Long> offsets = new HashMap<>();
-    for (TopicPartition topicAndPartition : topicAndPartitions) {
-      long offset = consumer.position(topicAndPartition);
-      offsets.put(topicAndPartition, offset);
-    }
-    return offsets;
+    // Resolves the offsets of all partitions with one request, instead of one request per partition
+    return new HashMap<>(consumer.endOffsets(topicAndPartitions));
   }
 
   /**
@@ -70,15 +63,8 @@ public final class KafkaHelpers {
    */
   public static <K, V> Map<TopicPartition, Long> getEarliestOffsets(Consumer<K, V> consumer,
                                                                     List<TopicPartition> topicAndPartitions) {
-    consumer.assign(topicAndPartitions);
-    consumer.seekToBeginning(topicAndPartitions);
-
-    Map<TopicPartition, Long> offsets = new HashMap<>();
-    for (TopicPartition topicAndPartition : topicAndPartitions) {
-      long offset = consumer.position(topicAndPartition);
-      offsets.put(topicAndPartition, offset);
-    }
-    return offsets;
+    // Resolves the offsets of all partitions with one request, instead of one request per partition
+    return new HashMap<>(consumer.beginningOffsets(topicAndPartitions));
   }
 
   /**
@@ -0,0 +1,96 @@
+/*
+ * Copyright © 2022 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package io.cdap.plugin.common;
+
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.common.TopicPartition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Estimates the average size of the messages of topic partitions by reading a sample of messages from each of them.
+ * The size of a message is the size of its serialized key and value, which is what the sources hold in memory.
+ */
+public final class KafkaMessageSizeEstimator {
+  private static final Logger LOG = LoggerFactory.getLogger(KafkaMessageSizeEstimator.class);
+  private static final long POLL_TIMEOUT_MS = 100L;
+
+  // This class cannot be instantiated
+  private KafkaMessageSizeEstimator() {
+  }
+
+  /**
+   * Returns the average size of the messages at the given offsets of the given topic partitions. Each partition is
+   * sampled with the messages returned by a single fetch, so that at most one fetch is done per partition. The given
+   * consumer is assigned the sampled partitions, and is left with no assignment.
+   *
+   * @param consumer the Kafka consumer to read the samples with, which must not commit offsets
+   * @param offsets the offset to start sampling from for each topic partition
+   * @param timeoutMs the maximum time to spend sampling, after which the partitions not sampled yet are omitted
+   * @return the average message size in bytes of each topic partition that messages could be read from
+   */
+  public static Map<TopicPartition, Long> estimate(Consumer<byte[], byte[]> consumer,
+                                                   Map<TopicPartition, Long> offsets, long timeoutMs) {
+    if (offsets.isEmpty()) {
+      return Collections.emptyMap();
+    }
+
+    consumer.assign(offsets.keySet());
+    try {
+      for (Map.Entry<TopicPartition, Long> entry : offsets.entrySet()) {
+        consumer.seek(entry.getKey(), entry.getValue());
+      }
+
+      Map<TopicPartition, Long> sizes = new HashMap<>();
+      Set<TopicPartition> sampled = new HashSet<>();
+      long deadline = System.currentTimeMillis() + timeoutMs;
+      while (sampled.size() < offsets.size() && System.currentTimeMillis() < deadline) {
+        ConsumerRecords<byte[], byte[]> records = consumer.poll(POLL_TIMEOUT_MS);
+        for (TopicPartition partition : records.partitions()) {
+          long bytes = 0L;
+          int count = 0;
+          for (ConsumerRecord<byte[], byte[]> record : records.records(partition)) {
+            bytes += Math.max(0, record.serializedKeySize()) + Math.max(0, record.serializedValueSize());
+            count++;
+          }
+          if (count > 0 && sampled.add(partition)) {
+            sizes.put(partition, Math.max(1L, bytes / count));
+          }
+        }
+        // Sampled partitions are not fetched again, so that the next polls only return the remaining partitions
+        consumer.pause(sampled);
+      }
+      if (sampled.size() < offsets.size()) {
+        LOG.debug("Could not sample the message sizes of {} partitions within {} ms.",
+                  offsets.size() - sampled.size(), timeoutMs);
+      }
+      LOG.debug("Estimated message sizes {}", sizes);
+      return sizes;
+    } finally {
+      consumer.assign(Collections.emptyList());
+    }
+  }
+}
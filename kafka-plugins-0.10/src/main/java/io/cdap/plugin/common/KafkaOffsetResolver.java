@@ -0,0 +1,197 @@
+/*
+ * Copyright © 2022 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package io.cdap.plugin.common;
+
+import com.google.common.base.Objects;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.apache.kafka.clients.consumer.OffsetAndTimestamp;
+import org.apache.kafka.common.TopicPartition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Resolves the earliest and latest offsets of topic partitions with one batched request per kind of offset, instead
+ * of one request per partition. The earliest offsets only move when old messages are deleted, hence they are cached
+ * for a short time, so that the batch source, the streaming source and the connector running in the same JVM can
+ * share them. The cache is keyed by the consumer configurations, so that clients with different security settings
+ * never share offsets. The latest offsets move with every message produced, hence they are never cached.
+ */
+public final class KafkaOffsetResolver {
+  private static final Logger LOG = LoggerFactory.getLogger(KafkaOffsetResolver.class);
+  private static final long CACHE_TTL_SECONDS = 5;
+
+  private static final Cache<OffsetKey, Long> EARLIEST_OFFSETS =
+    CacheBuilder.newBuilder().expireAfterWrite(CACHE_TTL_SECONDS, TimeUnit.SECONDS).build();
+
+  // This class cannot be instantiated
+  private KafkaOffsetResolver() {
+  }
+
+  /**
+   * Returns the earliest offsets of the given topic partitions.
+   *
+   * @param consumer the Kafka consumer to use for the partitions that don't have cached offsets
+   * @param consumerConfig the configurations the consumer was created with, which identify the client in the cache
+   * @param topicPartitions topic partitions to get the offsets for
+   * @return Mapping of topic partition to its earliest offset
+   */
+  public static Map<TopicPartition, Long> getEarliestOffsets(Consumer<?, ?> consumer, Map<?, ?> consumerConfig,
+                                                             Collection<TopicPartition> topicPartitions) {
+    SortedMap<String, String> config = getCacheConfig(consumerConfig);
+    Map<TopicPartition, Long> offsets = new HashMap<>();
+    List<TopicPartition> missing = new ArrayList<>();
+    for (TopicPartition topicPartition : topicPartitions) {
+      Long offset = EARLIEST_OFFSETS.getIfPresent(new OffsetKey(config, topicPartition));
+      if (offset == null) {
+        missing.add(topicPartition);
+      } else {
+        offsets.put(topicPartition, offset);
+      }
+    }
+    if (missing.isEmpty()) {
+      return offsets;
+    }
+
+    Map<TopicPartition, Long> resolved = getOffsets(missing, "earliest", consumer::beginningOffsets);
+    for (Map.Entry<TopicPartition, Long> entry : resolved.entrySet()) {
+      EARLIEST_OFFSETS.put(new OffsetKey(config, entry.getKey()), entry.getValue());
+    }
+    offsets.putAll(resolved);
+    return offsets;
+  }
+
+  /**
+   * Returns the latest offsets of the given topic partitions, which are the offsets of the next messages to be
+   * produced. These offsets are always resolved from the brokers, since they move with every message produced.
+   *
+   * @param consumer the Kafka consumer to use
+   * @param topicPartitions topic partitions to get the offsets for
+   * @return Mapping of topic partition to its latest offset
+   */
+  public static Map<TopicPartition, Long> getLatestOffsets(Consumer<?, ?> consumer,
+                                                           Collection<TopicPartition> topicPartitions) {
+    return getOffsets(topicPartitions, "latest", consumer::endOffsets);
+  }
+
+  /**
+   * Returns the offsets of the first messages with a timestamp at or after the given time. Partitions without such
+   * message are not included in the result. These offsets depend on the time, hence they are not cached.
+   *
+   * @param consumer the Kafka consumer to use
+   * @param topicPartitions topic partitions to get the offsets for
+   * @param timestamp time in milliseconds since epoch
+   * @return Mapping of topic partition to the offset of its first message at or after the given time
+   */
+  public static Map<TopicPartition, Long> getOffsetsForTime(Consumer<?, ?> consumer,
+                                                            Collection<TopicPartition> topicPartitions,
+                                                            long timestamp) {
+    Map<TopicPartition, Long> timestamps = new HashMap<>();
+    for (TopicPartition topicPartition : topicPartitions) {
+      timestamps.put(topicPartition, timestamp);
+    }
+
+    long startTime = System.currentTimeMillis();
+    Map<TopicPartition, OffsetAndTimestamp> resolved = consumer.offsetsForTimes(timestamps);
+    LOG.debug("Resolved the offsets at time {} of {} partitions in {} ms", timestamp, timestamps.size(),
+              System.currentTimeMillis() - startTime);
+    Map<TopicPartition, Long> offsets = new HashMap<>();
+    for (Map.Entry<TopicPartition, OffsetAndTimestamp> entry : resolved.entrySet()) {
+      if (entry.getValue() != null) {
+        offsets.put(entry.getKey(), entry.getValue().offset());
+      }
+    }
+    return offsets;
+  }
+
+  private static Map<TopicPartition, Long> getOffsets(Collection<TopicPartition> topicPartitions, String kind,
+                                                      Function<Collection<TopicPartition>,
+                                                        Map<TopicPartition, Long>> offsetFunction) {
+    Map<TopicPartition, Long> offsets = new HashMap<>();
+    if (topicPartitions.isEmpty()) {
+      return offsets;
+    }
+
+    long startTime = System.currentTimeMillis();
+    Map<TopicPartition, Long> resolved = offsetFunction.apply(topicPartitions);
+    LOG.debug("Resolved the {} offsets of {} partitions in {} ms", kind, topicPartitions.size(),
+              System.currentTimeMillis() - startTime);
+    for (Map.Entry<TopicPartition, Long> entry : resolved.entrySet()) {
+      if (entry.getValue() != null) {
+        offsets.put(entry.getKey(), entry.getValue());
+      }
+    }
+    return offsets;
+  }
+
+  /**
+   * Returns the consumer configurations that identify a client in the cache. The group and client ids are left out,
+   * since they don't change the offsets returned and are often generated for each consumer.
+   */
+  private static SortedMap<String, String> getCacheConfig(Map<?, ?> consumerConfig) {
+    SortedMap<String, String> config = new TreeMap<>();
+    for (Map.Entry<?, ?> entry : consumerConfig.entrySet()) {
+      config.put(String.valueOf(entry.getKey()), String.valueOf(entry.getValue()));
+    }
+    config.remove(ConsumerConfig.GROUP_ID_CONFIG);
+    config.remove(ConsumerConfig.CLIENT_ID_CONFIG);
+    return config;
+  }
+
+  /**
+   * Key of the offset cache.
+   */
+  private static final class OffsetKey {
+    private final SortedMap<String, String> config;
+    private final TopicPartition topicPartition;
+
+    OffsetKey(SortedMap<String, String> config, TopicPartition topicPartition) {
+      this.config = config;
+      this.topicPartition = topicPartition;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (o == null || getClass() != o.getClass()) {
+        return false;
+      }
+      OffsetKey that = (OffsetKey) o;
+      return config.equals(that.config) && topicPartition.equals(that.topicPartition);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hashCode(config, topicPartition);
+    }
+  }
+}
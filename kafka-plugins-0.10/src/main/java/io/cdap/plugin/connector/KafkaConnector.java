@@ -40,12 +40,15 @@ import io.cdap.plugin.batch.source.KafkaBatchConfig;
 import io.cdap.plugin.batch.source.KafkaBatchSource;
 import io.cdap.plugin.common.ConfigUtil;
 import io.cdap.plugin.common.Constants;
+import io.cdap.plugin.common.KafkaOffsetResolver;
 import io.cdap.plugin.common.ReferenceNames;
 import io.cdap.plugin.sink.KafkaBatchSink;
 import org.apache.kafka.clients.consumer.ConsumerConfig;
 import org.apache.kafka.clients.consumer.ConsumerRecord;
 import org.apache.kafka.clients.consumer.ConsumerRecords;
 import org.apache.kafka.clients.consumer.KafkaConsumer;
+import org.apache.kafka.common.PartitionInfo;
+import org.apache.kafka.common.TopicPartition;
 import org.apache.kafka.common.serialization.StringDeserializer;
 
 import java.util.ArrayList;
@@ -56,6 +59,7 @@ import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
 import java.util.UUID;
+import java.util.stream.Collectors;
 
 /**
  * Kafka Connector
@@ -86,8 +90,23 @@ public class KafkaConnector implements DirectConnector {
     }
 
     int limit = sampleRequest.getLimit();
-    try (KafkaConsumer<String, String> consumer = getKafkaConsumer()) {
-      consumer.subscribe(Collections.singleton(topic));
+    Properties consumerConfig = getConsumerConfig();
+    try (KafkaConsumer<String, String> consumer = getKafkaConsumer(consumerConfig)) {
+      // The consumer returns null instead of an empty list for a topic that does not exist
+      List<PartitionInfo> partitionInfos = consumer.partitionsFor(topic);
+      if (partitionInfos == null || partitionInfos.isEmpty()) {
+        return Collections.emptyList();
+      }
+      // Assign the partitions and seek to the earliest offsets directly, which avoids joining a consumer group
+      List<TopicPartition> topicPartitions = partitionInfos.stream()
+        .map(info -> new TopicPartition(info.topic(), info.partition()))
+        .collect(Collectors.toList());
+      consumer.assign(topicPartitions);
+      Map<TopicPartition, Long> earliestOffsets =
+        KafkaOffsetResolver.getEarliestOffsets(consumer, consumerConfig, topicPartitions);
+      for (Map.Entry<TopicPartition, Long> entry : earliestOffsets.entrySet()) {
+        consumer.seek(entry.getKey(), entry.getValue());
+      }
       List<StructuredRecord> structuredRecords = new ArrayList<>();
       ConsumerRecords<String, String> records = consumer.poll(TIME_OUT_MS);
       for (ConsumerRecord<String, String> record : records) {
@@ -103,7 +122,7 @@ public class KafkaConnector implements DirectConnector {
 
   @Override
   public void test(ConnectorContext connectorContext) throws ValidationException {
-    try (KafkaConsumer<String, String> consumer = getKafkaConsumer()) {
+    try (KafkaConsumer<String, String> consumer = getKafkaConsumer(getConsumerConfig())) {
       consumer.listTopics();
     }
   }
@@ -113,7 +132,7 @@ public class KafkaConnector implements DirectConnector {
     String path = cleanse(request.getPath());
     int limit = request.getLimit() == null || request.getLimit() <= 0 ? Integer.MAX_VALUE : request.getLimit();
     BrowseDetail.Builder builder = BrowseDetail.builder();
-    try (KafkaConsumer<String, String> consumer = getKafkaConsumer()) {
+    try (KafkaConsumer<String, String> consumer = getKafkaConsumer(getConsumerConfig())) {
       Set<String> topics = consumer.listTopics().keySet();
       // not root, then it is topic layer, check if it exists and return
       if (!path.isEmpty()) {
@@ -150,7 +169,7 @@ public class KafkaConnector implements DirectConnector {
       .build();
   }
 
-  private KafkaConsumer<String, String> getKafkaConsumer() {
+  private Properties getConsumerConfig() {
     Properties props = new Properties();
     props.put(ConsumerConfig.BOOTSTRAP_SERVERS_CONFIG, config.getKafkaBrokers());
     props.put(ConsumerConfig.CLIENT_ID_CONFIG, UUID.randomUUID().toString());
@@ -160,7 +179,10 @@ public class KafkaConnector implements DirectConnector {
     props.put(ConsumerConfig.VALUE_DESERIALIZER_CLASS_CONFIG, StringDeserializer.class.getName());
     props.put(ConsumerConfig.EXCLUDE_INTERNAL_TOPICS_CONFIG, "true");
     props.put(ConsumerConfig.REQUEST_TIMEOUT_MS_CONFIG, String.valueOf(TIME_OUT_MS));
+    return props;
+  }
 
+  private KafkaConsumer<String, String> getKafkaConsumer(Properties props) {
     // kafka will first use thread classloader to load the serializer, this might not contain the serializer,
     // have to set the plugin class loader for it
     ClassLoader cl = Thread.currentThread().getContextClassLoader();
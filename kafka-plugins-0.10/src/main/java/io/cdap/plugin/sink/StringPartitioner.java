@@ -21,6 +21,7 @@ import org.apache.kafka.clients.producer.Partitioner;
 import org.apache.kafka.common.Cluster;
 import org.apache.kafka.common.PartitionInfo;
 
+import java.nio.charset.StandardCharsets;
 import java.util.List;
 import java.util.Map;
 
@@ -34,7 +35,7 @@ public final class StringPartitioner implements Partitioner {
   public int partition(String topic, Object key, byte[] keyBytes, Object value, byte[] valueBytes, Cluster cluster) {
     List<PartitionInfo> partitions = cluster.partitionsForTopic(topic);
     int numPartitions = partitions.size();
-    return Math.abs(Hashing.md5().hashString(key.toString()).asInt()) % numPartitions;
+    return Math.abs(Hashing.md5().hashString(getString(key)).asInt()) % numPartitions;
   }
 
   @Override
@@ -44,4 +45,12 @@ public final class StringPartitioner implements Partitioner {
   @Override
   public void configure(Map<String, ?> map) {
   }
+
+  /**
+   * Returns the string of the given key. Keys are sent as UTF-8 bytes, which are hashed as the string they encode so
+   * that keys are assigned to the same partitions as when they were sent as strings.
+   */
+  private static String getString(Object key) {
+    return key instanceof byte[] ? new String((byte[]) key, StandardCharsets.UTF_8) : key.toString();
+  }
 }
@@ -0,0 +1,264 @@
+/*
+ * Copyright © 2022 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package io.cdap.plugin.source;
+
+import io.cdap.cdap.etl.api.StageMetrics;
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.KafkaConsumer;
+import org.apache.kafka.common.KafkaException;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.serialization.ByteArrayDeserializer;
+import org.apache.spark.streaming.StreamingContext;
+import org.apache.spark.streaming.kafka010.PerPartitionConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import scala.Option;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import javax.annotation.Nullable;
+
+/**
+ * Max number of records read per second from each partition by the direct stream, adapted in every batch to the lag
+ * of the partition and to the time taken to process the previous batches.
+ *
+ * A partition that lags by more than one batch at the max rate per partition gets the rate that would read its lag
+ * in one batch, up to the max catch up rate, while other partitions get the max rate. All the limits are scaled by a
+ * factor that falls when the processing time of a batch nears the batch interval, and rises back when batches are
+ * processed well within the interval. The lag is the latest offset of the partition minus the end offset of the last
+ * batch, looked up with a consumer on the driver once per completed batch. The decisions are reported as metrics.
+ *
+ * The limits are part of the stream, which is saved in streaming checkpoints. The adaptive state is not saved, and
+ * metrics are not reported after the pipeline is restored from a checkpoint, since they cannot be restored.
+ *
+ * When the streaming context stops, the consumer on the driver is closed and the listener stops feeding batches to
+ * the limits, so neither outlives the pipeline run.
+ */
+class KafkaAdaptiveRateLimits extends PerPartitionConfig {
+  private static final Logger LOG = LoggerFactory.getLogger(KafkaAdaptiveRateLimits.class);
+  // Processing time as a fraction of the batch interval above which the limits fall, and below which they rise
+  private static final double HIGH_LOAD = 0.9;
+  private static final double LOW_LOAD = 0.7;
+  private static final double DECREASE = 0.7;
+  private static final double INCREASE = 1.25;
+  private static final double MIN_FACTOR = 0.1;
+
+  private final HashMap<String, Object> kafkaParams;
+  private final long baseRate;
+  private final long catchUpRate;
+  private final PerPartitionConfig caps;
+  private int streamId = -1;
+
+  private transient StageMetrics metrics;
+  private transient Consumer<byte[], byte[]> consumer;
+  private transient KafkaRateListener listener;
+  private transient Map<TopicPartition, Long> positions;
+  private transient Map<TopicPartition, Long> limits;
+  private transient double factor;
+  private transient long intervalMs;
+  private transient long completedBatches;
+  private transient long refreshedBatches;
+
+  /**
+   * Creates the limits.
+   *
+   * @param kafkaParams the parameters of the consumers of the stream
+   * @param baseRate the max number of records per second per partition in steady state
+   * @param catchUpRate the max number of records per second per partition while catching up, 0 for no limit
+   * @param caps limits that the adapted limits must not exceed, such as the limits derived from the byte rate
+   * @param metrics the metrics to report the decisions to
+   */
+  KafkaAdaptiveRateLimits(Map<String, Object> kafkaParams, long baseRate, long catchUpRate,
+                          @Nullable PerPartitionConfig caps, StageMetrics metrics) {
+    this.kafkaParams = new HashMap<>(kafkaParams);
+    this.baseRate = baseRate;
+    this.catchUpRate = catchUpRate;
+    this.caps = caps;
+    this.metrics = metrics;
+  }
+
+  /**
+   * Sets the id of the stream the limits apply to, which must be called once the stream is created.
+   */
+  void setStreamId(int streamId) {
+    this.streamId = streamId;
+  }
+
+  int getStreamId() {
+    return streamId;
+  }
+
+  @Override
+  public synchronized long maxRatePerPartition(TopicPartition topicPartition) {
+    init();
+    if (refreshedBatches != completedBatches) {
+      refreshedBatches = completedBatches;
+      refresh();
+    }
+    Long limit = limits.get(topicPartition);
+    return limit == null ? getLimit(topicPartition, 0L) : limit;
+  }
+
+  /**
+   * Records the end offsets of a batch that was submitted, which are where the next batch starts.
+   */
+  synchronized void onBatchSubmitted(Map<TopicPartition, Long> untilOffsets) {
+    init();
+    positions.putAll(untilOffsets);
+  }
+
+  /**
+   * Adapts the factor of the limits to the time taken to process a batch.
+   *
+   * @param processingDelay the time taken to process the batch in milliseconds
+   * @param interval the time between the batch and the previous one in milliseconds
+   */
+  synchronized void onBatchCompleted(long processingDelay, long interval) {
+    init();
+    double load = (double) processingDelay / interval;
+    if (load > HIGH_LOAD) {
+      factor = Math.max(MIN_FACTOR, factor * DECREASE);
+    } else if (load < LOW_LOAD) {
+      factor = Math.min(1d, factor * INCREASE);
+    }
+    intervalMs = interval;
+    completedBatches++;
+  }
+
+  /**
+   * Initializes the state that is not saved in checkpoints, and starts listening to the batches of the stream.
+   */
+  private void init() {
+    boolean first = positions == null;
+    if (first) {
+      positions = new HashMap<>();
+      limits = Collections.emptyMap();
+      factor = 1d;
+      refreshedBatches = -1L;
+    }
+    if (listener != null) {
+      return;
+    }
+    Option<StreamingContext> context = StreamingContext.getActive();
+    if (context.isDefined()) {
+      KafkaRateListener rateListener = new KafkaRateListener(this, metrics);
+      context.get().addStreamingListener(rateListener);
+      listener = rateListener;
+      closeOnTermination(context.get(), rateListener);
+    } else if (first) {
+      LOG.warn("No active streaming context, the rate of stream {} is not adapted to the batches yet.", streamId);
+    }
+  }
+
+  /**
+   * Starts a daemon thread that closes the given listener and the consumer once the given context terminates.
+   */
+  private void closeOnTermination(StreamingContext context, KafkaRateListener rateListener) {
+    Thread thread = new Thread(() -> {
+      try {
+        context.awaitTermination();
+      } catch (Exception e) {
+        // The context rethrows the error that stopped it, which is reported by the pipeline
+        LOG.trace("Streaming context of stream {} terminated with an error.", streamId, e);
+      }
+      close(rateListener);
+    }, "kafka-rate-limits-" + streamId);
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Stops the given listener from feeding batches to the limits and closes the consumer on the driver.
+   */
+  private synchronized void close(KafkaRateListener rateListener) {
+    rateListener.close();
+    if (listener == rateListener) {
+      listener = null;
+    }
+    if (consumer != null) {
+      try {
+        consumer.close();
+      } catch (KafkaException e) {
+        LOG.warn("Failed to close the consumer of the rate limits of stream {}.", streamId, e);
+      }
+      consumer = null;
+    }
+  }
+
+  /**
+   * Computes the limit of every partition from its current lag, and reports the decisions.
+   */
+  private void refresh() {
+    Map<TopicPartition, Long> endOffsets = Collections.emptyMap();
+    if (!positions.isEmpty()) {
+      try {
+        if (consumer == null) {
+          consumer = new KafkaConsumer<>(kafkaParams, new ByteArrayDeserializer(), new ByteArrayDeserializer());
+        }
+        endOffsets = consumer.endOffsets(positions.keySet());
+      } catch (KafkaException e) {
+        LOG.warn("Failed to get the latest offsets of {}, using the steady rate for this batch.",
+                 positions.keySet(), e);
+      }
+    }
+
+    Map<TopicPartition, Long> newLimits = new HashMap<>();
+    long totalLag = 0L;
+    int catchingUp = 0;
+    for (Map.Entry<TopicPartition, Long> entry : positions.entrySet()) {
+      Long endOffset = endOffsets.get(entry.getKey());
+      long lag = endOffset == null ? 0L : Math.max(0L, endOffset - entry.getValue());
+      long limit = getLimit(entry.getKey(), lag);
+      newLimits.put(entry.getKey(), limit);
+      totalLag += lag;
+      if (limit > baseRate) {
+        catchingUp++;
+      }
+    }
+    limits = newLimits;
+
+    long maxLimit = newLimits.values().stream().max(Long::compare).orElse(0L);
+    long minLimit = newLimits.values().stream().min(Long::compare).orElse(0L);
+    if (metrics != null) {
+      metrics.gauge("kafka.rate.limit.factor.percent", Math.round(factor * 100));
+      metrics.gauge("kafka.rate.limit.max.per.partition", maxLimit);
+      metrics.gauge("kafka.rate.limit.min.per.partition", minLimit);
+      metrics.gauge("kafka.rate.limit.catch.up.partitions", catchingUp);
+      metrics.gauge("kafka.lag.records", totalLag);
+    }
+    LOG.debug("Adapted the rate limits of stream {} with factor {} and total lag {} to {}",
+              streamId, factor, totalLag, newLimits);
+  }
+
+  /**
+   * Returns the limit of the given partition for the given lag.
+   */
+  private long getLimit(TopicPartition topicPartition, long lag) {
+    double intervalSeconds = intervalMs > 0 ? intervalMs / 1000d : 1d;
+    double rate = baseRate;
+    if (lag > baseRate * intervalSeconds) {
+      rate = lag / intervalSeconds;
+      if (catchUpRate > 0) {
+        rate = Math.min(rate, catchUpRate);
+      }
+    }
+    long limit = Math.max(1L, Math.round(rate * factor));
+    return caps == null ? limit : Math.min(limit, caps.maxRatePerPartition(topicPartition));
+  }
+}
@@ -18,6 +18,7 @@ package io.cdap.plugin.source;
 
 import com.google.common.base.Splitter;
 import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
 import io.cdap.cdap.api.annotation.Description;
 import io.cdap.cdap.api.annotation.Macro;
 import io.cdap.cdap.api.data.format.FormatSpecification;
@@ -33,11 +34,14 @@ import org.apache.kafka.common.TopicPartition;
 import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 import javax.annotation.Nullable;
 
 /**
@@ -47,15 +51,27 @@ import javax.annotation.Nullable;
 public class KafkaConfig extends ReferencePluginConfig implements Serializable {
   private static final String NAME_SCHEMA = "schema";
   private static final String NAME_BROKERS = "brokers";
+  private static final String NAME_TOPIC = "topic";
+  private static final String NAME_TOPIC_PATTERN = "topicPattern";
   private static final String NAME_PARTITIONS = "partitions";
   private static final String NAME_MAX_RATE = "maxRatePerPartition";
+  private static final String NAME_MAX_CATCH_UP_RATE = "maxCatchUpRatePerPartition";
+  private static final String NAME_MAX_BYTE_RATE = "maxByteRatePerPartition";
+  private static final String NAME_TARGET_RECORDS_PER_TASK = "targetRecordsPerTask";
+  private static final String NAME_LOCATION_STRATEGY = "locationStrategy";
+  private static final String NAME_PREFERRED_HOSTS = "preferredHosts";
   private static final String NAME_INITIAL_PARTITION_OFFSETS = "initialPartitionOffsets";
   private static final String NAME_TIMEFIELD = "timeField";
   private static final String NAME_KEYFIELD = "keyField";
   private static final String NAME_PARTITION_FIELD = "partitionField";
   private static final String NAME_OFFSET_FIELD = "offsetField";
+  private static final String NAME_TOPIC_FIELD = "topicField";
   private static final String NAME_FORMAT = "format";
   private static final String SEPARATOR = ":";
+
+  public static final String LOCATION_STRATEGY_CONSISTENT = "consistent";
+  public static final String LOCATION_STRATEGY_BROKERS = "brokers";
+  public static final String LOCATION_STRATEGY_FIXED = "fixed";
   public static final String OFFSET_START_FROM_BEGINNING = "Start from beginning";
   public static final String OFFSET_START_FROM_LAST_OFFSET = "Start from last processed offset";
   public static final String OFFSET_START_FROM_SPECIFIC_OFFSET = "Start from specific offset";
@@ -67,10 +83,19 @@ public class KafkaConfig extends ReferencePluginConfig implements Serializable {
   @Macro
   private String brokers;
 
-  @Description("Kafka topic to read from.")
+  @Description("Kafka topic to read from. Multiple topics can be given as a comma separated list, " +
+    "in which case they are all read by the same pipeline.")
   @Macro
+  @Nullable
   private String topic;
 
+  @Description("Regular expression of the Kafka topics to read from. All matching topics are read by the same " +
+    "pipeline, in addition to the topics given in the topic property. Topics created after the pipeline started " +
+    "are read from the default initial offset once they are discovered.")
+  @Macro
+  @Nullable
+  private String topicPattern;
+
   @Description("The topic partitions to read from. If not specified, all partitions will be read.")
   @Nullable
   @Macro
@@ -78,6 +103,7 @@ public class KafkaConfig extends ReferencePluginConfig implements Serializable {
 
   @Description("The initial offset for each topic partition. If this is not specified, " +
     "all partitions will have the same initial offset, which is determined by the defaultInitialOffset property. " +
+    "Offsets are given in partition:offset form for all topics, or in topic:partition:offset form for one topic. " +
     "An offset of -2 means the smallest offset. An offset of -1 means the latest offset. " +
     "Offsets are inclusive. If an offset of 5 is used, the message at offset 5 will be read.")
   @Nullable
@@ -133,10 +159,56 @@ public class KafkaConfig extends ReferencePluginConfig implements Serializable {
   @Nullable
   private String offsetField;
 
+  @Description("Optional name of the field containing the kafka topic that the message was read from. " +
+    "If this is not set, no topic field will be added to output records. " +
+    "If set, this field must be present in the schema property and must be a string.")
+  @Nullable
+  private String topicField;
+
   @Description("Max number of records to read per second per partition. 0 means there is no limit. Defaults to 1000.")
   @Nullable
   private Integer maxRatePerPartition;
 
+  @Description("Max number of bytes to read per second per partition. The number of bytes of each batch is at most " +
+    "this rate multiplied by the batch interval. The rate is converted into a number of records from the size of " +
+    "the messages sampled from the partitions when the pipeline starts, and applies in addition to the max rate " +
+    "per partition. If not specified, the number of bytes read is not limited.")
+  @Nullable
+  private Long maxByteRatePerPartition;
+
+  @Description("Target number of records read by each task of a batch. Partitions with more records in a batch are " +
+    "read by several tasks, and partitions with fewer records are read together by the same task, so that the " +
+    "time taken by a batch depends on the number of records of the batch rather than on its largest partition. " +
+    "If not specified, each partition is read by its own task.")
+  @Nullable
+  private Long targetRecordsPerTask;
+
+  @Description("How partitions are assigned to executors. 'consistent' distributes the partitions evenly across " +
+    "executors, and always reads a partition with the same executor. 'brokers' reads each partition with an " +
+    "executor running on the host of the leader broker of the partition, which requires executors to run on the " +
+    "broker hosts. 'fixed' reads the partitions with executors on the hosts given by the preferred hosts, and the " +
+    "other partitions as with 'consistent'. Defaults to 'consistent'.")
+  @Nullable
+  private String locationStrategy;
+
+  @Description("The host to read each topic partition from when the location strategy is 'fixed'. Hosts are given " +
+    "in partition:host form for all topics, or in topic:partition:host form for one topic.")
+  @Nullable
+  @Macro
+  private String preferredHosts;
+
+  @Description("Whether to adapt the number of records read from each partition in every batch to the lag of the " +
+    "partition and to the time taken to process the previous batches. The rate of each partition rises up to the " +
+    "max catch up rate per partition while catching up, and falls when the batch processing time nears the batch " +
+    "interval. Defaults to false.")
+  @Nullable
+  private Boolean enableAdaptiveRate;
+
+  @Description("Max number of records to read per second per partition when the adaptive rate is enabled. " +
+    "0 means there is no limit. Defaults to the max rate per partition.")
+  @Nullable
+  private Integer maxCatchUpRatePerPartition;
+
   @Description("Additional kafka consumer properties to set.")
   @Macro
   @Nullable
@@ -158,10 +230,29 @@ public class KafkaConfig extends ReferencePluginConfig implements Serializable {
     maxRatePerPartition = 1000;
   }
 
+  @Nullable
   public String getTopic() {
     return topic;
   }
 
+  /**
+   * @return the topics given by the topic property. Returns an empty list if no topic was specified.
+   */
+  public List<String> getTopics() {
+    if (Strings.isNullOrEmpty(topic)) {
+      return Collections.emptyList();
+    }
+    return ImmutableList.copyOf(Splitter.on(',').trimResults().omitEmptyStrings().split(topic));
+  }
+
+  /**
+   * @return the pattern of the topics to read from, or {@code null} if no pattern was specified.
+   */
+  @Nullable
+  public Pattern getTopicPattern() {
+    return Strings.isNullOrEmpty(topicPattern) ? null : Pattern.compile(topicPattern);
+  }
+
   public String getBrokers() {
     return brokers;
   }
@@ -186,6 +277,11 @@ public class KafkaConfig extends ReferencePluginConfig implements Serializable {
     return Strings.isNullOrEmpty(offsetField) ? null : offsetField;
   }
 
+  @Nullable
+  public String getTopicField() {
+    return Strings.isNullOrEmpty(topicField) ? null : topicField;
+  }
+
   @Nullable
   public String getFormat() {
     return Strings.isNullOrEmpty(format) ? null : format;
@@ -196,6 +292,30 @@ public class KafkaConfig extends ReferencePluginConfig implements Serializable {
     return maxRatePerPartition;
   }
 
+  public boolean isAdaptiveRateEnabled() {
+    return enableAdaptiveRate != null && enableAdaptiveRate;
+  }
+
+  /**
+   * @return the max number of records to read per second per partition when the adaptive rate is enabled.
+   */
+  @Nullable
+  public Integer getMaxCatchUpRatePerPartition() {
+    return maxCatchUpRatePerPartition == null ? maxRatePerPartition : maxCatchUpRatePerPartition;
+  }
+
+  public long getMaxByteRatePerPartition() {
+    return maxByteRatePerPartition == null ? -1 : maxByteRatePerPartition;
+  }
+
+  public long getTargetRecordsPerTask() {
+    return targetRecordsPerTask == null ? -1 : targetRecordsPerTask;
+  }
+
+  public String getLocationStrategy() {
+    return Strings.isNullOrEmpty(locationStrategy) ? LOCATION_STRATEGY_CONSISTENT : locationStrategy.toLowerCase();
+  }
+
   @Nullable
   public Long getDefaultInitialOffset() {
     if (!containsMacro(initialOffset) && !Strings.isNullOrEmpty(initialOffset)) {
@@ -239,6 +359,7 @@ public class KafkaConfig extends ReferencePluginConfig implements Serializable {
     boolean keyFieldExists = false;
     boolean partitionFieldExists = false;
     boolean offsetFieldExists = false;
+    boolean topicFieldExists = false;
 
     for (Schema.Field field : schema.getFields()) {
       String fieldName = field.getName();
@@ -265,6 +386,11 @@ public class KafkaConfig extends ReferencePluginConfig implements Serializable {
           throw new IllegalArgumentException("The offset field must be of type long.");
         }
         offsetFieldExists = true;
+      } else if (fieldName.equals(topicField)) {
+        if (fieldType != Schema.Type.STRING || fieldSchema.getLogicalType() != null) {
+          throw new IllegalArgumentException("The topic field must be of type string.");
+        }
+        topicFieldExists = true;
       } else {
         messageFields.add(field);
       }
@@ -290,6 +416,10 @@ public class KafkaConfig extends ReferencePluginConfig implements Serializable {
       throw new IllegalArgumentException(String.format(
         "offsetField '%s' does not exist in the schema. Please add it to the schema.", offsetFieldExists));
     }
+    if (getTopicField() != null && !topicFieldExists) {
+      throw new IllegalArgumentException(String.format(
+        "topicField '%s' does not exist in the schema. Please add it to the schema.", topicField));
+    }
     return Schema.recordOf("kafka.message", messageFields);
   }
 
@@ -302,6 +432,7 @@ public class KafkaConfig extends ReferencePluginConfig implements Serializable {
     boolean keyFieldExists = false;
     boolean partitionFieldExists = false;
     boolean offsetFieldExists = false;
+    boolean topicFieldExists = false;
 
     for (Schema.Field field : schema.getFields()) {
       String fieldName = field.getName();
@@ -332,6 +463,12 @@ public class KafkaConfig extends ReferencePluginConfig implements Serializable {
             .withConfigProperty(NAME_OFFSET_FIELD).withOutputSchemaField(offsetField);
         }
         offsetFieldExists = true;
+      } else if (fieldName.equals(topicField)) {
+        if (fieldType != Schema.Type.STRING || fieldSchema.getLogicalType() != null) {
+          collector.addFailure("The topic field must be of type string.", null)
+            .withConfigProperty(NAME_TOPIC_FIELD).withOutputSchemaField(topicField);
+        }
+        topicFieldExists = true;
       } else {
         messageFields.add(field);
       }
@@ -353,6 +490,10 @@ public class KafkaConfig extends ReferencePluginConfig implements Serializable {
       collector.addFailure(String.format("Offset field '%s' must exist in schema.", offsetField), null)
         .withConfigProperty(NAME_OFFSET_FIELD);
     }
+    if (getTopicField() != null && !topicFieldExists) {
+      collector.addFailure(String.format("Topic field '%s' must exist in schema.", topicField), null)
+        .withConfigProperty(NAME_TOPIC_FIELD);
+    }
 
     if (messageFields.isEmpty()) {
       collector.addFailure("Schema must contain at least one other field besides the time and key fields.", null);
@@ -364,26 +505,37 @@ public class KafkaConfig extends ReferencePluginConfig implements Serializable {
   /**
    * Get the initial partition offsets for the specified partitions. If an initial offset is specified in the
    * initialPartitionOffsets property, that value will be used. Otherwise, the defaultInitialOffset will be used.
+   * Offsets given for a specific topic take precedence over the ones given for all topics.
    *
-   * @param partitionsToRead the partitions to read
+   * @param partitionsToRead the topic partitions to read
    * @param collector        failure collector
    * @return initial partition offsets.
    */
-  public Map<TopicPartition, Long> getInitialPartitionOffsets(Set<Integer> partitionsToRead,
+  public Map<TopicPartition, Long> getInitialPartitionOffsets(Set<TopicPartition> partitionsToRead,
                                                               FailureCollector collector) {
     Map<TopicPartition, Long> partitionOffsets = new HashMap<>();
 
     // set default initial partitions
     final Long defaultInitialOffset = getDefaultInitialOffset();
-    for (Integer partition : partitionsToRead) {
-      partitionOffsets.put(new TopicPartition(topic, partition), defaultInitialOffset);
+    Set<String> topics = new HashSet<>(getTopics());
+    for (TopicPartition topicPartition : partitionsToRead) {
+      partitionOffsets.put(topicPartition, defaultInitialOffset);
+      topics.add(topicPartition.topic());
     }
 
     // if initial partition offsets are specified, overwrite the defaults.
     if (initialPartitionOffsets != null) {
-      for (KeyValue<String, String> partitionAndOffset : KeyValueListParser.DEFAULT.parse(initialPartitionOffsets)) {
-        String partitionStr = partitionAndOffset.getKey();
-        String offsetStr = partitionAndOffset.getValue();
+      Map<TopicPartition, Long> topicOffsets = new HashMap<>();
+      for (String entry : Splitter.on(',').trimResults().omitEmptyStrings().split(initialPartitionOffsets)) {
+        List<String> parts = ImmutableList.copyOf(Splitter.on(SEPARATOR).trimResults().split(entry));
+        if (parts.size() != 2 && parts.size() != 3) {
+          collector.addFailure(String.format("Invalid entry '%s' in initialPartitionOffsets.", entry),
+                               "Entry must be in partition:offset or topic:partition:offset form.")
+            .withConfigElement(NAME_INITIAL_PARTITION_OFFSETS, entry);
+          continue;
+        }
+        String partitionStr = parts.get(parts.size() - 2);
+        String offsetStr = parts.get(parts.size() - 1);
         int partition;
         try {
           partition = Integer.parseInt(partitionStr);
@@ -391,7 +543,7 @@ public class KafkaConfig extends ReferencePluginConfig implements Serializable {
           collector.addFailure(
             String.format("Invalid partition '%s' in initialPartitionOffsets.", partitionStr),
             "Partition must be a valid integer.")
-            .withConfigElement(NAME_INITIAL_PARTITION_OFFSETS, partitionStr + SEPARATOR + offsetStr);
+            .withConfigElement(NAME_INITIAL_PARTITION_OFFSETS, entry);
           continue;
         }
         long offset;
@@ -401,16 +553,70 @@ public class KafkaConfig extends ReferencePluginConfig implements Serializable {
           collector.addFailure(
             String.format("Invalid offset '%s' in initialPartitionOffsets for partition %d.", offsetStr, partition),
             "Offset muse be a valid integer.")
-            .withConfigElement(NAME_INITIAL_PARTITION_OFFSETS, partitionStr + SEPARATOR + offsetStr);
+            .withConfigElement(NAME_INITIAL_PARTITION_OFFSETS, entry);
           continue;
         }
-        partitionOffsets.put(new TopicPartition(topic, partition), offset);
+        if (parts.size() == 3) {
+          topicOffsets.put(new TopicPartition(parts.get(0), partition), offset);
+        } else {
+          for (String topic : topics) {
+            partitionOffsets.put(new TopicPartition(topic, partition), offset);
+          }
+        }
       }
+      partitionOffsets.putAll(topicOffsets);
     }
 
     return partitionOffsets;
   }
 
+  /**
+   * Returns the preferred host of the given topic partitions. Hosts given for a partition of all topics apply to that
+   * partition of the topics to read, of the given topic partitions, and of any topic given with a host.
+   */
+  public Map<TopicPartition, String> getPreferredHosts(Set<TopicPartition> partitionsToRead,
+                                                       FailureCollector collector) {
+    Map<TopicPartition, String> hosts = new HashMap<>();
+    if (Strings.isNullOrEmpty(preferredHosts)) {
+      return hosts;
+    }
+
+    Set<String> topics = new HashSet<>(getTopics());
+    for (TopicPartition topicPartition : partitionsToRead) {
+      topics.add(topicPartition.topic());
+    }
+    Map<TopicPartition, String> topicHosts = new HashMap<>();
+    for (String entry : Splitter.on(',').trimResults().omitEmptyStrings().split(preferredHosts)) {
+      List<String> parts = ImmutableList.copyOf(Splitter.on(SEPARATOR).trimResults().split(entry));
+      if ((parts.size() != 2 && parts.size() != 3) || parts.get(parts.size() - 1).isEmpty()) {
+        collector.addFailure(String.format("Invalid entry '%s' in preferredHosts.", entry),
+                             "Entry must be in partition:host or topic:partition:host form.")
+          .withConfigElement(NAME_PREFERRED_HOSTS, entry);
+        continue;
+      }
+      String partitionStr = parts.get(parts.size() - 2);
+      int partition;
+      try {
+        partition = Integer.parseInt(partitionStr);
+      } catch (NumberFormatException e) {
+        collector.addFailure(String.format("Invalid partition '%s' in preferredHosts.", partitionStr),
+                             "Partition must be a valid integer.")
+          .withConfigElement(NAME_PREFERRED_HOSTS, entry);
+        continue;
+      }
+      String host = parts.get(parts.size() - 1);
+      if (parts.size() == 3) {
+        topicHosts.put(new TopicPartition(parts.get(0), partition), host);
+      } else {
+        for (String topic : topics) {
+          hosts.put(new TopicPartition(topic, partition), host);
+        }
+      }
+    }
+    hosts.putAll(topicHosts);
+    return hosts;
+  }
+
   /**
    * @return broker host to broker port mapping.
    */
@@ -485,8 +691,42 @@ public class KafkaConfig extends ReferencePluginConfig implements Serializable {
     if (!Strings.isNullOrEmpty(brokers)) {
       getBrokerMap(collector);
     }
-    Set<Integer> partitions = getPartitions(collector);
-    getInitialPartitionOffsets(partitions, collector);
+    if (!containsMacro(NAME_TOPIC) && !containsMacro(NAME_TOPIC_PATTERN)
+      && getTopics().isEmpty() && Strings.isNullOrEmpty(topicPattern)) {
+      collector.addFailure("A topic or a topic pattern must be provided.", null)
+        .withConfigProperty(NAME_TOPIC).withConfigProperty(NAME_TOPIC_PATTERN);
+    }
+    if (!containsMacro(NAME_TOPIC_PATTERN) && !Strings.isNullOrEmpty(topicPattern)) {
+      try {
+        Pattern.compile(topicPattern);
+      } catch (PatternSyntaxException e) {
+        collector.addFailure(String.format("Invalid topic pattern '%s'.", topicPattern), e.getDescription())
+          .withConfigProperty(NAME_TOPIC_PATTERN);
+      }
+    }
+    Set<TopicPartition> topicPartitions = new HashSet<>();
+    for (Integer partition : getPartitions(collector)) {
+      for (String topic : getTopics()) {
+        topicPartitions.add(new TopicPartition(topic, partition));
+      }
+    }
+    getInitialPartitionOffsets(topicPartitions, collector);
+
+    String strategy = getLocationStrategy();
+    if (!LOCATION_STRATEGY_CONSISTENT.equals(strategy) && !LOCATION_STRATEGY_BROKERS.equals(strategy)
+      && !LOCATION_STRATEGY_FIXED.equals(strategy)) {
+      collector.addFailure(String.format("Invalid locationStrategy '%s'.", locationStrategy),
+                           String.format("Location strategy must be '%s', '%s' or '%s'.", LOCATION_STRATEGY_CONSISTENT,
+                                         LOCATION_STRATEGY_BROKERS, LOCATION_STRATEGY_FIXED))
+        .withConfigProperty(NAME_LOCATION_STRATEGY);
+    } else if (LOCATION_STRATEGY_FIXED.equals(strategy) && !containsMacro(NAME_PREFERRED_HOSTS)
+      && Strings.isNullOrEmpty(preferredHosts)) {
+      collector.addFailure("Preferred hosts must be provided for the 'fixed' location strategy.", null)
+        .withConfigProperty(NAME_PREFERRED_HOSTS);
+    }
+    if (!containsMacro(NAME_PREFERRED_HOSTS)) {
+      getPreferredHosts(topicPartitions, collector);
+    }
 
     if (maxRatePerPartition == null) {
       collector.addFailure("Max rate per partition must be provided.", null)
@@ -498,6 +738,32 @@ public class KafkaConfig extends ReferencePluginConfig implements Serializable {
                            "Rate must be 0 or greater.").withConfigProperty(NAME_MAX_RATE);
     }
 
+    if (maxByteRatePerPartition != null && maxByteRatePerPartition <= 0) {
+      collector.addFailure(String.format("Invalid maxByteRatePerPartition '%d'.", maxByteRatePerPartition),
+                           "Rate must be a positive number.").withConfigProperty(NAME_MAX_BYTE_RATE);
+    }
+
+    if (targetRecordsPerTask != null && targetRecordsPerTask <= 0) {
+      collector.addFailure(String.format("Invalid targetRecordsPerTask '%d'.", targetRecordsPerTask),
+                           "Number of records must be a positive number.")
+        .withConfigProperty(NAME_TARGET_RECORDS_PER_TASK);
+    }
+
+    if (isAdaptiveRateEnabled() && maxRatePerPartition != null && maxRatePerPartition == 0) {
+      collector.addFailure("The adaptive rate requires a max rate per partition.",
+                           "Set the max rate per partition to a positive number.").withConfigProperty(NAME_MAX_RATE);
+    }
+
+    if (maxCatchUpRatePerPartition != null && maxCatchUpRatePerPartition < 0) {
+      collector.addFailure(String.format("Invalid maxCatchUpRatePerPartition '%d'.", maxCatchUpRatePerPartition),
+                           "Rate must be 0 or greater.").withConfigProperty(NAME_MAX_CATCH_UP_RATE);
+    } else if (maxCatchUpRatePerPartition != null && maxCatchUpRatePerPartition > 0 && maxRatePerPartition != null
+      && (maxRatePerPartition == 0 || maxCatchUpRatePerPartition < maxRatePerPartition)) {
+      collector.addFailure(String.format("Invalid maxCatchUpRatePerPartition '%d'.", maxCatchUpRatePerPartition),
+                           "Rate must not be lower than the max rate per partition.")
+        .withConfigProperty(NAME_MAX_CATCH_UP_RATE);
+    }
+
     if (!Strings.isNullOrEmpty(timeField) && !Strings.isNullOrEmpty(keyField) && timeField.equals(keyField)) {
       collector.addFailure(String.format(
         "The timeField and keyField cannot both have the same name (%s).", timeField), null)
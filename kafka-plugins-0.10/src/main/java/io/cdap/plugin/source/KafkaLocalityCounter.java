@@ -0,0 +1,112 @@
+/*
+ * Copyright © 2022 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package io.cdap.plugin.source;
+
+import io.cdap.cdap.etl.api.StageMetrics;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.spark.SparkEnv;
+import org.apache.spark.api.java.JavaSparkContext;
+import org.apache.spark.util.LongAccumulator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Serializable;
+import java.util.Iterator;
+import java.util.Map;
+import javax.annotation.Nullable;
+
+/**
+ * Counts the records read by executors running on the host of the leader broker of their partition, so that the
+ * locality of the fetches can be checked. The counts are kept in named accumulators, which are shown by Spark for
+ * each stage, and the share of local records of each batch is reported as a metric.
+ */
+final class KafkaLocalityCounter implements Serializable {
+  private static final Logger LOG = LoggerFactory.getLogger(KafkaLocalityCounter.class);
+
+  private final LongAccumulator localRecords;
+  private final LongAccumulator records;
+  private transient long reportedLocalRecords;
+  private transient long reportedRecords;
+
+  /**
+   * Creates a counter. It must be created on the driver, since the accumulators are registered with the given
+   * context.
+   *
+   * @param jsc the spark context
+   */
+  KafkaLocalityCounter(JavaSparkContext jsc) {
+    this.localRecords = jsc.sc().longAccumulator("kafka.fetch.local.records");
+    this.records = jsc.sc().longAccumulator("kafka.fetch.records");
+  }
+
+  /**
+   * Returns an iterator over the given records that counts them as they are read. Called on the executors.
+   *
+   * @param input the records to count
+   * @param leaderHosts the host of the leader broker of each topic partition when the batch was created
+   */
+  Iterator<ConsumerRecord<byte[], byte[]>> count(Iterator<ConsumerRecord<byte[], byte[]>> input,
+                                                 Map<TopicPartition, String> leaderHosts) {
+    String host = SparkEnv.get().blockManager().blockManagerId().host();
+    return new Iterator<ConsumerRecord<byte[], byte[]>>() {
+      // The records of a task come from few partitions, hence the locality is only looked up on partition changes
+      private String topic;
+      private int partition = -1;
+      private boolean local;
+
+      @Override
+      public boolean hasNext() {
+        return input.hasNext();
+      }
+
+      @Override
+      public ConsumerRecord<byte[], byte[]> next() {
+        ConsumerRecord<byte[], byte[]> record = input.next();
+        if (record.partition() != partition || !record.topic().equals(topic)) {
+          topic = record.topic();
+          partition = record.partition();
+          local = host.equals(leaderHosts.get(new TopicPartition(topic, partition)));
+        }
+        records.add(1L);
+        if (local) {
+          localRecords.add(1L);
+        }
+        return record;
+      }
+    };
+  }
+
+  /**
+   * Reports the share of the records read since the last report that were read on the host of their leader broker.
+   * Called on the driver.
+   */
+  void report(@Nullable StageMetrics metrics) {
+    long local = localRecords.value() - reportedLocalRecords;
+    long total = records.value() - reportedRecords;
+    reportedLocalRecords += local;
+    reportedRecords += total;
+    if (total <= 0) {
+      return;
+    }
+    if (metrics != null) {
+      metrics.gauge("kafka.fetch.local.percent", local * 100 / total);
+    }
+    LOG.debug("Read {} of {} records on the host of their leader broker", local, total);
+  }
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright © 2022 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package io.cdap.plugin.source;
+
+import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.spark.Partition;
+import org.apache.spark.api.java.JavaRDD;
+import org.apache.spark.api.java.JavaSparkContext;
+import org.apache.spark.rdd.PartitionCoalescer;
+import org.apache.spark.rdd.PartitionGroup;
+import org.apache.spark.rdd.RDD;
+import org.apache.spark.streaming.kafka010.HasOffsetRanges;
+import org.apache.spark.streaming.kafka010.KafkaUtils;
+import org.apache.spark.streaming.kafka010.LocationStrategies;
+import org.apache.spark.streaming.kafka010.LocationStrategy;
+import org.apache.spark.streaming.kafka010.OffsetRange;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import scala.Option;
+import scala.collection.Seq;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.annotation.Nullable;
+
+/**
+ * Reshapes the rdds of a direct Kafka stream so that each task reads about the same number of records, instead of
+ * having one task per Kafka partition.
+ *
+ * Offset ranges with more records than the target are split into contiguous chunks that are read by separate tasks.
+ * Executors cache one Kafka consumer per consumer group and partition, hence the n-th chunks of the split ranges are
+ * read with a consumer group of their own, so that the chunks of a partition never share a consumer. The resulting
+ * partitions are then coalesced, without a shuffle, into as many tasks as needed to read the batch at the target
+ * number of records per task, balancing the number of records of the tasks. The partitions are grouped by their
+ * preferred host before they are coalesced, and each task prefers the host of its partitions, so that the location
+ * strategy of the stream still applies to the tasks.
+ */
+final class KafkaRangeBalancer implements Serializable {
+  private static final Logger LOG = LoggerFactory.getLogger(KafkaRangeBalancer.class);
+
+  private final HashMap<String, Object> kafkaParams;
+  private final long targetRecords;
+
+  /**
+   * Creates a balancer.
+   *
+   * @param kafkaParams the consumer parameters of the stream
+   * @param targetRecords the target number of records per task
+   */
+  KafkaRangeBalancer(Map<String, Object> kafkaParams, long targetRecords) {
+    this.kafkaParams = new HashMap<>(kafkaParams);
+    this.targetRecords = targetRecords;
+  }
+
+  /**
+   * Returns an rdd reading the same records as the given rdd of the direct Kafka stream, with tasks of about the
+   * target number of records.
+   *
+   * @param input the rdd of a batch of the stream
+   * @param preferredHosts the host to read each topic partition from in this batch, empty if the stream does not
+   *                       prefer hosts
+   */
+  JavaRDD<ConsumerRecord<byte[], byte[]>> balance(JavaRDD<ConsumerRecord<byte[], byte[]>> input,
+                                                  Map<TopicPartition, String> preferredHosts) {
+    OffsetRange[] ranges = ((HasOffsetRanges) input.rdd()).offsetRanges();
+    long total = 0L;
+    boolean split = false;
+    for (OffsetRange range : ranges) {
+      total += range.count();
+      split = split || range.count() > targetRecords;
+    }
+    int numTasks = (int) Math.max(1L, Math.min(Integer.MAX_VALUE, (total + targetRecords - 1) / targetRecords));
+    if (!split && numTasks >= ranges.length) {
+      return input;
+    }
+
+    JavaRDD<ConsumerRecord<byte[], byte[]>> rdd = input;
+    long[] counts = Arrays.stream(ranges).mapToLong(OffsetRange::count).toArray();
+    if (split) {
+      List<List<OffsetRange>> chunks = new ArrayList<>();
+      for (OffsetRange range : ranges) {
+        long numChunks = Math.max(1L, (range.count() + targetRecords - 1) / targetRecords);
+        long chunkSize = (range.count() + numChunks - 1) / numChunks;
+        int chunk = 0;
+        for (long offset = range.fromOffset(); offset < range.untilOffset(); offset += chunkSize) {
+          if (chunks.size() == chunk) {
+            chunks.add(new ArrayList<>());
+          }
+          chunks.get(chunk++).add(OffsetRange.create(range.topicPartition(), offset,
+                                                     Math.min(range.untilOffset(), offset + chunkSize)));
+        }
+      }
+
+      // The first chunks use the consumer group of the stream, so that they reuse the consumers cached for it
+      JavaSparkContext jsc = JavaSparkContext.fromSparkContext(input.context());
+      LocationStrategy locationStrategy = preferredHosts.isEmpty() ? LocationStrategies.PreferConsistent()
+        : LocationStrategies.PreferFixed(preferredHosts);
+      List<JavaRDD<ConsumerRecord<byte[], byte[]>>> rdds = new ArrayList<>();
+      for (int i = 0; i < chunks.size(); i++) {
+        Map<String, Object> params = kafkaParams;
+        if (i > 0) {
+          params = new HashMap<>(kafkaParams);
+          params.put(ConsumerConfig.GROUP_ID_CONFIG, kafkaParams.get(ConsumerConfig.GROUP_ID_CONFIG) + "-" + i);
+        }
+        rdds.add(KafkaUtils.createRDD(jsc, params, chunks.get(i).toArray(new OffsetRange[0]),
+                                      locationStrategy));
+      }
+      rdd = rdds.size() == 1 ? rdds.get(0) : jsc.union(rdds.get(0), rdds.subList(1, rdds.size()));
+      counts = chunks.stream().flatMap(List::stream).mapToLong(OffsetRange::count).toArray();
+    }
+
+    LOG.debug("Reading {} records of {} offset ranges with {} tasks", total, ranges.length,
+              Math.min(numTasks, counts.length));
+    if (numTasks >= counts.length) {
+      return rdd;
+    }
+    return rdd.rdd().coalesce(numTasks, false, Option.apply(new RecordCountCoalescer(counts)), null).toJavaRDD();
+  }
+
+  /**
+   * Groups partitions of known record counts into a given number of groups with balanced record counts. The
+   * partitions are first grouped by the host of their preferred location, and each host gets a share of the groups
+   * proportional to its number of records, with at least one group per host. The groups of a host prefer that host,
+   * and are filled by adding its partitions from the largest to the smallest to the group with the fewest records.
+   */
+  private static final class RecordCountCoalescer implements PartitionCoalescer, Serializable {
+    // The prefix of the locations of partitions that prefer an executor, which are executor_<host>_<executor id>
+    private static final String EXECUTOR_LOCATION_PREFIX = "executor_";
+
+    private final long[] counts;
+
+    RecordCountCoalescer(long[] counts) {
+      this.counts = counts;
+    }
+
+    @Override
+    public PartitionGroup[] coalesce(int maxPartitions, RDD<?> parent) {
+      Partition[] partitions = parent.partitions();
+      Map<String, List<Integer>> hostPartitions = new LinkedHashMap<>();
+      Map<String, Long> hostCounts = new HashMap<>();
+      long total = 0L;
+      for (int i = 0; i < partitions.length; i++) {
+        String host = getHost(parent, partitions[i]);
+        hostPartitions.computeIfAbsent(host, h -> new ArrayList<>()).add(i);
+        hostCounts.merge(host, counts[i], Long::sum);
+        total += counts[i];
+      }
+
+      int numGroups = Math.min(maxPartitions, partitions.length);
+      List<PartitionGroup> groups = new ArrayList<>();
+      for (Map.Entry<String, List<Integer>> entry : hostPartitions.entrySet()) {
+        long share = Math.round((double) numGroups * hostCounts.get(entry.getKey()) / Math.max(1L, total));
+        int hostGroups = (int) Math.min(entry.getValue().size(), Math.max(1L, share));
+        groups.addAll(balance(parent, entry.getValue(), hostGroups, Option.apply(entry.getKey())));
+      }
+      return groups.toArray(new PartitionGroup[0]);
+    }
+
+    /**
+     * Adds the given partitions to the given number of groups with the given preferred location, from the largest to
+     * the smallest partition, each to the group with the fewest records.
+     */
+    private List<PartitionGroup> balance(RDD<?> parent, List<Integer> indices, int numGroups,
+                                         Option<String> location) {
+      List<PartitionGroup> groups = new ArrayList<>();
+      long[] groupCounts = new long[numGroups];
+      for (int i = 0; i < numGroups; i++) {
+        groups.add(new PartitionGroup(location));
+      }
+      List<Integer> order = new ArrayList<>(indices);
+      order.sort(Comparator.comparingLong((Integer i) -> counts[i]).reversed());
+      for (int index : order) {
+        int group = 0;
+        for (int i = 1; i < numGroups; i++) {
+          if (groupCounts[i] < groupCounts[group]) {
+            group = i;
+          }
+        }
+        groups.get(group).partitions().$plus$eq(parent.partitions()[index]);
+        groupCounts[group] += counts[index];
+      }
+      return groups;
+    }
+
+    /**
+     * Returns the host of the first preferred location of the given partition, or {@code null} if it has none.
+     */
+    @Nullable
+    private static String getHost(RDD<?> parent, Partition partition) {
+      Seq<String> locations = parent.preferredLocations(partition);
+      if (locations.isEmpty()) {
+        return null;
+      }
+      String location = locations.head();
+      if (!location.startsWith(EXECUTOR_LOCATION_PREFIX)) {
+        return location;
+      }
+      String hostAndExecutor = location.substring(EXECUTOR_LOCATION_PREFIX.length());
+      int index = hostAndExecutor.lastIndexOf('_');
+      return index < 0 ? hostAndExecutor : hostAndExecutor.substring(0, index);
+    }
+  }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright © 2022 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package io.cdap.plugin.source;
+
+import org.apache.kafka.common.TopicPartition;
+import org.apache.spark.streaming.kafka010.PerPartitionConfig;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Max number of records read per second from each partition by the direct stream. With a max byte rate, the record
+ * rate of each partition is derived from the size of its messages, so that partitions of small messages are not
+ * throttled to the record rate of the partition with the largest messages. The configured record rate is kept for a
+ * partition when it is lower.
+ *
+ * The limits are part of the stream, which is saved in streaming checkpoints, hence they must be serializable.
+ */
+class KafkaRateLimits extends PerPartitionConfig {
+  private final long recordRate;
+  private final HashMap<TopicPartition, Long> byteLimitedRates;
+  private final long defaultByteLimitedRate;
+
+  /**
+   * Creates the limits.
+   *
+   * @param recordRate the max number of records per second per partition, or 0 if the record rate is not limited
+   * @param byteRate the max number of bytes per second per partition
+   * @param messageSizes the average message size of the partitions, in bytes
+   * @param defaultMessageSize the message size of the partitions that have no known message size
+   */
+  KafkaRateLimits(long recordRate, long byteRate, Map<TopicPartition, Long> messageSizes, long defaultMessageSize) {
+    this.recordRate = recordRate;
+    this.byteLimitedRates = new HashMap<>();
+    for (Map.Entry<TopicPartition, Long> entry : messageSizes.entrySet()) {
+      byteLimitedRates.put(entry.getKey(), getByteLimitedRate(byteRate, entry.getValue()));
+    }
+    this.defaultByteLimitedRate = getByteLimitedRate(byteRate, defaultMessageSize);
+  }
+
+  /**
+   * Returns the max number of records to read per second from the given partition. The rate is always positive,
+   * since the direct stream reads nothing from a partition without a rate when other partitions have one.
+   */
+  @Override
+  public long maxRatePerPartition(TopicPartition topicPartition) {
+    long rate = byteLimitedRates.getOrDefault(topicPartition, defaultByteLimitedRate);
+    return recordRate > 0 ? Math.min(rate, recordRate) : rate;
+  }
+
+  private static long getByteLimitedRate(long byteRate, long messageSize) {
+    return Math.max(1L, byteRate / Math.max(1L, messageSize));
+  }
+}
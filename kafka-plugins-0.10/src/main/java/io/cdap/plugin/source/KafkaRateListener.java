@@ -0,0 +1,174 @@
+/*
+ * Copyright © 2022 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package io.cdap.plugin.source;
+
+import io.cdap.cdap.etl.api.StageMetrics;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.spark.streaming.kafka010.OffsetRange;
+import org.apache.spark.streaming.scheduler.BatchInfo;
+import org.apache.spark.streaming.scheduler.StreamInputInfo;
+import org.apache.spark.streaming.scheduler.StreamingListener;
+import org.apache.spark.streaming.scheduler.StreamingListenerBatchCompleted;
+import org.apache.spark.streaming.scheduler.StreamingListenerBatchStarted;
+import org.apache.spark.streaming.scheduler.StreamingListenerBatchSubmitted;
+import org.apache.spark.streaming.scheduler.StreamingListenerOutputOperationCompleted;
+import org.apache.spark.streaming.scheduler.StreamingListenerOutputOperationStarted;
+import org.apache.spark.streaming.scheduler.StreamingListenerReceiverError;
+import org.apache.spark.streaming.scheduler.StreamingListenerReceiverStarted;
+import org.apache.spark.streaming.scheduler.StreamingListenerReceiverStopped;
+import org.apache.spark.streaming.scheduler.StreamingListenerStreamingStarted;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import scala.Option;
+import scala.collection.JavaConverters;
+import scala.collection.Seq;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.annotation.Nullable;
+
+/**
+ * Feeds the batches of the kafka stream to its adaptive rate limits, and reports the rate at which the stream is
+ * read next to the time taken to process each batch. The listener is closed when its streaming context terminates,
+ * after which it ignores the batches of any context it is still registered with.
+ */
+final class KafkaRateListener implements StreamingListener {
+  private static final Logger LOG = LoggerFactory.getLogger(KafkaRateListener.class);
+
+  private final KafkaAdaptiveRateLimits limits;
+  private final StageMetrics metrics;
+  private long lastBatchTime = -1L;
+  private volatile boolean closed;
+
+  KafkaRateListener(KafkaAdaptiveRateLimits limits, @Nullable StageMetrics metrics) {
+    this.limits = limits;
+    this.metrics = metrics;
+  }
+
+  /**
+   * Stops feeding the batches to the limits and reporting metrics.
+   */
+  void close() {
+    closed = true;
+  }
+
+  @Override
+  public void onBatchSubmitted(StreamingListenerBatchSubmitted batchSubmitted) {
+    if (closed) {
+      return;
+    }
+    Map<TopicPartition, Long> untilOffsets = new HashMap<>();
+    for (OffsetRange range : getOffsetRanges(batchSubmitted.batchInfo())) {
+      untilOffsets.put(range.topicPartition(), range.untilOffset());
+    }
+    limits.onBatchSubmitted(untilOffsets);
+  }
+
+  @Override
+  public void onBatchCompleted(StreamingListenerBatchCompleted batchCompleted) {
+    if (closed) {
+      return;
+    }
+    BatchInfo batchInfo = batchCompleted.batchInfo();
+    long batchTime = batchInfo.batchTime().milliseconds();
+    long interval = lastBatchTime < 0 ? -1L : batchTime - lastBatchTime;
+    lastBatchTime = batchTime;
+
+    Option<StreamInputInfo> inputInfo = batchInfo.streamIdToInputInfo().get(limits.getStreamId());
+    Option<Object> processingDelay = batchInfo.processingDelay();
+    if (interval <= 0 || inputInfo.isEmpty()) {
+      return;
+    }
+    if (processingDelay.isDefined()) {
+      limits.onBatchCompleted((Long) processingDelay.get(), interval);
+    }
+
+    long numRecords = inputInfo.get().numRecords();
+    long maxPartitionRecords = 0L;
+    for (OffsetRange range : getOffsetRanges(batchInfo)) {
+      maxPartitionRecords = Math.max(maxPartitionRecords, range.count());
+    }
+    if (metrics != null) {
+      metrics.gauge("kafka.rate.records.per.sec", numRecords * 1000L / interval);
+      metrics.gauge("kafka.rate.max.partition.records.per.sec", maxPartitionRecords * 1000L / interval);
+      if (processingDelay.isDefined()) {
+        metrics.gauge("kafka.batch.processing.percent", (Long) processingDelay.get() * 100L / interval);
+      }
+    }
+    LOG.debug("Read {} records in batch {}, at most {} from a single partition, processed in {} ms.",
+              numRecords, batchTime, maxPartitionRecords,
+              processingDelay.isDefined() ? processingDelay.get() : "unknown");
+  }
+
+  /**
+   * Returns the offset ranges read by the stream in the given batch.
+   */
+  private List<OffsetRange> getOffsetRanges(BatchInfo batchInfo) {
+    List<OffsetRange> ranges = new ArrayList<>();
+    Option<StreamInputInfo> inputInfo = batchInfo.streamIdToInputInfo().get(limits.getStreamId());
+    if (inputInfo.isEmpty()) {
+      return ranges;
+    }
+    Option<Object> offsets = inputInfo.get().metadata().get("offsets");
+    if (offsets.isDefined() && offsets.get() instanceof Seq) {
+      for (Object range : JavaConverters.seqAsJavaListConverter((Seq<?>) offsets.get()).asJava()) {
+        if (range instanceof OffsetRange) {
+          ranges.add((OffsetRange) range);
+        }
+      }
+    }
+    return ranges;
+  }
+
+  @Override
+  public void onStreamingStarted(StreamingListenerStreamingStarted streamingStarted) {
+    // no-op
+  }
+
+  @Override
+  public void onReceiverStarted(StreamingListenerReceiverStarted receiverStarted) {
+    // no-op
+  }
+
+  @Override
+  public void onReceiverError(StreamingListenerReceiverError receiverError) {
+    // no-op
+  }
+
+  @Override
+  public void onReceiverStopped(StreamingListenerReceiverStopped receiverStopped) {
+    // no-op
+  }
+
+  @Override
+  public void onBatchStarted(StreamingListenerBatchStarted batchStarted) {
+    // no-op
+  }
+
+  @Override
+  public void onOutputOperationStarted(StreamingListenerOutputOperationStarted outputOperationStarted) {
+    // no-op
+  }
+
+  @Override
+  public void onOutputOperationCompleted(StreamingListenerOutputOperationCompleted outputOperationCompleted) {
+    // no-op
+  }
+}
@@ -58,6 +58,7 @@ public class KafkaStreamingSource extends ReferenceStreamingSource<StructuredRec
     Schema schema = conf.getSchema(collector);
     stageConfigurer.setOutputSchema(schema);
 
+    // With the adaptive rate or a max byte rate, the stream is created with its own per partition limits
     if (conf.getMaxRatePerPartition() != null && conf.getMaxRatePerPartition() > 0) {
       Map<String, String> pipelineProperties = new HashMap<>();
       pipelineProperties.put("spark.streaming.kafka.maxRatePerPartition", conf.getMaxRatePerPartition().toString());
@@ -18,15 +18,17 @@ package io.cdap.plugin.source;
 
 import com.google.common.base.Joiner;
 import com.google.common.collect.Iterables;
+import com.google.common.collect.Iterators;
 import com.google.common.collect.Sets;
-import io.cdap.cdap.api.data.format.FormatSpecification;
-import io.cdap.cdap.api.data.format.RecordFormat;
 import io.cdap.cdap.api.data.format.StructuredRecord;
 import io.cdap.cdap.api.data.schema.Schema;
 import io.cdap.cdap.etl.api.FailureCollector;
+import io.cdap.cdap.etl.api.StageMetrics;
 import io.cdap.cdap.etl.api.streaming.StreamingContext;
-import io.cdap.cdap.format.RecordFormats;
 import io.cdap.plugin.common.KafkaHelpers;
+import io.cdap.plugin.common.KafkaMessageSizeEstimator;
+import io.cdap.plugin.common.KafkaOffsetResolver;
+import io.cdap.plugin.common.KafkaRecordDecoder;
 import kafka.api.OffsetRequest;
 import org.apache.kafka.clients.consumer.Consumer;
 import org.apache.kafka.clients.consumer.ConsumerConfig;
@@ -37,25 +39,39 @@ import org.apache.kafka.common.PartitionInfo;
 import org.apache.kafka.common.TopicPartition;
 import org.apache.kafka.common.serialization.ByteArrayDeserializer;
 import org.apache.spark.api.java.JavaRDD;
-import org.apache.spark.api.java.function.Function;
+import org.apache.spark.api.java.JavaSparkContext;
+import org.apache.spark.api.java.function.FlatMapFunction;
 import org.apache.spark.api.java.function.Function2;
+import org.apache.spark.broadcast.Broadcast;
 import org.apache.spark.streaming.Time;
 import org.apache.spark.streaming.api.java.JavaDStream;
+import org.apache.spark.streaming.api.java.JavaInputDStream;
 import org.apache.spark.streaming.kafka010.ConsumerStrategies;
+import org.apache.spark.streaming.kafka010.ConsumerStrategy;
+import org.apache.spark.streaming.kafka010.HasOffsetRanges;
 import org.apache.spark.streaming.kafka010.KafkaUtils;
 import org.apache.spark.streaming.kafka010.LocationStrategies;
+import org.apache.spark.streaming.kafka010.LocationStrategy;
+import org.apache.spark.streaming.kafka010.OffsetRange;
+import org.apache.spark.streaming.kafka010.PerPartitionConfig;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.Serializable;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Properties;
 import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import javax.annotation.Nullable;
 
 /**
  * Util method for {@link KafkaStreamingSource}.
@@ -65,6 +81,9 @@ import java.util.Set;
  */
 final class KafkaStreamingSourceUtil {
   private static final Logger LOG = LoggerFactory.getLogger(KafkaStreamingSourceUtil.class);
+  private static final long DEFAULT_AVERAGE_MESSAGE_SIZE = 1024L;
+  private static final long SAMPLE_TIMEOUT_MS = 10000L;
+  private static final long SAMPLE_RECORDS = 100L;
 
   /**
    * Returns {@link JavaDStream} for {@link KafkaStreamingSource}.
@@ -82,11 +101,20 @@ final class KafkaStreamingSourceUtil {
     kafkaParams.put("key.deserializer", ByteArrayDeserializer.class.getCanonicalName());
     kafkaParams.put("value.deserializer", ByteArrayDeserializer.class.getCanonicalName());
     KafkaHelpers.setupKerberosLogin(kafkaParams, conf.getPrincipal(), conf.getKeytabLocation());
-    // Create a unique string for the group.id using the pipeline name and the topic.
+    // Create a unique string for the group.id using the pipeline name and the topics.
     // group.id is a Kafka consumer property that uniquely identifies the group of
     // consumer processes to which this consumer belongs.
-    kafkaParams.put("group.id", Joiner.on("-").join(context.getPipelineName().length(), conf.getTopic().length(),
-                                                    context.getPipelineName(), conf.getTopic()));
+    Pattern topicPattern = conf.getTopicPattern();
+    String subscription = topicPattern == null ? conf.getTopic()
+      : Joiner.on("-").skipNulls().join(conf.getTopic(), topicPattern.pattern());
+    kafkaParams.put("group.id", Joiner.on("-").join(context.getPipelineName().length(), subscription.length(),
+                                                    context.getPipelineName(), subscription));
+    if (topicPattern != null) {
+      // Topics matching the pattern that are created after the pipeline started have no initial offsets
+      kafkaParams.put(ConsumerConfig.AUTO_OFFSET_RESET_CONFIG,
+                      Long.valueOf(OffsetRequest.EarliestTime()).equals(conf.getDefaultInitialOffset())
+                        ? "earliest" : "latest");
+    }
     kafkaParams.putAll(conf.getKafkaProperties());
 
     Properties properties = new Properties();
@@ -105,7 +133,7 @@ final class KafkaStreamingSourceUtil {
     try (Consumer<byte[], byte[]> consumer = new KafkaConsumer<>(properties, new ByteArrayDeserializer(),
                                                                  new ByteArrayDeserializer())) {
       Map<TopicPartition, Long> offsets = conf.getInitialPartitionOffsets(
-        getPartitions(consumer, conf, collector), collector);
+        getTopicPartitions(consumer, conf, collector), collector);
       collector.getOrThrowException();
 
       // KafkaUtils doesn't understand -1 and -2 as smallest offset and latest offset.
@@ -125,8 +153,8 @@ final class KafkaStreamingSourceUtil {
       Set<TopicPartition> allOffsetRequest =
         Sets.newHashSet(Iterables.concat(earliestOffsetRequest, latestOffsetRequest));
       Map<TopicPartition, Long> offsetsFound = new HashMap<>();
-      offsetsFound.putAll(KafkaHelpers.getEarliestOffsets(consumer, earliestOffsetRequest));
-      offsetsFound.putAll(KafkaHelpers.getLatestOffsets(consumer, latestOffsetRequest));
+      offsetsFound.putAll(KafkaOffsetResolver.getEarliestOffsets(consumer, properties, earliestOffsetRequest));
+      offsetsFound.putAll(KafkaOffsetResolver.getLatestOffsets(consumer, latestOffsetRequest));
       for (TopicPartition topicAndPartition : allOffsetRequest) {
         offsets.put(topicAndPartition, offsetsFound.get(topicAndPartition));
       }
@@ -138,10 +166,47 @@ final class KafkaStreamingSourceUtil {
       }
       LOG.info("Using initial offsets {}", offsets);
 
-      return KafkaUtils.createDirectStream(
-        context.getSparkStreamingContext(), LocationStrategies.PreferConsistent(),
-        ConsumerStrategies.<byte[], byte[]>Subscribe(Collections.singleton(conf.getTopic()), kafkaParams, offsets)
-      ).transform(new RecordTransform(conf));
+      // The leaders are only looked up to place the reads on the broker hosts and to count the reads done there
+      String strategy = conf.getLocationStrategy();
+      Map<TopicPartition, String> leaderHosts = KafkaConfig.LOCATION_STRATEGY_CONSISTENT.equals(strategy)
+        ? null : getLeaderHosts(consumer, offsets.keySet());
+      Map<TopicPartition, String> preferredHosts = KafkaConfig.LOCATION_STRATEGY_FIXED.equals(strategy)
+        ? conf.getPreferredHosts(offsets.keySet(), collector)
+        : leaderHosts == null ? Collections.emptyMap() : leaderHosts;
+      collector.getOrThrowException();
+      LocationStrategy locationStrategy = KafkaConfig.LOCATION_STRATEGY_BROKERS.equals(strategy)
+        ? LocationStrategies.PreferBrokers()
+        : KafkaConfig.LOCATION_STRATEGY_FIXED.equals(strategy) ? LocationStrategies.PreferFixed(preferredHosts)
+        : LocationStrategies.PreferConsistent();
+
+      PerPartitionConfig rateLimits = conf.getMaxByteRatePerPartition() > 0
+        ? getRateLimits(consumer, properties, offsets) : null;
+      KafkaAdaptiveRateLimits adaptiveRateLimits = null;
+      if (conf.isAdaptiveRateEnabled()) {
+        Integer catchUpRate = conf.getMaxCatchUpRatePerPartition();
+        adaptiveRateLimits = new KafkaAdaptiveRateLimits(kafkaParams, conf.getMaxRatePerPartition(),
+                                                         catchUpRate == null ? 0L : catchUpRate, rateLimits,
+                                                         context.getMetrics());
+        rateLimits = adaptiveRateLimits;
+      }
+
+      JavaInputDStream<ConsumerRecord<byte[], byte[]>> stream;
+      ConsumerStrategy<byte[], byte[]> consumerStrategy = getConsumerStrategy(conf, kafkaParams, offsets);
+      if (rateLimits != null) {
+        stream = KafkaUtils.createDirectStream(context.getSparkStreamingContext(), locationStrategy, consumerStrategy,
+                                               rateLimits);
+      } else {
+        stream = KafkaUtils.createDirectStream(context.getSparkStreamingContext(), locationStrategy, consumerStrategy);
+      }
+      if (adaptiveRateLimits != null) {
+        adaptiveRateLimits.setStreamId(stream.inputDStream().id());
+      }
+      KafkaRangeBalancer balancer = conf.getTargetRecordsPerTask() > 0
+        ? new KafkaRangeBalancer(kafkaParams, conf.getTargetRecordsPerTask()) : null;
+      return stream.transform(new RecordTransform(conf, balancer, leaderHosts == null ? null : kafkaParams,
+                                                  KafkaConfig.LOCATION_STRATEGY_FIXED.equals(strategy)
+                                                    ? preferredHosts : null,
+                                                  context.getMetrics()));
     } catch (KafkaException e) {
       LOG.error("Exception occurred while trying to read from kafka topic: {}", e.getMessage());
       LOG.error("Please verify that the hostname/IPAddress of the kafka server is correct and that it is running.");
@@ -150,142 +215,344 @@ final class KafkaStreamingSourceUtil {
   }
 
   /**
-   * Applies the format function to each rdd.
+   * Returns the host of the leader broker of each of the given topic partitions that has a leader.
+   */
+  private static Map<TopicPartition, String> getLeaderHosts(Consumer<byte[], byte[]> consumer,
+                                                            Set<TopicPartition> topicPartitions) {
+    Map<TopicPartition, String> leaderHosts = new HashMap<>();
+    Set<String> topics = topicPartitions.stream().map(TopicPartition::topic).collect(Collectors.toSet());
+    for (String topic : topics) {
+      List<PartitionInfo> partitionInfos = consumer.partitionsFor(topic);
+      if (partitionInfos == null) {
+        continue;
+      }
+      for (PartitionInfo partitionInfo : partitionInfos) {
+        TopicPartition topicPartition = new TopicPartition(topic, partitionInfo.partition());
+        if (partitionInfo.leader() != null && topicPartitions.contains(topicPartition)) {
+          leaderHosts.put(topicPartition, partitionInfo.leader().host());
+        }
+      }
+    }
+    LOG.debug("Using leader hosts {}", leaderHosts);
+    return leaderHosts;
+  }
+
+  /**
+   * Returns the max number of records to read per second from each partition, such that the max byte rate per
+   * partition is not exceeded. The message sizes are sampled from the messages at the initial offsets, or from the
+   * last messages of the partitions that are read from their latest offset. Partitions without messages to sample,
+   * including partitions of topics created later, are assumed to have messages as large as the largest ones sampled.
+   */
+  private static KafkaRateLimits getRateLimits(Consumer<byte[], byte[]> consumer, Properties consumerConfig,
+                                               Map<TopicPartition, Long> offsets) {
+    Map<TopicPartition, Long> latestOffsets = KafkaOffsetResolver.getLatestOffsets(consumer, offsets.keySet());
+    Map<TopicPartition, Long> earliestOffsets = KafkaOffsetResolver.getEarliestOffsets(consumer, consumerConfig,
+                                                                                       offsets.keySet());
+    Map<TopicPartition, Long> sampleOffsets = new HashMap<>();
+    for (Map.Entry<TopicPartition, Long> entry : offsets.entrySet()) {
+      long latest = latestOffsets.getOrDefault(entry.getKey(), -1L);
+      long offset = entry.getValue() < latest ? entry.getValue()
+        : Math.max(earliestOffsets.getOrDefault(entry.getKey(), latest), latest - SAMPLE_RECORDS);
+      // Empty partitions are not sampled, since no message could be read from them
+      if (offset >= 0 && offset < latest) {
+        sampleOffsets.put(entry.getKey(), offset);
+      }
+    }
+
+    Map<TopicPartition, Long> messageSizes = KafkaMessageSizeEstimator.estimate(consumer, sampleOffsets,
+                                                                               SAMPLE_TIMEOUT_MS);
+    long defaultSize = messageSizes.values().stream().max(Long::compare).orElse(DEFAULT_AVERAGE_MESSAGE_SIZE);
+    Integer recordRate = conf.isAdaptiveRateEnabled() ? conf.getMaxCatchUpRatePerPartition()
+      : conf.getMaxRatePerPartition();
+    LOG.info("Limiting the byte rate per partition with average message sizes {}, and {} bytes for other partitions",
+             messageSizes, defaultSize);
+    return new KafkaRateLimits(recordRate == null ? 0L : recordRate, conf.getMaxByteRatePerPartition(),
+                               messageSizes, defaultSize);
+  }
+
+  /**
+   * Applies the record function to each partition of each rdd, after reshaping the rdd with the balancer if there is
+   * one. The decoder spec is broadcast once, so that the tasks only carry a reference to it. The broadcast and the
+   * accumulators of the locality counter are created lazily on the driver, because they cannot be restored from a
+   * streaming checkpoint. For the same reason, the locality of the reads is not reported as a metric after the
+   * pipeline is restored from a checkpoint. The leaders of the partitions read are looked up for every batch with a
+   * short-lived consumer, like the brokers location strategy does, so that the locality follows leader changes and
+   * topics added later, and no consumer is left open on the driver when the stream stops. The balancer places the
+   * reads of each batch on the configured hosts with the fixed location strategy, and on the current leaders with
+   * the brokers location strategy.
    */
   private static class RecordTransform
     implements Function2<JavaRDD<ConsumerRecord<byte[], byte[]>>, Time, JavaRDD<StructuredRecord>> {
 
-    private final KafkaConfig conf;
+    private final DecoderSpec spec;
+    private final KafkaRangeBalancer balancer;
+    private final HashMap<String, Object> kafkaParams;
+    private final HashMap<TopicPartition, String> fixedHosts;
+    private final transient StageMetrics metrics;
+    private transient Broadcast<DecoderSpec> specBroadcast;
+    private transient KafkaLocalityCounter locality;
 
-    RecordTransform(KafkaConfig conf) {
-      this.conf = conf;
+    /**
+     * Creates the transform.
+     *
+     * @param conf the config of the source
+     * @param balancer the balancer to reshape the rdds with, if any
+     * @param kafkaParams the parameters of the consumer that looks up the leaders, or {@code null} if the locality
+     *                    of the reads is not counted
+     * @param fixedHosts the host to read each topic partition from with the fixed location strategy, or {@code null}
+     *                   with the other strategies
+     * @param metrics the metrics to report the locality to
+     */
+    RecordTransform(KafkaConfig conf, @Nullable KafkaRangeBalancer balancer,
+                    @Nullable Map<String, Object> kafkaParams, @Nullable Map<TopicPartition, String> fixedHosts,
+                    StageMetrics metrics) {
+      this.spec = new DecoderSpec(conf);
+      this.balancer = balancer;
+      this.kafkaParams = kafkaParams == null ? null : new HashMap<>(kafkaParams);
+      this.fixedHosts = fixedHosts == null ? null : new HashMap<>(fixedHosts);
+      this.metrics = metrics;
     }
 
     @Override
     public JavaRDD<StructuredRecord> call(JavaRDD<ConsumerRecord<byte[], byte[]>> input, Time batchTime) {
-      Function<ConsumerRecord<byte[], byte[]>, StructuredRecord> recordFunction = conf.getFormat() == null ?
-        new BytesFunction(batchTime.milliseconds(), conf) :
-        new FormatFunction(batchTime.milliseconds(), conf);
-      return input.map(recordFunction);
+      if (specBroadcast == null) {
+        specBroadcast = JavaSparkContext.fromSparkContext(input.context()).broadcast(spec);
+      }
+      HashMap<TopicPartition, String> leaderHosts = null;
+      if (kafkaParams != null) {
+        if (locality == null) {
+          locality = new KafkaLocalityCounter(JavaSparkContext.fromSparkContext(input.context()));
+        }
+        locality.report(metrics);
+        leaderHosts = getLeaderHosts(input);
+      }
+      JavaRDD<ConsumerRecord<byte[], byte[]>> rdd = input;
+      if (balancer != null) {
+        Map<TopicPartition, String> preferredHosts = fixedHosts != null ? fixedHosts
+          : leaderHosts != null ? leaderHosts : Collections.<TopicPartition, String>emptyMap();
+        rdd = balancer.balance(input, preferredHosts);
+      }
+      return rdd.mapPartitions(new RecordFunction(batchTime.milliseconds(), specBroadcast, locality, leaderHosts));
+    }
+
+    /**
+     * Returns the current host of the leader broker of the partitions read by the given rdd of the direct stream.
+     */
+    private HashMap<TopicPartition, String> getLeaderHosts(JavaRDD<ConsumerRecord<byte[], byte[]>> input) {
+      Set<TopicPartition> topicPartitions = new HashSet<>();
+      for (OffsetRange range : ((HasOffsetRanges) input.rdd()).offsetRanges()) {
+        topicPartitions.add(range.topicPartition());
+      }
+      try (Consumer<byte[], byte[]> consumer = new KafkaConsumer<>(kafkaParams, new ByteArrayDeserializer(),
+                                                                   new ByteArrayDeserializer())) {
+        return new HashMap<>(KafkaStreamingSourceUtil.getLeaderHosts(consumer, topicPartitions));
+      } catch (KafkaException e) {
+        LOG.warn("Failed to look up the leaders of {}, the reads of this batch are counted as remote.",
+                 topicPartitions, e);
+        return new HashMap<>();
+      }
     }
   }
 
-  private static Set<Integer> getPartitions(Consumer<byte[], byte[]> consumer, KafkaConfig conf,
-                                            FailureCollector collector) {
+  /**
+   * Returns the topic partitions to read from. The partitions of the topics matching the topic pattern are looked up
+   * together with the given topics in a single metadata request.
+   */
+  private static Set<TopicPartition> getTopicPartitions(Consumer<byte[], byte[]> consumer, KafkaConfig conf,
+                                                        FailureCollector collector) {
     Set<Integer> partitions = conf.getPartitions(collector);
     collector.getOrThrowException();
 
+    List<String> topics = conf.getTopics();
+    Pattern topicPattern = conf.getTopicPattern();
+    Map<String, List<PartitionInfo>> partitionInfos = new HashMap<>();
+    if (topicPattern != null || topics.size() > 1) {
+      for (Map.Entry<String, List<PartitionInfo>> entry : consumer.listTopics().entrySet()) {
+        String topic = entry.getKey();
+        if (topics.contains(topic) || (topicPattern != null && topicPattern.matcher(topic).matches())) {
+          partitionInfos.put(topic, entry.getValue());
+        }
+      }
+    } else if (partitions.isEmpty()) {
+      for (String topic : topics) {
+        List<PartitionInfo> topicPartitionInfos = consumer.partitionsFor(topic);
+        partitionInfos.put(topic, topicPartitionInfos == null ? Collections.emptyList() : topicPartitionInfos);
+      }
+    }
+
+    Set<TopicPartition> topicPartitions = new HashSet<>();
     if (!partitions.isEmpty()) {
-      return partitions;
+      Set<String> topicsToRead = new HashSet<>(topics);
+      topicsToRead.addAll(partitionInfos.keySet());
+      for (String topic : topicsToRead) {
+        for (Integer partition : partitions) {
+          topicPartitions.add(new TopicPartition(topic, partition));
+        }
+      }
+      return topicPartitions;
     }
 
-    partitions = new HashSet<>();
-    for (PartitionInfo partitionInfo : consumer.partitionsFor(conf.getTopic())) {
-      partitions.add(partitionInfo.partition());
+    for (List<PartitionInfo> topicPartitionInfos : partitionInfos.values()) {
+      for (PartitionInfo partitionInfo : topicPartitionInfos) {
+        topicPartitions.add(new TopicPartition(partitionInfo.topic(), partitionInfo.partition()));
+      }
+    }
+    return topicPartitions;
+  }
+
+  /**
+   * Returns the strategy to subscribe to the topics. A pattern subscription is used if a topic pattern is given, so
+   * that matching topics created while the pipeline is running are also read.
+   */
+  private static ConsumerStrategy<byte[], byte[]> getConsumerStrategy(KafkaConfig conf,
+                                                                       Map<String, Object> kafkaParams,
+                                                                       Map<TopicPartition, Long> offsets) {
+    Pattern topicPattern = conf.getTopicPattern();
+    if (topicPattern == null) {
+      return ConsumerStrategies.Subscribe(conf.getTopics(), kafkaParams, offsets);
+    }
+    List<String> patterns = new ArrayList<>();
+    for (String topic : conf.getTopics()) {
+      patterns.add(Pattern.quote(topic));
     }
-    return partitions;
+    patterns.add("(?:" + topicPattern.pattern() + ")");
+    return ConsumerStrategies.SubscribePattern(Pattern.compile(Joiner.on('|').join(patterns)), kafkaParams, offsets);
   }
 
   /**
-   * Common logic for transforming kafka key, message, partition, and offset into a structured record.
+   * Transforms the kafka messages of a partition into structured records.
    * Everything here should be serializable, as Spark Streaming will serialize all functions.
    */
-  private abstract static class BaseFunction implements Function<ConsumerRecord<byte[], byte[]>, StructuredRecord> {
+  private static class RecordFunction
+    implements FlatMapFunction<Iterator<ConsumerRecord<byte[], byte[]>>, StructuredRecord> {
     private final long ts;
-    protected final KafkaConfig conf;
-    private transient String messageField;
-    private transient String timeField;
-    private transient String keyField;
-    private transient String partitionField;
-    private transient String offsetField;
-    private transient Schema schema;
-
-    BaseFunction(long ts, KafkaConfig conf) {
+    private final Broadcast<DecoderSpec> spec;
+    private final KafkaLocalityCounter locality;
+    private final HashMap<TopicPartition, String> leaderHosts;
+
+    RecordFunction(long ts, Broadcast<DecoderSpec> spec, @Nullable KafkaLocalityCounter locality,
+                   @Nullable HashMap<TopicPartition, String> leaderHosts) {
       this.ts = ts;
-      this.conf = conf;
+      this.spec = spec;
+      this.locality = locality;
+      this.leaderHosts = leaderHosts;
     }
 
     @Override
-    public StructuredRecord call(ConsumerRecord<byte[], byte[]> in) throws Exception {
-      // first time this was called, initialize schema and time, key, and message fields.
-      if (schema == null) {
-        schema = conf.getSchema();
-        timeField = conf.getTimeField();
-        keyField = conf.getKeyField();
-        partitionField = conf.getPartitionField();
-        offsetField = conf.getOffsetField();
-        for (Schema.Field field : schema.getFields()) {
-          String name = field.getName();
-          if (!name.equals(timeField) && !name.equals(keyField)) {
-            messageField = name;
-            break;
-          }
-        }
-      }
-
-      StructuredRecord.Builder builder = StructuredRecord.builder(schema);
-      if (timeField != null) {
-        builder.set(timeField, ts);
-      }
-      if (keyField != null) {
-        builder.set(keyField, in.key());
-      }
-      if (partitionField != null) {
-        builder.set(partitionField, in.partition());
-      }
-      if (offsetField != null) {
-        builder.set(offsetField, in.offset());
-      }
-      addMessage(builder, messageField, in.value());
-      return builder.build();
+    public Iterator<StructuredRecord> call(Iterator<ConsumerRecord<byte[], byte[]>> input) throws Exception {
+      MessageDecoder decoder = MessageDecoder.get(spec.value());
+      Iterator<ConsumerRecord<byte[], byte[]>> records = locality == null ? input
+        : locality.count(input, leaderHosts);
+      return Iterators.transform(records, in -> decoder.decode(in, ts));
     }
-
-    protected abstract void addMessage(StructuredRecord.Builder builder, String messageField,
-                                       byte[] message) throws Exception;
   }
 
   /**
-   * Transforms kafka key and message into a structured record when message format is not given.
-   * Everything here should be serializable, as Spark Streaming will serialize all functions.
+   * The schemas and field names needed to transform kafka messages into structured records, parsed once on the
+   * driver.
    */
-  private static class BytesFunction extends BaseFunction {
+  private static final class DecoderSpec implements Serializable {
+    private static final long serialVersionUID = -2739421896185301517L;
 
-    BytesFunction(long ts, KafkaConfig conf) {
-      super(ts, conf);
+    private final Schema schema;
+    private final Schema messageSchema;
+    private final String format;
+    private final String messageField;
+    private final String timeField;
+    private final String keyField;
+    private final String partitionField;
+    private final String offsetField;
+    private final String topicField;
+
+    DecoderSpec(KafkaConfig conf) {
+      this.schema = conf.getSchema();
+      this.messageSchema = conf.getMessageSchema();
+      this.format = conf.getFormat();
+      this.messageField = messageSchema.getFields().get(0).getName();
+      this.timeField = conf.getTimeField();
+      this.keyField = conf.getKeyField();
+      this.partitionField = conf.getPartitionField();
+      this.offsetField = conf.getOffsetField();
+      this.topicField = conf.getTopicField();
     }
 
     @Override
-    protected void addMessage(StructuredRecord.Builder builder, String messageField, byte[] message) {
-      builder.set(messageField, message);
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (o == null || getClass() != o.getClass()) {
+        return false;
+      }
+      DecoderSpec that = (DecoderSpec) o;
+      return schema.equals(that.schema) && Objects.equals(format, that.format)
+        && Objects.equals(timeField, that.timeField) && Objects.equals(keyField, that.keyField)
+        && Objects.equals(partitionField, that.partitionField) && Objects.equals(offsetField, that.offsetField)
+        && Objects.equals(topicField, that.topicField);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(schema, format, timeField, keyField, partitionField, offsetField, topicField);
     }
   }
 
   /**
-   * Transforms kafka key and message into a structured record when message format and schema are given.
-   * Everything here should be serializable, as Spark Streaming will serialize all functions.
+   * Transforms kafka messages into structured records. Decoders hold the initialized record format, which is not
+   * thread safe, hence they are cached per thread. This allows the tasks of all the batches running on the same
+   * executor thread to reuse the same decoder.
    */
-  private static class FormatFunction extends BaseFunction {
-    private transient RecordFormat<ByteBuffer, StructuredRecord> recordFormat;
+  private static final class MessageDecoder {
+    private static final ThreadLocal<Map<DecoderSpec, MessageDecoder>> DECODERS =
+      ThreadLocal.withInitial(HashMap::new);
+
+    private final DecoderSpec spec;
+    private final KafkaRecordDecoder recordDecoder;
+
+    static MessageDecoder get(DecoderSpec spec) throws Exception {
+      Map<DecoderSpec, MessageDecoder> decoders = DECODERS.get();
+      MessageDecoder decoder = decoders.get(spec);
+      if (decoder == null) {
+        decoder = new MessageDecoder(spec);
+        decoders.put(spec, decoder);
+      }
+      return decoder;
+    }
 
-    FormatFunction(long ts, KafkaConfig conf) {
-      super(ts, conf);
+    private MessageDecoder(DecoderSpec spec) throws Exception {
+      this.spec = spec;
+      this.recordDecoder = spec.format == null
+        ? null : new KafkaRecordDecoder(spec.schema, spec.messageSchema, spec.format);
     }
 
-    @Override
-    protected void addMessage(StructuredRecord.Builder builder, String messageField, byte[] message) throws Exception {
-      // first time this was called, initialize record format
-      if (recordFormat == null) {
-        Schema messageSchema = conf.getMessageSchema();
-        FormatSpecification spec =
-          new FormatSpecification(conf.getFormat(), messageSchema, new HashMap<>());
-        recordFormat = RecordFormats.createInitializedFormat(spec);
+    StructuredRecord decode(ConsumerRecord<byte[], byte[]> in, long ts) {
+      // Without time, key, partition, offset or topic fields, the output record is decoded directly
+      if (recordDecoder != null && recordDecoder.isPassThrough()) {
+        return recordDecoder.decode(ByteBuffer.wrap(in.value()));
       }
 
-      StructuredRecord messageRecord = recordFormat.read(ByteBuffer.wrap(message));
-      for (Schema.Field field : messageRecord.getSchema().getFields()) {
-        String fieldName = field.getName();
-        builder.set(fieldName, messageRecord.get(fieldName));
+      StructuredRecord.Builder builder = StructuredRecord.builder(spec.schema);
+      if (spec.timeField != null) {
+        builder.set(spec.timeField, ts);
+      }
+      if (spec.keyField != null) {
+        builder.set(spec.keyField, in.key());
+      }
+      if (spec.partitionField != null) {
+        builder.set(spec.partitionField, in.partition());
       }
+      if (spec.offsetField != null) {
+        builder.set(spec.offsetField, in.offset());
+      }
+      if (spec.topicField != null) {
+        builder.set(spec.topicField, in.topic());
+      }
+      if (recordDecoder == null) {
+        builder.set(spec.messageField, in.value());
+      } else {
+        recordDecoder.decode(ByteBuffer.wrap(in.value()), builder);
+      }
+      return builder.build();
     }
   }
 
@@ -42,4 +42,9 @@ public class KafkaBatchSourceTest extends AbstractKafkaBatchSourceTest {
   protected String getKafkaBatchSourceName() {
     return KafkaBatchSource.NAME;
   }
+
+  @Override
+  protected boolean supportsMultipleTopics() {
+    return true;
+  }
 }
@@ -0,0 +1,127 @@
+/*
+ * Copyright © 2022 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package io.cdap.plugin.batch.source;
+
+import com.sun.management.ThreadMXBean;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.mapreduce.TaskAttemptID;
+import org.apache.hadoop.mapreduce.task.TaskAttemptContextImpl;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.clients.consumer.MockConsumer;
+import org.apache.kafka.clients.consumer.OffsetResetStrategy;
+import org.apache.kafka.common.TopicPartition;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Tests for {@link Kafka10Reader}.
+ */
+public class Kafka10ReaderTest {
+
+  private static final String TOPIC = "test";
+  private static final byte[] KEY = "key".getBytes();
+  private static final byte[] PAYLOAD = "payload".getBytes();
+  private static final int POLL_RECORDS = 10000;
+
+  @Test
+  public void testAllocationPerRecord() throws Exception {
+    Assume.assumeTrue(ManagementFactory.getThreadMXBean() instanceof ThreadMXBean);
+    ThreadMXBean mxBean = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+    Assume.assumeTrue(mxBean.isThreadAllocatedMemorySupported() && mxBean.isThreadAllocatedMemoryEnabled());
+
+    // Warm up so that the measurement is not affected by class loading and compilation
+    readAll(createRecordReader(100000), 100000);
+
+    int records = 200000;
+    KafkaRecordReader recordReader = createRecordReader(records);
+    long threadId = Thread.currentThread().getId();
+    long before = mxBean.getThreadAllocatedBytes(threadId);
+    readAll(recordReader, records);
+    long allocated = mxBean.getThreadAllocatedBytes(threadId) - before;
+
+    // Allow a small overhead per poll, which is far below one object per record
+    Assert.assertTrue("Allocated " + allocated + " bytes for " + records + " records",
+                      allocated < records / 8);
+  }
+
+  private void readAll(KafkaRecordReader recordReader, int records) {
+    KafkaKey key = recordReader.getCurrentKey();
+    long count = 0;
+    long size = 0;
+    while (recordReader.nextKeyValue()) {
+      KafkaMessage value = recordReader.getCurrentValue();
+      size += value.getKeyBytes().length + value.getPayloadBytes().length;
+      Assert.assertEquals(++count, key.getOffset());
+    }
+    recordReader.close();
+    Assert.assertEquals(records, count);
+    Assert.assertEquals(count * (KEY.length + PAYLOAD.length), size);
+  }
+
+  /**
+   * Creates a record reader that reads the given number of records with a {@link Kafka10Reader}. The consumer
+   * records are created upfront, so that only the allocations of the readers are measured.
+   */
+  private KafkaRecordReader createRecordReader(int records) throws Exception {
+    TopicPartition topicPartition = new TopicPartition(TOPIC, 0);
+    List<ConsumerRecords<byte[], byte[]>> polls = new ArrayList<>();
+    for (int offset = 0; offset < records; offset += POLL_RECORDS) {
+      List<ConsumerRecord<byte[], byte[]>> batch = new ArrayList<>();
+      for (int i = offset; i < Math.min(records, offset + POLL_RECORDS); i++) {
+        batch.add(new ConsumerRecord<>(TOPIC, 0, i, KEY, PAYLOAD));
+      }
+      polls.add(new ConsumerRecords<>(Collections.singletonMap(topicPartition, batch)));
+    }
+    PollsMockConsumer consumer = new PollsMockConsumer(polls);
+    consumer.updateBeginningOffsets(Collections.singletonMap(topicPartition, 0L));
+
+    KafkaRecordReader recordReader = new KafkaRecordReader(
+      request -> new Kafka10Reader(Collections.singletonList(request), consumer));
+    KafkaRequest request = new KafkaRequest(TOPIC, 0, Collections.emptyMap(), 0L, records);
+    recordReader.initialize(new KafkaSplit(request),
+                            new TaskAttemptContextImpl(new Configuration(), new TaskAttemptID()));
+    return recordReader;
+  }
+
+  /**
+   * A {@link MockConsumer} that returns the given records one poll after the other, like a consumer bounded by
+   * max.poll.records. The records are not added to the {@link MockConsumer} itself, because it allocates for every
+   * record it returns from a poll.
+   */
+  private static final class PollsMockConsumer extends MockConsumer<byte[], byte[]> {
+    private final Iterator<ConsumerRecords<byte[], byte[]>> polls;
+
+    PollsMockConsumer(List<ConsumerRecords<byte[], byte[]>> polls) {
+      super(OffsetResetStrategy.EARLIEST);
+      this.polls = polls.iterator();
+    }
+
+    @Override
+    public synchronized ConsumerRecords<byte[], byte[]> poll(long timeout) {
+      return polls.hasNext() ? polls.next() : ConsumerRecords.<byte[], byte[]>empty();
+    }
+  }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright © 2022 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package io.cdap.plugin.sink;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.mapreduce.Counters;
+import org.apache.hadoop.mapreduce.OutputCommitter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.TaskAttemptID;
+import org.apache.hadoop.mapreduce.TaskType;
+import org.apache.kafka.clients.producer.MockProducer;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests for the output committer of {@link KafkaOutputFormat}.
+ */
+public class KafkaOutputFormatTest {
+
+  private static final AtomicInteger TASK_ID = new AtomicInteger();
+
+  @Test
+  public void testCommitAfterClose() throws Exception {
+    KafkaOutputFormat outputFormat = new KafkaOutputFormat();
+    Counters counters = new Counters();
+    TaskAttemptContext context = createContext(counters);
+    OutputCommitter committer = outputFormat.getOutputCommitter(context);
+    Assert.assertFalse(committer.needsTaskCommit(context));
+
+    MockProducer<byte[], byte[]> mock = new MockProducer<>(false, new ByteArraySerializer(), new ByteArraySerializer());
+    KafkaRecordWriter writer = outputFormat.createRecordWriter(context, KafkaRecordWriterTest.acquire("commit", mock));
+    Assert.assertTrue(committer.needsTaskCommit(context));
+    writer.write(null, toWritable("value"));
+
+    // Spark closes the writer before committing the task, which is when the messages are flushed
+    writer.close(context);
+    Assert.assertEquals(1, mock.history().size());
+    Assert.assertNotNull(counters.getGroup(KafkaRecordWriter.COUNTER_GROUP)
+                           .findCounter(KafkaRecordWriter.PENDING_BYTES_COUNTER, false));
+
+    committer.commitTask(context);
+    Assert.assertFalse(committer.needsTaskCommit(context));
+    KafkaRecordWriterTest.assertReleased(mock);
+  }
+
+  @Test
+  public void testCommitFailsTask() throws Exception {
+    KafkaOutputFormat outputFormat = new KafkaOutputFormat();
+    TaskAttemptContext context = createContext(new Counters());
+    OutputCommitter committer = outputFormat.getOutputCommitter(context);
+
+    MockProducer<byte[], byte[]> mock = new MockProducer<>(false, new ByteArraySerializer(), new ByteArraySerializer());
+    KafkaRecordWriter writer = outputFormat.createRecordWriter(context, KafkaRecordWriterTest.acquire("fail", mock));
+    writer.write(null, toWritable("value"));
+    Assert.assertTrue(mock.errorNext(new RuntimeException("Broker not available")));
+    try {
+      writer.close(context);
+      Assert.fail("Expected the failure to send a message to be thrown by close");
+    } catch (IOException e) {
+      // expected, a failure of close does not always fail the task
+    }
+
+    try {
+      committer.commitTask(context);
+      Assert.fail("Expected the failure to send a message to fail the task");
+    } catch (IOException e) {
+      Assert.assertTrue(e.getCause() instanceof RuntimeException);
+    }
+    Assert.assertFalse(committer.needsTaskCommit(context));
+    KafkaRecordWriterTest.assertReleased(mock);
+  }
+
+  @Test
+  public void testCommitWithoutClose() throws Exception {
+    KafkaOutputFormat outputFormat = new KafkaOutputFormat();
+    TaskAttemptContext context = createContext(new Counters());
+    OutputCommitter committer = outputFormat.getOutputCommitter(context);
+
+    MockProducer<byte[], byte[]> mock = new MockProducer<>(false, new ByteArraySerializer(), new ByteArraySerializer());
+    KafkaRecordWriter writer = outputFormat.createRecordWriter(context, KafkaRecordWriterTest.acquire("open", mock));
+    writer.write(null, toWritable("value"));
+
+    // Committing closes the writer if it is still open
+    committer.commitTask(context);
+    Assert.assertEquals(1, mock.history().size());
+    KafkaRecordWriterTest.assertReleased(mock);
+  }
+
+  @Test
+  public void testAbortTask() throws Exception {
+    KafkaOutputFormat outputFormat = new KafkaOutputFormat();
+    TaskAttemptContext context = createContext(new Counters());
+    OutputCommitter committer = outputFormat.getOutputCommitter(context);
+
+    MockProducer<byte[], byte[]> mock = new MockProducer<>(false, new ByteArraySerializer(), new ByteArraySerializer());
+    KafkaRecordWriter writer = outputFormat.createRecordWriter(context, KafkaRecordWriterTest.acquire("abort", mock));
+    writer.write(null, toWritable("value"));
+
+    // Aborting releases the producer and forgets the writer, so that the task is not committed
+    committer.abortTask(context);
+    KafkaRecordWriterTest.assertReleased(mock);
+    Assert.assertFalse(committer.needsTaskCommit(context));
+    committer.commitTask(context);
+  }
+
+  @Test
+  public void testTasksAreSeparate() throws Exception {
+    KafkaOutputFormat outputFormat = new KafkaOutputFormat();
+    TaskAttemptContext first = createContext(new Counters());
+    TaskAttemptContext second = createContext(new Counters());
+    OutputCommitter committer = outputFormat.getOutputCommitter(first);
+
+    MockProducer<byte[], byte[]> firstMock = new MockProducer<>(false, new ByteArraySerializer(),
+                                                                new ByteArraySerializer());
+    MockProducer<byte[], byte[]> secondMock = new MockProducer<>(false, new ByteArraySerializer(),
+                                                                 new ByteArraySerializer());
+    outputFormat.createRecordWriter(first, KafkaRecordWriterTest.acquire("first", firstMock));
+    outputFormat.createRecordWriter(second, KafkaRecordWriterTest.acquire("second", secondMock));
+
+    // Each task only commits or aborts its own writer
+    committer.abortTask(first);
+    KafkaRecordWriterTest.assertReleased(firstMock);
+    Assert.assertTrue(committer.needsTaskCommit(second));
+    committer.commitTask(second);
+    KafkaRecordWriterTest.assertReleased(secondMock);
+  }
+
+  private TaskAttemptContext createContext(Counters counters) {
+    Configuration conf = new Configuration();
+    conf.set("topic", "test");
+    TaskAttemptID taskAttemptID = new TaskAttemptID(KafkaOutputFormatTest.class.getSimpleName(), 0, TaskType.MAP,
+                                                    TASK_ID.incrementAndGet(), 0);
+    return KafkaRecordWriterTest.createContext(conf, taskAttemptID, counters);
+  }
+
+  private static BytesWritable toWritable(String value) {
+    return new BytesWritable(value.getBytes(StandardCharsets.UTF_8));
+  }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright © 2022 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package io.cdap.plugin.sink;
+
+import io.cdap.plugin.common.KafkaProducerPool;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.mapreduce.Counter;
+import org.apache.hadoop.mapreduce.Counters;
+import org.apache.hadoop.mapreduce.StatusReporter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.TaskAttemptID;
+import org.apache.hadoop.mapreduce.task.TaskAttemptContextImpl;
+import org.apache.kafka.clients.producer.MockProducer;
+import org.apache.kafka.clients.producer.Producer;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Properties;
+
+/**
+ * Tests for {@link KafkaRecordWriter}.
+ */
+public class KafkaRecordWriterTest {
+
+  private static final String TOPIC = "test";
+
+  @Test
+  public void testFailureOnNextWrite() throws Exception {
+    MockProducer<byte[], byte[]> mock = new MockProducer<>(false, new ByteArraySerializer(), new ByteArraySerializer());
+    KafkaRecordWriter writer = new KafkaRecordWriter(acquire("write", mock), TOPIC);
+    TaskAttemptContext context = createContext(new Counters());
+    writer.write(null, toWritable("first"));
+    Assert.assertTrue(mock.errorNext(new RuntimeException("Broker not available")));
+
+    // The failure of the callback is thrown by the next write, by close and by commit
+    assertFailure(() -> writer.write(null, toWritable("second")));
+    Assert.assertEquals(1, mock.history().size());
+    assertFailure(() -> writer.close(context));
+    assertFailure(() -> writer.commit(context));
+    assertReleased(mock);
+  }
+
+  @Test
+  public void testFailureOnClose() throws Exception {
+    MockProducer<byte[], byte[]> mock = new MockProducer<>(false, new ByteArraySerializer(), new ByteArraySerializer());
+    KafkaRecordWriter writer = new KafkaRecordWriter(acquire("close", mock), TOPIC);
+    TaskAttemptContext context = createContext(new Counters());
+    writer.write(toWritable("key"), toWritable("first"));
+    writer.write(toWritable("key"), toWritable("second"));
+    Assert.assertTrue(mock.completeNext());
+    Assert.assertTrue(mock.errorNext(new RuntimeException("Message too large")));
+
+    assertFailure(() -> writer.close(context));
+    assertReleased(mock);
+    // The failure is thrown again when committing, even if the call that threw it did not fail the task
+    assertFailure(() -> writer.commit(context));
+  }
+
+  @Test
+  public void testClose() throws Exception {
+    MockProducer<byte[], byte[]> mock = new MockProducer<>(false, new ByteArraySerializer(), new ByteArraySerializer());
+    KafkaRecordWriter writer = new KafkaRecordWriter(acquire("commit", mock), TOPIC);
+    Counters counters = new Counters();
+    TaskAttemptContext context = createContext(counters);
+    for (int i = 0; i < 3; i++) {
+      writer.write(toWritable("key" + i), toWritable("value" + i));
+    }
+    // Closing flushes the producer, which sends the messages in flight
+    writer.close(context);
+    Assert.assertEquals(3, mock.history().size());
+    Assert.assertEquals("value2", new String(mock.history().get(2).value(), StandardCharsets.UTF_8));
+    Assert.assertNotNull(counters.findCounter(KafkaRecordWriter.COUNTER_GROUP, KafkaRecordWriter.FLUSH_TIME_COUNTER));
+
+    // Closing again and committing do not release the producer twice
+    writer.close(context);
+    writer.commit(context);
+    assertReleased(mock);
+  }
+
+  @Test
+  public void testAbort() throws Exception {
+    MockProducer<byte[], byte[]> mock = new MockProducer<>(false, new ByteArraySerializer(), new ByteArraySerializer());
+    KafkaRecordWriter writer = new KafkaRecordWriter(acquire("abort", mock), TOPIC);
+    writer.write(null, toWritable("value"));
+
+    // Aborting releases the producer without waiting for the message in flight
+    writer.abort();
+    assertReleased(mock);
+    writer.abort();
+    writer.close(createContext(new Counters()));
+  }
+
+  @Test
+  public void testSyncWrites() throws Exception {
+    MockProducer<byte[], byte[]> mock = new MockProducer<>(true, new ByteArraySerializer(), new ByteArraySerializer());
+    KafkaRecordWriter writer = new KafkaRecordWriter(acquire("sync", mock), TOPIC, true);
+    writer.write(null, toWritable("value"));
+    Assert.assertEquals(1, mock.history().size());
+    writer.close(createContext(new Counters()));
+    assertReleased(mock);
+  }
+
+  /**
+   * Acquires the given producer from the pool, as the output format does.
+   */
+  static Producer<byte[], byte[]> acquire(String clientId, MockProducer<byte[], byte[]> mock) {
+    Properties props = new Properties();
+    props.put("bootstrap.servers", "localhost:9092");
+    props.put("client.id", KafkaRecordWriterTest.class.getSimpleName() + "-" + clientId + "-" + System.nanoTime());
+    return KafkaProducerPool.acquire(props, p -> mock);
+  }
+
+  /**
+   * Asserts that the given producer was given back to the pool by everyone who acquired it.
+   */
+  static void assertReleased(Producer<byte[], byte[]> producer) {
+    try {
+      KafkaProducerPool.release(producer);
+      Assert.fail("Expected the producer to be released already");
+    } catch (IllegalStateException e) {
+      // expected
+    }
+  }
+
+  /**
+   * Creates a task attempt context that reports to the given counters.
+   */
+  static TaskAttemptContext createContext(Counters counters) {
+    return createContext(new Configuration(), new TaskAttemptID(), counters);
+  }
+
+  /**
+   * Creates a context for the given task attempt that reports to the given counters.
+   */
+  static TaskAttemptContext createContext(Configuration conf, TaskAttemptID taskAttemptID, Counters counters) {
+    return new TaskAttemptContextImpl(conf, taskAttemptID, new StatusReporter() {
+      @Override
+      public Counter getCounter(Enum<?> name) {
+        return counters.findCounter(name);
+      }
+
+      @Override
+      public Counter getCounter(String group, String name) {
+        return counters.findCounter(group, name);
+      }
+
+      @Override
+      public void progress() {
+        // no-op
+      }
+
+      @Override
+      public float getProgress() {
+        return 0;
+      }
+
+      @Override
+      public void setStatus(String status) {
+        // no-op
+      }
+    });
+  }
+
+  private static BytesWritable toWritable(String value) {
+    return new BytesWritable(value.getBytes(StandardCharsets.UTF_8));
+  }
+
+  private static void assertFailure(WriterCall call) throws Exception {
+    try {
+      call.call();
+      Assert.fail("Expected the failure to send a message to be thrown");
+    } catch (IOException e) {
+      Assert.assertTrue(e.getCause() instanceof RuntimeException);
+    }
+  }
+
+  /**
+   * A call to the writer.
+   */
+  private interface WriterCall {
+    void call() throws Exception;
+  }
+}
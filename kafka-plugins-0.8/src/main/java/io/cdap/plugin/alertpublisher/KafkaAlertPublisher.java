@@ -29,19 +29,25 @@ import io.cdap.cdap.etl.api.AlertPublisher;
 import io.cdap.cdap.etl.api.AlertPublisherContext;
 import io.cdap.cdap.etl.api.FailureCollector;
 import io.cdap.cdap.etl.api.PipelineConfigurer;
+import io.cdap.plugin.common.KafkaProducerPool;
 import io.cdap.plugin.common.KeyValueListParser;
 import kafka.common.Topic;
-import org.apache.kafka.clients.producer.KafkaProducer;
+import org.apache.kafka.clients.producer.Producer;
 import org.apache.kafka.clients.producer.ProducerConfig;
 import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.clients.producer.RecordMetadata;
 import org.apache.kafka.common.errors.InvalidTopicException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import javax.annotation.Nullable;
 
 /**
@@ -54,10 +60,12 @@ public class KafkaAlertPublisher extends AlertPublisher {
   private static final Gson GSON = new Gson();
   private final Config config;
 
-  private KafkaProducer<String, String> producer;
+  private final List<Future<RecordMetadata>> pending;
+  private Producer<String, String> producer;
 
   public KafkaAlertPublisher(Config config) {
     this.config = config;
+    this.pending = new ArrayList<>();
   }
 
   @Override
@@ -82,17 +90,19 @@ public class KafkaAlertPublisher extends AlertPublisher {
       props.put(producerProperty.getKey(), producerProperty.getValue());
     }
 
-    this.producer = new KafkaProducer<>(props);
+    this.producer = KafkaProducerPool.acquire(props);
   }
 
   @Override
   public void publish(Iterator<Alert> iterator) throws Exception {
+    // Only the alerts that are not sent yet need to be waited for
+    pending.removeIf(Future::isDone);
     while (iterator.hasNext()) {
       String alert = GSON.toJson(iterator.next());
       try {
         // We do not specify key here. So the topic partitions will be chosen in round robin fashion.
         ProducerRecord<String, String> record = new ProducerRecord<>(config.topic, alert);
-        producer.send(record);
+        pending.add(producer.send(record));
       } catch (Exception e) {
         // catch the exception and continue processing rest of the alerts
         LOG.error("Exception while emitting alert {}", alert, e);
@@ -104,7 +114,22 @@ public class KafkaAlertPublisher extends AlertPublisher {
   @Override
   public void destroy() {
     super.destroy();
-    producer.close();
+    if (producer == null) {
+      return;
+    }
+    // The producer is shared and has no flush, hence wait for the alerts published before giving it back
+    try {
+      for (Future<RecordMetadata> future : pending) {
+        future.get();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException e) {
+      LOG.error("Exception while emitting alert", e.getCause());
+    } finally {
+      pending.clear();
+      KafkaProducerPool.release(producer);
+    }
   }
 
   /**
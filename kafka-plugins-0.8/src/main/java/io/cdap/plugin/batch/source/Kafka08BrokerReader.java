@@ -0,0 +1,307 @@
+/*
+ * Copyright © 2022 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package io.cdap.plugin.batch.source;
+
+import kafka.api.PartitionFetchInfo;
+import kafka.common.ErrorMapping;
+import kafka.common.TopicAndPartition;
+import kafka.javaapi.FetchRequest;
+import kafka.javaapi.FetchResponse;
+import kafka.javaapi.consumer.SimpleConsumer;
+import kafka.javaapi.message.ByteBufferMessageSet;
+import kafka.message.Message;
+import kafka.message.MessageAndOffset;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.function.Function;
+
+/**
+ * A {@link KafkaReader} that reads the requests for partitions led by the same broker over a single connection,
+ * with fetch requests covering several of the partitions that are not completely read yet. The partitions are fetched
+ * in turns, with at most {@link #MAX_REQUEST_BYTES} requested by one fetch request unless a single partition needs
+ * more, so that the size of a response stays bounded however many partitions the split has. The messages of each
+ * fetch response are returned one partition after the other.
+ *
+ * Partitions whose leader is not the broker of this reader, either from the start or because the leader changed
+ * while reading, are read afterwards by a {@link Kafka08Reader} each, which handles the leader refresh and retries.
+ */
+final class Kafka08BrokerReader implements KafkaReader {
+  private static final Logger LOG = LoggerFactory.getLogger(Kafka08BrokerReader.class);
+  // The maximum number of bytes requested by one fetch request, same as the fetch.max.bytes default of newer clients
+  static final long MAX_REQUEST_BYTES = 50L * 1024 * 1024;
+
+  private final Map<TopicAndPartition, PartitionState> states;
+  private final List<KafkaRequest> fallbackRequests;
+  private final int fetchSize;
+  private final int fetchMinBytes;
+  private final int fetchMaxWaitMs;
+  private final InetSocketAddress leader;
+  private final SimpleConsumer simpleConsumer;
+  private final Function<KafkaRequest, KafkaReader> fallbackFunction;
+
+  private Iterator<PartitionState> stateIter;
+  private PartitionState currentState;
+  private MessageAndOffset nextMessage;
+  private KafkaReader fallbackReader;
+
+  /**
+   * Construct a reader for the given {@link KafkaRequest}s. Each request must be for a different partition.
+   */
+  Kafka08BrokerReader(List<KafkaRequest> requests) {
+    this(requests, Kafka08Reader::createConsumer, Kafka08Reader::new);
+  }
+
+  /**
+   * Construct a reader for the given {@link KafkaRequest}s, which connects to the leader with a consumer created by
+   * the given function and reads the partitions that are not read from the leader with readers created by the other
+   * given function. Each request must be for a different partition.
+   */
+  Kafka08BrokerReader(List<KafkaRequest> requests, Function<InetSocketAddress, SimpleConsumer> consumerFunction,
+                      Function<KafkaRequest, KafkaReader> fallbackFunction) {
+    Map<String, String> conf = requests.get(0).getConf();
+    //no failureCollector is available here
+    Map<String, Integer> brokers = KafkaBatchConfig.parseBrokerMap(conf.get(KafkaInputFormat.KAFKA_BROKERS), null);
+    this.fetchSize = Kafka08Reader.getInt(conf, KafkaInputFormat.FETCH_SIZE_BYTES, Kafka08Reader.fetchBufferSize);
+    this.fetchMinBytes = Kafka08Reader.getInt(conf, KafkaInputFormat.FETCH_MIN_BYTES,
+                                              Kafka08Reader.DEFAULT_FETCH_MIN_BYTES);
+    this.fetchMaxWaitMs = Kafka08Reader.getInt(conf, KafkaInputFormat.FETCH_MAX_WAIT_MS,
+                                               Kafka08Reader.DEFAULT_FETCH_MAX_WAIT_MS);
+
+    KafkaRequest first = requests.get(0);
+    this.leader = KafkaLeaderCache.getLeader(brokers, first.getTopic(), first.getPartition(), first.getLeader());
+    this.states = new LinkedHashMap<>();
+    this.fallbackRequests = new ArrayList<>();
+    for (KafkaRequest request : requests) {
+      if (request.getStartOffset() >= request.getEndOffset()) {
+        continue;
+      }
+      InetSocketAddress requestLeader = KafkaLeaderCache.getLeader(brokers, request.getTopic(),
+                                                                   request.getPartition(), request.getLeader());
+      if (leader.equals(requestLeader)) {
+        states.put(new TopicAndPartition(request.getTopic(), request.getPartition()), new PartitionState(request));
+      } else {
+        fallbackRequests.add(request);
+      }
+    }
+    this.fallbackFunction = fallbackFunction;
+    this.simpleConsumer = consumerFunction.apply(leader);
+  }
+
+  @Override
+  public boolean hasNext() {
+    while (nextMessage == null) {
+      if (fallbackReader != null) {
+        return fallbackReader.hasNext();
+      }
+      if (currentState != null && currentState.messageIter != null && currentState.messageIter.hasNext()) {
+        MessageAndOffset msgAndOffset = currentState.messageIter.next();
+        // A compressed message set can contain messages before the requested offset, which are skipped
+        if (msgAndOffset.offset() < currentState.currentOffset) {
+          continue;
+        }
+        // Messages past the end offset belong to the next split of the same partition
+        if (msgAndOffset.offset() >= currentState.endOffset) {
+          currentState.finish();
+          continue;
+        }
+        nextMessage = msgAndOffset;
+      } else if (stateIter != null && stateIter.hasNext()) {
+        currentState = stateIter.next();
+      } else if (!fetch()) {
+        // All the partitions led by the broker are read, continue with the ones to read separately
+        fallbackReader = new ChainedKafkaReader(fallbackRequests, fallbackFunction);
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public void getNext(KafkaKey kafkaKey, KafkaMessage kafkaMessage) {
+    if (!hasNext()) {
+      throw new NoSuchElementException("No message is available");
+    }
+    if (nextMessage == null) {
+      fallbackReader.getNext(kafkaKey, kafkaMessage);
+      return;
+    }
+
+    MessageAndOffset msgAndOffset = nextMessage;
+    nextMessage = null;
+    Message message = msgAndOffset.message();
+    KafkaRequest request = currentState.request;
+
+    kafkaKey.set(request.getTopic(), request.getPartition(), currentState.currentOffset, msgAndOffset.offset() + 1,
+                 message.size(), message.checksum());
+    currentState.currentOffset = msgAndOffset.offset() + 1; // increase offset
+    kafkaMessage.set(message.payload(), message.key());
+    if (currentState.currentOffset >= currentState.endOffset) {
+      currentState.finish();
+    }
+  }
+
+  /**
+   * Fetches messages for the next partitions that are not completely read with one fetch request, and demultiplexes
+   * the response into the partitions. Partitions are added to the request until their fetch sizes reach
+   * {@link #MAX_REQUEST_BYTES}, and the fetched partitions are moved behind the others, so that every partition is
+   * fetched in turn.
+   *
+   * @return {@code true} if there are partitions left to read from the broker, {@code false} otherwise
+   */
+  private boolean fetch() {
+    Map<TopicAndPartition, PartitionFetchInfo> fetchInfo = new HashMap<>();
+    List<PartitionState> fetched = new ArrayList<>();
+    long requestBytes = 0L;
+    for (PartitionState state : states.values()) {
+      if (!fetched.isEmpty() && requestBytes + state.fetchSize > MAX_REQUEST_BYTES) {
+        break;
+      }
+      fetchInfo.put(state.topicAndPartition, new PartitionFetchInfo(state.currentOffset, state.fetchSize));
+      fetched.add(state);
+      requestBytes += state.fetchSize;
+    }
+    if (fetched.isEmpty()) {
+      return false;
+    }
+    for (PartitionState state : fetched) {
+      states.remove(state.topicAndPartition);
+      states.put(state.topicAndPartition, state);
+    }
+
+    FetchRequest fetchRequest = new FetchRequest(-1, "client", fetchMaxWaitMs, fetchMinBytes, fetchInfo);
+    FetchResponse fetchResponse;
+    try {
+      fetchResponse = simpleConsumer.fetch(fetchRequest);
+    } catch (Exception e) {
+      // Let the readers of the individual partitions handle the leader refresh and retries
+      LOG.warn("Failed to fetch {} partitions from leader {}. Reading the {} partitions left separately.",
+               fetched.size(), leader, states.size(), e);
+      for (PartitionState state : new ArrayList<>(states.values())) {
+        fallback(state);
+      }
+      return false;
+    }
+
+    for (PartitionState state : fetched) {
+      KafkaRequest request = state.request;
+      short errorCode = fetchResponse.errorCode(request.getTopic(), request.getPartition());
+      if (Kafka08Reader.isLeaderError(errorCode)) {
+        LOG.info("Leader {} is no longer the leader of topic {} and partition {}. Reading it separately.", leader,
+                 request.getTopic(), request.getPartition());
+        fallback(state);
+        continue;
+      }
+      if (errorCode != ErrorMapping.NoError()) {
+        throw new IllegalStateException(String.format("Failed to fetch from topic %s and partition %d at offset %d " +
+                                                        "with error code %d", request.getTopic(),
+                                                      request.getPartition(), state.currentOffset, errorCode),
+                                        ErrorMapping.exceptionFor(errorCode));
+      }
+
+      ByteBufferMessageSet messageSet = fetchResponse.messageSet(request.getTopic(), request.getPartition());
+      if (messageSet.validBytes() == 0 && messageSet.sizeInBytes() > 0) {
+        // The next message is larger than the fetch size
+        state.increaseFetchSize();
+      } else if (messageSet.sizeInBytes() == 0) {
+        LOG.warn("No message received from topic {} and partition {} at offset {}, stopping before the end offset {}",
+                 request.getTopic(), request.getPartition(), state.currentOffset, state.endOffset);
+        state.finish();
+      } else {
+        // The fetch size is only increased for as long as it is needed to read a large message
+        state.fetchSize = fetchSize;
+        state.messageIter = messageSet.iterator();
+      }
+    }
+    stateIter = fetched.stream().filter(state -> states.containsKey(state.topicAndPartition)).iterator();
+    currentState = null;
+    return !states.isEmpty();
+  }
+
+  /**
+   * Stops reading the given partition from the broker, and reads the remaining offset range separately instead.
+   */
+  private void fallback(PartitionState state) {
+    KafkaRequest request = state.request;
+    fallbackRequests.add(new KafkaRequest(request.getTopic(), request.getPartition(), request.getConf(),
+                                          state.currentOffset, state.endOffset, request.getAverageMessageSize(),
+                                          request.getLeader()));
+    states.remove(state.topicAndPartition);
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      simpleConsumer.close();
+    } finally {
+      if (fallbackReader != null) {
+        fallbackReader.close();
+      }
+    }
+  }
+
+  /**
+   * The read state of one partition.
+   */
+  private final class PartitionState {
+    private final KafkaRequest request;
+    private final TopicAndPartition topicAndPartition;
+    private final long endOffset;
+    private long currentOffset;
+    private int fetchSize;
+    private Iterator<MessageAndOffset> messageIter;
+
+    PartitionState(KafkaRequest request) {
+      this.request = request;
+      this.topicAndPartition = new TopicAndPartition(request.getTopic(), request.getPartition());
+      this.endOffset = request.getEndOffset();
+      this.currentOffset = request.getStartOffset();
+      this.fetchSize = Kafka08BrokerReader.this.fetchSize;
+    }
+
+    /**
+     * Marks the partition as completely read, so that it is not fetched anymore.
+     */
+    void finish() {
+      currentOffset = Math.max(currentOffset, endOffset);
+      messageIter = null;
+      states.remove(topicAndPartition);
+    }
+
+    /**
+     * Doubles the fetch size for reading a message that is larger than the current fetch size.
+     */
+    void increaseFetchSize() {
+      if (fetchSize >= Kafka08Reader.MAX_FETCH_SIZE) {
+        throw new IllegalStateException(String.format("Message at offset %d in topic %s and partition %d is larger " +
+                                                        "than the maximum fetch size of %d bytes", currentOffset,
+                                                      request.getTopic(), request.getPartition(),
+                                                      Kafka08Reader.MAX_FETCH_SIZE));
+      }
+      fetchSize = (int) Math.min(Kafka08Reader.MAX_FETCH_SIZE, fetchSize * 2L);
+    }
+  }
+}
@@ -17,15 +17,10 @@
 package io.cdap.plugin.batch.source;
 
 import kafka.api.PartitionFetchInfo;
-import kafka.cluster.Broker;
-import kafka.common.BrokerNotAvailableException;
-import kafka.common.LeaderNotAvailableException;
+import kafka.common.ErrorMapping;
 import kafka.common.TopicAndPartition;
 import kafka.javaapi.FetchRequest;
 import kafka.javaapi.FetchResponse;
-import kafka.javaapi.PartitionMetadata;
-import kafka.javaapi.TopicMetadata;
-import kafka.javaapi.TopicMetadataRequest;
 import kafka.javaapi.consumer.SimpleConsumer;
 import kafka.javaapi.message.ByteBufferMessageSet;
 import kafka.message.Message;
@@ -33,27 +28,46 @@ import kafka.message.MessageAndOffset;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.concurrent.TimeUnit;
 
 /**
- * A class which reads from the fetch results from kafka.
+ * A class which reads from the fetch results from kafka. The leader broker is taken from the JVM wide
+ * {@link KafkaLeaderCache}, and is refreshed with bounded retries if it changes or fails while reading.
  */
 final class Kafka08Reader implements KafkaReader {
   private static final Logger LOG = LoggerFactory.getLogger(Kafka08Reader.class);
 
   // index of context
-  private static final int fetchBufferSize = 1024 * 1024;
+  static final int fetchBufferSize = 1024 * 1024;
+  static final int DEFAULT_FETCH_MIN_BYTES = 1024;
+  static final int DEFAULT_FETCH_MAX_WAIT_MS = 1000;
+  // Upper bound of the fetch size when it is increased to read a message larger than the configured fetch size
+  static final int MAX_FETCH_SIZE = 256 * 1024 * 1024;
+  // Retry budget for fetch failures caused by leader changes or broker connection errors
+  private static final int MAX_FETCH_RETRIES = 6;
+  private static final long INITIAL_RETRY_DELAY_MS = 200;
+  private static final long MAX_RETRY_DELAY_MS = 5000;
+
   private final KafkaRequest kafkaRequest;
-  private final SimpleConsumer simpleConsumer;
+  private final Map<String, Integer> brokers;
+  private final int fetchSize;
+  private final int fetchMinBytes;
+  private final int fetchMaxWaitMs;
+
+  private InetSocketAddress leader;
+  private SimpleConsumer simpleConsumer;
+  private int currentFetchSize;
 
   private long currentOffset;
   private long lastOffset;
   private Iterator<MessageAndOffset> messageIter;
+  private MessageAndOffset nextMessage;
 
   /**
    * Construct a reader based on the given {@link KafkaRequest}.
@@ -66,32 +80,52 @@ final class Kafka08Reader implements KafkaReader {
     // read data from queue
     Map<String, String> conf = request.getConf();
     //no failureCollector is available here
-    Broker leader = getLeader(KafkaBatchConfig.parseBrokerMap(conf.get(KafkaInputFormat.KAFKA_BROKERS), null),
-                              request.getTopic(), request.getPartition());
-    this.simpleConsumer = new SimpleConsumer(leader.host(), leader.port(), 20 * 1000, fetchBufferSize, "client");
+    this.brokers = KafkaBatchConfig.parseBrokerMap(conf.get(KafkaInputFormat.KAFKA_BROKERS), null);
+    this.fetchSize = getInt(conf, KafkaInputFormat.FETCH_SIZE_BYTES, fetchBufferSize);
+    this.fetchMinBytes = getInt(conf, KafkaInputFormat.FETCH_MIN_BYTES, DEFAULT_FETCH_MIN_BYTES);
+    this.fetchMaxWaitMs = getInt(conf, KafkaInputFormat.FETCH_MAX_WAIT_MS, DEFAULT_FETCH_MAX_WAIT_MS);
+    this.currentFetchSize = fetchSize;
+    this.leader = KafkaLeaderCache.getLeader(brokers, request.getTopic(), request.getPartition(), request.getLeader());
+    this.simpleConsumer = createConsumer(leader);
   }
 
   @Override
   public boolean hasNext() {
-    if (currentOffset >= lastOffset) {
-      return false;
-    }
-    if (messageIter != null && messageIter.hasNext()) {
-      return true;
+    while (nextMessage == null) {
+      if (currentOffset >= lastOffset) {
+        return false;
+      }
+      if ((messageIter == null || !messageIter.hasNext()) && !fetch()) {
+        return false;
+      }
+
+      MessageAndOffset msgAndOffset = messageIter.next();
+      // A compressed message set can contain messages before the requested offset, which are skipped
+      if (msgAndOffset.offset() < currentOffset) {
+        continue;
+      }
+      // Messages past the end offset belong to the next split of the same partition
+      if (msgAndOffset.offset() >= lastOffset) {
+        currentOffset = lastOffset;
+        messageIter = null;
+        return false;
+      }
+      nextMessage = msgAndOffset;
     }
-    return fetch();
+    return true;
   }
 
   /**
    * Fetches the next Kafka message and stuffs the results into the key and value.
    */
   @Override
-  public KafkaMessage getNext(KafkaKey kafkaKey) {
+  public void getNext(KafkaKey kafkaKey, KafkaMessage kafkaMessage) {
     if (!hasNext()) {
       throw new NoSuchElementException("No message is available");
     }
 
-    MessageAndOffset msgAndOffset = messageIter.next();
+    MessageAndOffset msgAndOffset = nextMessage;
+    nextMessage = null;
     Message message = msgAndOffset.message();
 
     ByteBuffer payload = message.payload();
@@ -103,44 +137,139 @@ final class Kafka08Reader implements KafkaReader {
 
     }
 
-    kafkaKey.set(currentOffset, msgAndOffset.offset() + 1, msgAndOffset.message().size(), message.checksum());
+    kafkaKey.set(kafkaRequest.getTopic(), kafkaRequest.getPartition(), currentOffset, msgAndOffset.offset() + 1,
+                 msgAndOffset.message().size(), message.checksum());
     currentOffset = msgAndOffset.offset() + 1; // increase offset
-    return new KafkaMessage(payload, key);
+    kafkaMessage.set(payload, key);
   }
 
   /**
-   * Fetch messages from Kafka.
+   * Fetch messages from Kafka. Failures due to leader changes or broker connection errors are retried with a refreshed
+   * leader, up to a bounded number of times. If the next message is larger than the fetch size, the fetch is repeated
+   * with a larger fetch size.
    *
    * @return {@code true} if there is some messages available, {@code false} otherwise
+   * @throws IllegalStateException if the fetch failed with a non retryable error or ran out of retries
    */
   private boolean fetch() {
     if (currentOffset >= lastOffset) {
       return false;
     }
-    TopicAndPartition topicAndPartition = new TopicAndPartition(kafkaRequest.getTopic(), kafkaRequest.getPartition());
-    PartitionFetchInfo partitionFetchInfo = new PartitionFetchInfo(currentOffset, fetchBufferSize);
+    String topic = kafkaRequest.getTopic();
+    int partition = kafkaRequest.getPartition();
+    TopicAndPartition topicAndPartition = new TopicAndPartition(topic, partition);
 
-    Map<TopicAndPartition, PartitionFetchInfo> fetchInfo = new HashMap<>();
-    fetchInfo.put(topicAndPartition, partitionFetchInfo);
+    int retries = 0;
+    long retryDelay = INITIAL_RETRY_DELAY_MS;
+    while (true) {
+      PartitionFetchInfo partitionFetchInfo = new PartitionFetchInfo(currentOffset, currentFetchSize);
 
-    FetchRequest fetchRequest = new FetchRequest(-1, "client", 1000, 1024, fetchInfo);
+      Map<TopicAndPartition, PartitionFetchInfo> fetchInfo = new HashMap<>();
+      fetchInfo.put(topicAndPartition, partitionFetchInfo);
 
-    try {
-      FetchResponse fetchResponse = simpleConsumer.fetch(fetchRequest);
-      if (fetchResponse.hasError()) {
-        String message =
-          "Error Code generated : " + fetchResponse.errorCode(kafkaRequest.getTopic(), kafkaRequest.getPartition());
-        throw new RuntimeException(message);
+      FetchRequest fetchRequest = new FetchRequest(-1, "client", fetchMaxWaitMs, fetchMinBytes, fetchInfo);
+
+      FetchResponse fetchResponse = null;
+      Throwable failure = null;
+      try {
+        fetchResponse = simpleConsumer.fetch(fetchRequest);
+      } catch (Exception e) {
+        // Socket errors surface as exceptions from the consumer after its own reconnect attempt
+        failure = e;
       }
-      return processFetchResponse(fetchResponse);
+
+      if (fetchResponse != null) {
+        short errorCode = fetchResponse.errorCode(topic, partition);
+        if (errorCode == ErrorMapping.NoError()) {
+          ByteBufferMessageSet messageSet = fetchResponse.messageSet(topic, partition);
+          // A non empty message set without any complete message means the next message is larger than the fetch size
+          if (messageSet.validBytes() == 0 && messageSet.sizeInBytes() > 0) {
+            increaseFetchSize();
+            continue;
+          }
+          return processMessageSet(messageSet);
+        }
+        failure = ErrorMapping.exceptionFor(errorCode);
+        if (!isLeaderError(errorCode)) {
+          throw new IllegalStateException(String.format("Failed to fetch from topic %s and partition %d at offset %d " +
+                                                          "with error code %d", topic, partition, currentOffset,
+                                                        errorCode), failure);
+        }
+      }
+
+      if (retries >= MAX_FETCH_RETRIES) {
+        throw new IllegalStateException(String.format("Failed to fetch from topic %s and partition %d at offset %d " +
+                                                        "after %d retries", topic, partition, currentOffset, retries),
+                                        failure);
+      }
+      LOG.warn("Failed to fetch from topic {} and partition {} at offset {} from leader {}. " +
+                 "Retrying in {} ms with a refreshed leader.", topic, partition, currentOffset, leader, retryDelay,
+               failure);
+      try {
+        TimeUnit.MILLISECONDS.sleep(retryDelay);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IllegalStateException("Interrupted while fetching from topic " + topic, e);
+      }
+      retries++;
+      retryDelay = Math.min(MAX_RETRY_DELAY_MS, retryDelay * 2);
+      refreshLeader();
+    }
+  }
+
+  /**
+   * Doubles the fetch size for reading a message that is larger than the current fetch size.
+   *
+   * @throws IllegalStateException if the fetch size cannot be increased further
+   */
+  private void increaseFetchSize() {
+    if (currentFetchSize >= MAX_FETCH_SIZE) {
+      throw new IllegalStateException(String.format("Message at offset %d in topic %s and partition %d is larger " +
+                                                      "than the maximum fetch size of %d bytes", currentOffset,
+                                                    kafkaRequest.getTopic(), kafkaRequest.getPartition(),
+                                                    MAX_FETCH_SIZE));
+    }
+    currentFetchSize = (int) Math.min(MAX_FETCH_SIZE, currentFetchSize * 2L);
+    LOG.debug("Increased the fetch size to {} bytes for topic {} and partition {} at offset {}", currentFetchSize,
+              kafkaRequest.getTopic(), kafkaRequest.getPartition(), currentOffset);
+  }
+
+  /**
+   * Returns whether the given fetch error code means that the leader has changed or is not available.
+   */
+  static boolean isLeaderError(short errorCode) {
+    return errorCode == ErrorMapping.NotLeaderForPartitionCode()
+      || errorCode == ErrorMapping.LeaderNotAvailableCode()
+      || errorCode == ErrorMapping.UnknownTopicOrPartitionCode();
+  }
+
+  /**
+   * Replaces the consumer with one connected to the current leader. If no leader is available yet, the current
+   * consumer is kept, so that the next fetch fails and is retried.
+   */
+  private void refreshLeader() {
+    InetSocketAddress newLeader;
+    try {
+      newLeader = KafkaLeaderCache.refreshLeader(brokers, kafkaRequest.getTopic(), kafkaRequest.getPartition(),
+                                                 leader);
     } catch (Exception e) {
-      return false;
+      LOG.debug("No leader available for topic {} and partition {}", kafkaRequest.getTopic(),
+                kafkaRequest.getPartition(), e);
+      return;
     }
+    simpleConsumer.close();
+    leader = newLeader;
+    simpleConsumer = createConsumer(leader);
   }
 
-  private boolean processFetchResponse(FetchResponse fetchResponse) {
-    ByteBufferMessageSet messageBuffer = fetchResponse.messageSet(kafkaRequest.getTopic(), kafkaRequest.getPartition());
-    messageIter = messageBuffer.iterator();
+  static SimpleConsumer createConsumer(InetSocketAddress leader) {
+    return new SimpleConsumer(leader.getHostString(), leader.getPort(), 20 * 1000, fetchBufferSize, "client");
+  }
+
+  private boolean processMessageSet(ByteBufferMessageSet messageSet) {
+    // The fetch size is only increased for as long as it is needed to read a large message
+    currentFetchSize = fetchSize;
+    messageIter = messageSet.iterator();
     if (!messageIter.hasNext()) {
       messageIter = null;
       return false;
@@ -148,6 +277,11 @@ final class Kafka08Reader implements KafkaReader {
     return true;
   }
 
+  static int getInt(Map<String, String> conf, String key, int defaultValue) {
+    String value = conf.get(key);
+    return value == null ? defaultValue : Integer.parseInt(value);
+  }
+
   /**
    * Closes this reader
    */
@@ -157,44 +291,4 @@ final class Kafka08Reader implements KafkaReader {
       simpleConsumer.close();
     }
   }
-
-  /**
-   * Gets the leader broker for the given topic partition.
-   *
-   * @param brokers the set of brokers to query from
-   * @param topic the topic to query for
-   * @param partition the partition to query for
-   * @return the leader broker
-   * @throws LeaderNotAvailableException if cannot find the leader broker
-   */
-  private static Broker getLeader(Map<String, Integer> brokers, String topic, int partition) {
-    TopicMetadataRequest request = new TopicMetadataRequest(Collections.singletonList(topic));
-
-    for (Map.Entry<String, Integer> entry : brokers.entrySet()) {
-      SimpleConsumer consumer = new SimpleConsumer(entry.getKey(), entry.getValue(),
-                                                   20 * 1000, fetchBufferSize, "client");
-      try {
-        for (TopicMetadata metadata : consumer.send(request).topicsMetadata()) {
-          // This shouldn't happen. In case it does, just skip the metadata not for the right topic
-          if (!topic.equals(metadata.topic())) {
-            continue;
-          }
-
-          // Find the leader broker for the given partition.
-          return metadata.partitionsMetadata().stream()
-            .filter(meta -> meta.partitionId() == partition)
-            .findFirst()
-            .map(PartitionMetadata::leader)
-            .orElseThrow(BrokerNotAvailableException::new);
-        }
-      } catch (Exception e) {
-        // No-op just query next broker
-      } finally  {
-        consumer.close();
-      }
-    }
-
-    throw new LeaderNotAvailableException(String.format("Failed to get broker information for partition %d in topic %s",
-                                                        partition, topic));
-  }
 }
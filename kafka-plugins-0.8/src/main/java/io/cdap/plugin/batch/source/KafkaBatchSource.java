@@ -21,12 +21,9 @@ import io.cdap.cdap.api.annotation.Macro;
 import io.cdap.cdap.api.annotation.Name;
 import io.cdap.cdap.api.annotation.Plugin;
 import io.cdap.cdap.api.data.batch.Input;
-import io.cdap.cdap.api.data.format.FormatSpecification;
-import io.cdap.cdap.api.data.format.RecordFormat;
 import io.cdap.cdap.api.data.format.StructuredRecord;
 import io.cdap.cdap.api.data.schema.Schema;
 import io.cdap.cdap.api.dataset.lib.KeyValue;
-import io.cdap.cdap.common.io.ByteBuffers;
 import io.cdap.cdap.etl.api.Emitter;
 import io.cdap.cdap.etl.api.FailureCollector;
 import io.cdap.cdap.etl.api.PipelineConfigurer;
@@ -34,7 +31,7 @@ import io.cdap.cdap.etl.api.StageConfigurer;
 import io.cdap.cdap.etl.api.batch.BatchRuntimeContext;
 import io.cdap.cdap.etl.api.batch.BatchSource;
 import io.cdap.cdap.etl.api.batch.BatchSourceContext;
-import io.cdap.cdap.format.RecordFormats;
+import io.cdap.plugin.common.KafkaRecordDecoder;
 import io.cdap.plugin.common.LineageRecorder;
 import io.cdap.plugin.common.SourceInputFormatProvider;
 import io.cdap.plugin.common.batch.JobUtils;
@@ -47,12 +44,13 @@ import org.apache.hadoop.mapreduce.Job;
 
 import java.io.IOException;
 import java.net.URI;
-import java.nio.ByteBuffer;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.stream.Collectors;
+import javax.annotation.Nullable;
 
 /**
  * Kafka batch source.
@@ -69,8 +67,12 @@ public class KafkaBatchSource extends BatchSource<KafkaKey, KafkaMessage, Struct
   private Path offsetsFile;
   private List<KafkaRequest> kafkaRequests;
   private Schema schema;
-  private RecordFormat<ByteBuffer, StructuredRecord> recordFormat;
+  private KafkaRecordDecoder decoder;
   private String messageField;
+  private String keyField;
+  private String partitionField;
+  private String offsetField;
+  private String topicField;
 
   public KafkaBatchSource(Kafka08BatchConfig config) {
     this.config = config;
@@ -110,8 +112,17 @@ public class KafkaBatchSource extends BatchSource<KafkaKey, KafkaMessage, Struct
       // Load the offset from the offset file
       partitionOffsets = KafkaPartitionOffsets.load(fileContext, offsetsFile);
     }
+    // Offsets saved or configured for another topic are not applied
+    partitionOffsets.setTopics(Collections.singletonList(config.getTopic()));
     kafkaRequests = KafkaInputFormat.saveKafkaRequests(conf, config.getTopic(), brokerMap, partitions,
-                                                       config.getMaxNumberRecords(), partitionOffsets);
+                                                       config.getMaxNumberRecords(), config.getMaxPartitionBytes(),
+                                                       config.getMaxSplitRecords(), config.getMaxSplitBytes(),
+                                                       config.getFetchConf(),
+                                                       partitionOffsets, context.getMetrics());
+    KafkaSplits.setCombineSplits(conf, config.isCombineSplits(), config.getMaxSplitRecords(),
+                                 config.getMaxSplitBytes());
+    KafkaSplits.setGroupByLeader(conf, config.isFetchByBroker());
+    KafkaRecordReader.setPrefetchBytes(conf, config.getPrefetchBytes());
     LineageRecorder lineageRecorder = new LineageRecorder(context, config.referenceName);
     if (schema != null) {
       lineageRecorder.createExternalDataset(schema);
@@ -131,7 +142,10 @@ public class KafkaBatchSource extends BatchSource<KafkaKey, KafkaMessage, Struct
     }
     if (succeeded && kafkaRequests != null && fileContext != null && offsetsFile != null) {
       KafkaPartitionOffsets partitionOffsets = new KafkaPartitionOffsets(
-        kafkaRequests.stream().collect(Collectors.toMap(KafkaRequest::getPartition, KafkaRequest::getEndOffset)));
+        // A partition can be read by multiple requests, in which case the largest end offset is the one to save
+        kafkaRequests.stream().collect(Collectors.toMap(KafkaRequest::getPartition, KafkaRequest::getEndOffset,
+                                                        Math::max)),
+        config.getTopic(), Collections.emptyMap());
 
       try {
         KafkaPartitionOffsets.save(fileContext, offsetsFile, partitionOffsets);
@@ -144,6 +158,10 @@ public class KafkaBatchSource extends BatchSource<KafkaKey, KafkaMessage, Struct
   @Override
   public void initialize(BatchRuntimeContext context) throws Exception {
     super.initialize(context);
+    keyField = config.getKeyField();
+    partitionField = config.getPartitionField();
+    offsetField = config.getOffsetField();
+    topicField = config.getTopicField();
     schema = config.getSchema(context.getFailureCollector());
     Schema messageSchema = config.getMessageSchema(context.getFailureCollector());
     if (schema == null || messageSchema == null) {
@@ -151,39 +169,43 @@ public class KafkaBatchSource extends BatchSource<KafkaKey, KafkaMessage, Struct
     }
     for (Schema.Field field : schema.getFields()) {
       String name = field.getName();
-      if (!name.equals(config.getKeyField()) && !name.equals(config.getPartitionField()) &&
-        !name.equals(config.getOffsetField())) {
+      if (!name.equals(keyField) && !name.equals(partitionField) && !name.equals(offsetField)
+        && !name.equals(topicField)) {
         messageField = name;
         break;
       }
     }
     if (config.getFormat() != null) {
-      FormatSpecification spec =
-        new FormatSpecification(config.getFormat(), messageSchema, new HashMap<>());
-      recordFormat = RecordFormats.createInitializedFormat(spec);
+      decoder = new KafkaRecordDecoder(schema, messageSchema, config.getFormat());
     }
   }
 
   @Override
   public void transform(KeyValue<KafkaKey, KafkaMessage> input, Emitter<StructuredRecord> emitter) {
+    // The key and message objects are reused by the record reader, but the byte arrays they hold are not,
+    // hence they can be set on the record without copying.
+    KafkaMessage message = input.getValue();
+    if (decoder != null && decoder.isPassThrough()) {
+      emitter.emit(decoder.decode(message.getPayload()));
+      return;
+    }
     StructuredRecord.Builder builder = StructuredRecord.builder(schema);
-    if (config.getKeyField() != null) {
-      builder.set(config.getKeyField(), input.getValue().getKey().array());
+    if (keyField != null) {
+      builder.set(keyField, message.getKeyBytes());
+    }
+    if (partitionField != null) {
+      builder.set(partitionField, input.getKey().getPartition());
     }
-    if (config.getPartitionField() != null) {
-      builder.set(config.getPartitionField(), input.getKey().getPartition());
+    if (offsetField != null) {
+      builder.set(offsetField, input.getKey().getOffset());
     }
-    if (config.getOffsetField() != null) {
-      builder.set(config.getOffsetField(), input.getKey().getOffset());
+    if (topicField != null) {
+      builder.set(topicField, input.getKey().getTopic());
     }
-    if (config.getFormat() == null) {
-      builder.set(messageField, ByteBuffers.getByteArray(input.getValue().getPayload()));
+    if (decoder == null) {
+      builder.set(messageField, message.getPayloadBytes());
     } else {
-      StructuredRecord messageRecord = recordFormat.read(input.getValue().getPayload());
-      for (Schema.Field field : messageRecord.getSchema().getFields()) {
-        String fieldName = field.getName();
-        builder.set(fieldName, messageRecord.get(fieldName));
-      }
+      decoder.decode(message.getPayload(), builder);
     }
     emitter.emit(builder.build());
   }
@@ -192,11 +214,41 @@ public class KafkaBatchSource extends BatchSource<KafkaKey, KafkaMessage, Struct
    * kafka 0.8 config
    */
   public static class Kafka08BatchConfig extends KafkaBatchConfig {
+    public static final String FETCH_SIZE_BYTES = "fetchSizeBytes";
+    public static final String FETCH_MIN_BYTES = "fetchMinBytes";
+    public static final String FETCH_MAX_WAIT_MS = "fetchMaxWaitMs";
+    public static final String FETCH_BY_BROKER = "fetchByBroker";
+
     @Description("List of Kafka brokers specified in host1:port1,host2:port2 form. For example, " +
                    "host1.example.com:9092,host2.example.com:9092.")
     @Macro
     private String kafkaBrokers;
 
+    @Description("The number of bytes of messages to fetch from each partition per fetch request. " +
+      "The fetch size is increased automatically while reading messages larger than it. Defaults to 1 MB.")
+    @Macro
+    @Nullable
+    private Integer fetchSizeBytes;
+
+    @Description("The minimum number of bytes of messages for the broker to accumulate before responding to " +
+      "a fetch request. Defaults to 1024.")
+    @Macro
+    @Nullable
+    private Integer fetchMinBytes;
+
+    @Description("The maximum time in milliseconds for the broker to wait for the minimum number of bytes " +
+      "before responding to a fetch request. Defaults to 1000.")
+    @Macro
+    @Nullable
+    private Integer fetchMaxWaitMs;
+
+    @Description("Whether to read the partitions led by the same broker together in one split, using a single " +
+      "connection and fetch requests covering all of those partitions. This reduces the number of connections " +
+      "and requests to the brokers. Defaults to false.")
+    @Macro
+    @Nullable
+    private Boolean fetchByBroker;
+
     public Kafka08BatchConfig() {
       super();
     }
@@ -205,13 +257,50 @@ public class KafkaBatchSource extends BatchSource<KafkaKey, KafkaMessage, Struct
       super(partitions, topic, initialPartitionOffsets);
     }
 
+    public boolean isFetchByBroker() {
+      return fetchByBroker != null && fetchByBroker;
+    }
+
+    /**
+     * Returns the fetch settings to pass to the readers, containing only the settings that are set.
+     */
+    Map<String, String> getFetchConf() {
+      Map<String, String> fetchConf = new HashMap<>();
+      if (fetchSizeBytes != null) {
+        fetchConf.put(KafkaInputFormat.FETCH_SIZE_BYTES, String.valueOf(fetchSizeBytes));
+      }
+      if (fetchMinBytes != null) {
+        fetchConf.put(KafkaInputFormat.FETCH_MIN_BYTES, String.valueOf(fetchMinBytes));
+      }
+      if (fetchMaxWaitMs != null) {
+        fetchConf.put(KafkaInputFormat.FETCH_MAX_WAIT_MS, String.valueOf(fetchMaxWaitMs));
+      }
+      return fetchConf;
+    }
+
     @Override
     public void validate(FailureCollector collector) {
       super.validate(collector);
+      if (!containsMacro(TOPIC) && getTopics().size() != 1) {
+        collector.addFailure("Exactly one topic must be given.", "Kafka 0.8 only supports reading from one topic.")
+          .withConfigProperty(TOPIC);
+      }
       // brokers can be null since it is macro enabled.
       if (kafkaBrokers != null) {
         parseBrokerMap(kafkaBrokers, collector);
       }
+      if (fetchSizeBytes != null && fetchSizeBytes <= 0) {
+        collector.addFailure("Fetch size bytes must be a positive number.", null)
+          .withConfigProperty(FETCH_SIZE_BYTES);
+      }
+      if (fetchMinBytes != null && fetchMinBytes < 0) {
+        collector.addFailure("Fetch min bytes must not be negative.", null)
+          .withConfigProperty(FETCH_MIN_BYTES);
+      }
+      if (fetchMaxWaitMs != null && fetchMaxWaitMs < 0) {
+        collector.addFailure("Fetch max wait must not be negative.", null)
+          .withConfigProperty(FETCH_MAX_WAIT_MS);
+      }
     }
   }
 }
@@ -16,18 +16,28 @@
 
 package io.cdap.plugin.batch.source;
 
+import com.google.common.collect.Lists;
 import com.google.gson.Gson;
 import com.google.gson.reflect.TypeToken;
+import io.cdap.cdap.etl.api.StageMetrics;
+import io.cdap.plugin.common.KafkaBrokerQuery;
+import kafka.api.PartitionFetchInfo;
 import kafka.api.PartitionOffsetRequestInfo;
 import kafka.cluster.Broker;
 import kafka.common.ErrorMapping;
 import kafka.common.TopicAndPartition;
+import kafka.javaapi.FetchRequest;
+import kafka.javaapi.FetchResponse;
 import kafka.javaapi.OffsetRequest;
 import kafka.javaapi.OffsetResponse;
 import kafka.javaapi.PartitionMetadata;
 import kafka.javaapi.TopicMetadata;
 import kafka.javaapi.TopicMetadataRequest;
+import kafka.javaapi.TopicMetadataResponse;
 import kafka.javaapi.consumer.SimpleConsumer;
+import kafka.javaapi.message.ByteBufferMessageSet;
+import kafka.message.Message;
+import kafka.message.MessageAndOffset;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.mapreduce.InputFormat;
 import org.apache.hadoop.mapreduce.InputSplit;
@@ -46,7 +56,9 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.stream.Collectors;
+import javax.annotation.Nullable;
 
 
 /**
@@ -57,11 +69,22 @@ public class KafkaInputFormat extends InputFormat<KafkaKey, KafkaMessage> {
   private static final String KAFKA_REQUEST = "kafka.request";
 
   static final String KAFKA_BROKERS = "kafka.brokers";
+  static final String FETCH_SIZE_BYTES = "kafka.fetch.size.bytes";
+  static final String FETCH_MIN_BYTES = "kafka.fetch.min.bytes";
+  static final String FETCH_MAX_WAIT_MS = "kafka.fetch.max.wait.ms";
+  private static final long DEFAULT_AVERAGE_MESSAGE_SIZE = 1024;
+  // Sizes are sampled with small fetches, in requests that fetch at most the budget in total
+  private static final int SAMPLE_FETCH_SIZE = 64 * 1024;
+  private static final int SAMPLE_BUDGET_BYTES = 16 * 1024 * 1024;
 
   private static final Type LIST_TYPE = new TypeToken<List<KafkaRequest>>() { }.getType();
 
   @Override
   public RecordReader<KafkaKey, KafkaMessage> createRecordReader(InputSplit split, TaskAttemptContext context) {
+    if (KafkaSplits.isGroupByLeader(context.getConfiguration())) {
+      // Splits group partitions by leader, hence they can be read from the leader with multi-partition fetches
+      return new KafkaRecordReader(Kafka08Reader::new, Kafka08BrokerReader::new);
+    }
     return new KafkaRecordReader(Kafka08Reader::new);
   }
 
@@ -69,14 +92,7 @@ public class KafkaInputFormat extends InputFormat<KafkaKey, KafkaMessage> {
   public List<InputSplit> getSplits(JobContext context) {
     Gson gson = new Gson();
     List<KafkaRequest> finalRequests = gson.fromJson(context.getConfiguration().get(KAFKA_REQUEST), LIST_TYPE);
-    List<InputSplit> kafkaSplits = new ArrayList<>();
-
-    for (KafkaRequest r : finalRequests) {
-      KafkaSplit split = new KafkaSplit(r);
-      kafkaSplits.add(split);
-    }
-
-    return kafkaSplits;
+    return KafkaSplits.createSplits(context.getConfiguration(), finalRequests);
   }
 
   /**
@@ -88,19 +104,29 @@ public class KafkaInputFormat extends InputFormat<KafkaKey, KafkaMessage> {
    * @param partitions the set of partitions to consume from.
    *                   If it is empty, it means reading from all available partitions under the given topic.
    * @param maxNumberRecords maximum number of records to read in one batch per partition
+   * @param maxPartitionBytes maximum estimated number of bytes to read in one batch per partition, or a non-positive
+   *                          value for no limit
+   * @param maxSplitRecords maximum number of records to read by one split, or a non-positive value for no limit
+   * @param maxSplitBytes maximum estimated number of bytes to read by one split, or a non-positive value for no limit
+   * @param fetchConf the fetch settings to pass to the readers
    * @param partitionOffsets the {@link KafkaPartitionOffsets} containing the starting offset for each partition
+   * @param metrics the metrics of the source to report the broker latencies to, or {@code null} to only log them
    * @return a {@link List} of {@link KafkaRequest} that get serialized in the hadoop configuration
    * @throws IOException if failed to setup the {@link KafkaRequest}
    */
   static List<KafkaRequest> saveKafkaRequests(Configuration conf, String topic,
                                               Map<String, Integer> brokers, Set<Integer> partitions,
-                                              long maxNumberRecords,
-                                              KafkaPartitionOffsets partitionOffsets) throws Exception {
+                                              long maxNumberRecords, long maxPartitionBytes,
+                                              long maxSplitRecords, long maxSplitBytes,
+                                              Map<String, String> fetchConf,
+                                              KafkaPartitionOffsets partitionOffsets,
+                                              @Nullable StageMetrics metrics) throws Exception {
     // Find the leader for each requested partition
-    Map<Broker, Set<Integer>> brokerPartitions = getBrokerPartitions(brokers, topic, partitions);
+    Map<Broker, Set<Integer>> brokerPartitions = getBrokerPartitions(brokers, topic, partitions, metrics);
 
     // Create and save the KafkaRequest
-    List<KafkaRequest> requests = createKafkaRequests(topic, brokerPartitions, maxNumberRecords, partitionOffsets);
+    List<KafkaRequest> requests = createKafkaRequests(topic, brokerPartitions, maxNumberRecords, maxPartitionBytes,
+                                                      maxSplitRecords, maxSplitBytes, fetchConf, partitionOffsets);
 
     conf.set(KAFKA_REQUEST, new Gson().toJson(requests));
     return requests;
@@ -108,58 +134,65 @@ public class KafkaInputFormat extends InputFormat<KafkaKey, KafkaMessage> {
 
   /**
    * Returns a {@link Map} from {@link Broker} to the set of partitions that the given broker is a leader of.
+   * The metadata is requested from all the given brokers concurrently, and the first complete answer is used.
    */
   private static Map<Broker, Set<Integer>> getBrokerPartitions(Map<String, Integer> brokers,
-                                                               String topic, Set<Integer> partitions) {
+                                                               String topic, Set<Integer> partitions,
+                                                               @Nullable StageMetrics metrics) {
     TopicMetadataRequest request = new TopicMetadataRequest(Collections.singletonList(topic));
+    AtomicReference<Map<Broker, Set<Integer>>> result = new AtomicReference<>();
+
+    boolean found = KafkaBrokerQuery.query(brokers, "metadata of topic " + topic, KafkaBrokerQuery.DEFAULT_DEADLINE_MS,
+                                           consumer -> toBrokerPartitions(consumer.send(request), topic, partitions),
+                                           brokerPartitions -> brokerPartitions != null
+                                             && result.compareAndSet(null, brokerPartitions), metrics);
+    if (!found) {
+      throw new IllegalArgumentException(
+        String.format("Failed to get broker information for partitions %s in topic %s from the given brokers: %s",
+                      partitions.isEmpty() ? "all" : partitions, topic, brokers));
+    }
+    return result.get();
+  }
+
+  /**
+   * Returns a {@link Map} from {@link Broker} to the set of partitions that the given broker is a leader of, based on
+   * the given metadata response, or {@code null} if the response doesn't contain all the partitions.
+   */
+  @Nullable
+  private static Map<Broker, Set<Integer>> toBrokerPartitions(TopicMetadataResponse response, String topic,
+                                                               Set<Integer> partitions) {
     Map<Broker, Set<Integer>> result = new HashMap<>();
     Set<Integer> partitionsRemained = new HashSet<>(partitions);
+    boolean hasError = false;
+    for (TopicMetadata metadata : response.topicsMetadata()) {
+      // This shouldn't happen. In case it does, just skip the metadata not for the right topic
+      if (!topic.equals(metadata.topic())) {
+        continue;
+      }
 
-    // Goes through the list of broker to fetch topic metadata. It uses the first one that returns
-    for (Map.Entry<String, Integer> entry : brokers.entrySet()) {
-      SimpleConsumer consumer = createSimpleConsumer(entry.getKey(), entry.getValue());
-      LOG.debug("Fetching metadata from broker {}: {} with client id {} for topic {}", entry.getKey(),
-                entry.getValue(), consumer.clientId(), topic);
-      try {
-        boolean hasError = false;
-        for (TopicMetadata metadata : consumer.send(request).topicsMetadata()) {
-          // This shouldn't happen. In case it does, just skip the metadata not for the right topic
-          if (!topic.equals(metadata.topic())) {
-            continue;
-          }
+      // Associate partition to leader broker
+      for (PartitionMetadata partitionMetadata : metadata.partitionsMetadata()) {
+        int partitionId = partitionMetadata.partitionId();
 
-          // Associate partition to leader broker
-          for (PartitionMetadata partitionMetadata : metadata.partitionsMetadata()) {
-            int partitionId = partitionMetadata.partitionId();
-
-            // Skip error
-            if (partitionMetadata.errorCode() != ErrorMapping.NoError()) {
-              hasError = true;
-              continue;
-            }
-            // Add the partition if either the user wants all partitions or user explicitly request a set.
-            // If the user wants all partitions, the partitions set is empty
-            if (partitions.isEmpty() || partitionsRemained.remove(partitionId)) {
-              result.computeIfAbsent(partitionMetadata.leader(), k -> new HashSet<>()).add(partitionId);
-            }
-          }
+        // Skip error
+        if (partitionMetadata.errorCode() != ErrorMapping.NoError()) {
+          hasError = true;
+          continue;
         }
-
-        // If there is no error and all partitions are needed, then we are done
-        // Alternatively, if only a subset of partitions are needed and all of them are fetch, then we are also done
-        if ((!hasError && partitions.isEmpty()) || (!partitions.isEmpty() && partitionsRemained.isEmpty())) {
-          return result;
+        // Add the partition if either the user wants all partitions or user explicitly request a set.
+        // If the user wants all partitions, the partitions set is empty
+        if (partitions.isEmpty() || partitionsRemained.remove(partitionId)) {
+          result.computeIfAbsent(partitionMetadata.leader(), k -> new HashSet<>()).add(partitionId);
         }
-      } catch (Exception e) {
-        // No-op just query next broker
-      } finally  {
-        consumer.close();
       }
     }
 
-    throw new IllegalArgumentException(
-      String.format("Failed to get broker information for partitions %s in topic %s from the given brokers: %s",
-                    partitionsRemained, topic, brokers));
+    // If there is no error and all partitions are needed, then we are done
+    // Alternatively, if only a subset of partitions are needed and all of them are fetch, then we are also done
+    if ((!hasError && partitions.isEmpty()) || (!partitions.isEmpty() && partitionsRemained.isEmpty())) {
+      return result;
+    }
+    return null;
   }
 
   private static SimpleConsumer createSimpleConsumer(String host, int port) {
@@ -169,13 +202,19 @@ public class KafkaInputFormat extends InputFormat<KafkaKey, KafkaMessage> {
   /**
    * Creates a list of {@link KafkaRequest} by setting up the start and end offsets for each request. It may
    * query Kafka using the given set of brokers for the earliest and latest offsets in the given set of partitions.
+   * If a byte limit is given, the end offsets are also bounded by the average size of the messages to read, as
+   * sampled from each partition.
    */
   private static List<KafkaRequest> createKafkaRequests(String topic, Map<Broker, Set<Integer>> brokerPartitions,
-                                                        long maxNumberRecords,
+                                                        long maxNumberRecords, long maxPartitionBytes,
+                                                        long maxSplitRecords,
+                                                        long maxSplitBytes, Map<String, String> fetchConf,
                                                         KafkaPartitionOffsets partitionOffsets) throws IOException {
     List<KafkaRequest> result = new ArrayList<>();
     String brokerString = brokerPartitions.keySet().stream()
       .map(b -> b.host() + ":" + b.port()).collect(Collectors.joining(","));
+    Map<String, String> requestConf = new HashMap<>(fetchConf);
+    requestConf.put(KAFKA_BROKERS, brokerString);
 
     for (Map.Entry<Broker, Set<Integer>> entry : brokerPartitions.entrySet()) {
       Broker broker = entry.getKey();
@@ -188,14 +227,15 @@ public class KafkaInputFormat extends InputFormat<KafkaKey, KafkaMessage> {
         // If there is no known partition offset for a given partition, also need to query for the earliest offset
         long earliestTime = kafka.api.OffsetRequest.EarliestTime();
         Set<Integer> earliestTimePartitions = entry.getValue().stream()
-          .filter(p -> partitionOffsets.getPartitionOffset(p, earliestTime) == earliestTime)
+          .filter(p -> partitionOffsets.getPartitionOffset(topic, p, earliestTime) == earliestTime)
           .collect(Collectors.toSet());
 
         Map<Integer, Long> earliestOffsets = getOffsetsBefore(consumer, topic, earliestTimePartitions, earliestTime);
 
         // Add KafkaRequest objects for the partitions in this broker
+        List<KafkaRequest> brokerRequests = new ArrayList<>();
         for (int partition : entry.getValue()) {
-          long startOffset = partitionOffsets.getPartitionOffset(partition,
+          long startOffset = partitionOffsets.getPartitionOffset(topic, partition,
                                                                  earliestOffsets.getOrDefault(partition, -1L));
           long endOffset = latestOffsets.getOrDefault(partition, -1L);
 
@@ -213,11 +253,22 @@ public class KafkaInputFormat extends InputFormat<KafkaKey, KafkaMessage> {
             endOffset = Math.min(endOffset, startOffset + maxNumberRecords);
           }
 
+          // The leader is carried in the requests, so that readers don't need to look it up again.
+          brokerRequests.add(new KafkaRequest(topic, partition, requestConf, startOffset, endOffset,
+                                              DEFAULT_AVERAGE_MESSAGE_SIZE, broker.host() + ":" + broker.port()));
+        }
+
+        if (maxPartitionBytes > 0) {
+          int fetchSize = Kafka08Reader.getInt(fetchConf, FETCH_SIZE_BYTES, Kafka08Reader.fetchBufferSize);
+          brokerRequests = limitBytes(consumer, brokerRequests, maxPartitionBytes, fetchSize);
+        }
+
+        for (KafkaRequest request : brokerRequests) {
           LOG.debug("Getting kafka messages from topic {}, partition {}, with start offset {}, end offset {}",
-                    topic, partition, startOffset,  endOffset);
+                    topic, request.getPartition(), request.getStartOffset(), request.getEndOffset());
 
-          result.add(new KafkaRequest(topic, partition, Collections.singletonMap(KAFKA_BROKERS, brokerString),
-                                      startOffset, endOffset));
+          // Large offset ranges are divided into multiple requests so that they can be read in parallel.
+          result.addAll(request.split(maxSplitRecords, maxSplitBytes));
         }
 
       } finally {
@@ -228,6 +279,91 @@ public class KafkaInputFormat extends InputFormat<KafkaKey, KafkaMessage> {
     return result;
   }
 
+  /**
+   * Bounds the end offsets of the given requests on partitions led by the broker of the given consumer, so that each
+   * of them covers at most the given estimated number of bytes. The average message size of each partition is
+   * sampled from the messages returned by a small fetch at its start offset. Partitions whose first message does not
+   * fit in the small fetch are sampled again with the given fetch size. Partitions that could not be sampled are
+   * assumed to have messages as large as the largest sampled average.
+   */
+  private static List<KafkaRequest> limitBytes(SimpleConsumer consumer, List<KafkaRequest> requests,
+                                               long maxBytes, int fetchSize) {
+    Map<Integer, Long> messageSizes = new HashMap<>();
+    try {
+      List<KafkaRequest> truncated = sampleMessageSizes(consumer, requests, SAMPLE_FETCH_SIZE, messageSizes);
+      if (!truncated.isEmpty() && fetchSize > SAMPLE_FETCH_SIZE) {
+        sampleMessageSizes(consumer, truncated, fetchSize, messageSizes);
+      }
+    } catch (Exception e) {
+      LOG.warn("Failed to sample the message sizes of topic partitions. Using the default message size of {} bytes.",
+               DEFAULT_AVERAGE_MESSAGE_SIZE, e);
+    }
+    LOG.debug("Estimated message sizes {}", messageSizes);
+    long defaultSize = messageSizes.values().stream().max(Long::compare).orElse(DEFAULT_AVERAGE_MESSAGE_SIZE);
+
+    List<KafkaRequest> result = new ArrayList<>();
+    for (KafkaRequest request : requests) {
+      // The sampled size is kept in the request, so that splits and fetches are sized with it
+      result.add(new KafkaRequest(request.getTopic(), request.getPartition(), request.getConf(),
+                                  request.getStartOffset(), request.getEndOffset(),
+                                  messageSizes.getOrDefault(request.getPartition(), defaultSize), request.getLeader())
+                   .limitBytes(maxBytes));
+    }
+    return result;
+  }
+
+  /**
+   * Samples the average message size of the partitions of the given requests into the given map, fetching the given
+   * number of bytes from each of them. Partitions are fetched in several requests, so that the driver does not hold
+   * more than {@link #SAMPLE_BUDGET_BYTES} fetched bytes at once, whatever the number of partitions of the broker.
+   *
+   * @return the requests of the partitions that had no complete message within the fetch size
+   */
+  private static List<KafkaRequest> sampleMessageSizes(SimpleConsumer consumer, List<KafkaRequest> requests,
+                                                       int fetchSize, Map<Integer, Long> messageSizes) {
+    List<KafkaRequest> sampled = new ArrayList<>();
+    for (KafkaRequest request : requests) {
+      if (request.getEndOffset() > request.getStartOffset()) {
+        sampled.add(request);
+      }
+    }
+
+    List<KafkaRequest> truncated = new ArrayList<>();
+    int partitionsPerFetch = Math.max(1, SAMPLE_BUDGET_BYTES / fetchSize);
+    for (List<KafkaRequest> batch : Lists.partition(sampled, partitionsPerFetch)) {
+      Map<TopicAndPartition, PartitionFetchInfo> fetchInfo = new HashMap<>();
+      for (KafkaRequest request : batch) {
+        fetchInfo.put(new TopicAndPartition(request.getTopic(), request.getPartition()),
+                      new PartitionFetchInfo(request.getStartOffset(), fetchSize));
+      }
+      FetchResponse fetchResponse = consumer.fetch(new FetchRequest(-1, "client", 1000, 1, fetchInfo));
+      for (KafkaRequest request : batch) {
+        if (fetchResponse.errorCode(request.getTopic(), request.getPartition()) != ErrorMapping.NoError()) {
+          continue;
+        }
+        ByteBufferMessageSet messageSet = fetchResponse.messageSet(request.getTopic(), request.getPartition());
+        long bytes = 0L;
+        int count = 0;
+        for (MessageAndOffset messageAndOffset : messageSet) {
+          // Compressed message sets can contain messages before the requested offset
+          if (messageAndOffset.offset() < request.getStartOffset()) {
+            continue;
+          }
+          Message message = messageAndOffset.message();
+          bytes += message.payloadSize() + Math.max(0, message.keySize());
+          count++;
+        }
+        if (count > 0) {
+          messageSizes.put(request.getPartition(), Math.max(1L, bytes / count));
+        } else if (messageSet.sizeInBytes() > 0) {
+          // Only part of the first message was returned
+          truncated.add(request);
+        }
+      }
+    }
+    return truncated;
+  }
+
   /**
    * Queries Kafka for the offsets before the given time for the given set of partitions.
    */
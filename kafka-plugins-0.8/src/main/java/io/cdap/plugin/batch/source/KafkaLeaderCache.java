@@ -0,0 +1,145 @@
+/*
+ * Copyright © 2022 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package io.cdap.plugin.batch.source;
+
+import kafka.common.ErrorMapping;
+import kafka.common.LeaderNotAvailableException;
+import kafka.common.TopicAndPartition;
+import kafka.javaapi.PartitionMetadata;
+import kafka.javaapi.TopicMetadata;
+import kafka.javaapi.TopicMetadataRequest;
+import kafka.javaapi.consumer.SimpleConsumer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import javax.annotation.Nullable;
+
+/**
+ * A JVM wide cache of the leader broker of topic partitions, shared by all the readers running in the same JVM so
+ * that the leaders are only looked up when they are not known or have changed.
+ */
+final class KafkaLeaderCache {
+  private static final Logger LOG = LoggerFactory.getLogger(KafkaLeaderCache.class);
+  private static final ConcurrentMap<TopicAndPartition, InetSocketAddress> LEADERS = new ConcurrentHashMap<>();
+
+  /**
+   * Returns the leader broker for the given topic partition. The cached leader is used if there is one, followed by
+   * the given leader hint, and the leader is only looked up from the brokers if neither is available.
+   *
+   * @param brokers the set of brokers to query from
+   * @param topic the topic to query for
+   * @param partition the partition to query for
+   * @param leaderHint the leader in host:port form that is known from elsewhere, or {@code null} if not known
+   * @return the address of the leader broker
+   * @throws LeaderNotAvailableException if cannot find the leader broker
+   */
+  static InetSocketAddress getLeader(Map<String, Integer> brokers, String topic, int partition,
+                                     @Nullable String leaderHint) {
+    TopicAndPartition topicAndPartition = new TopicAndPartition(topic, partition);
+    InetSocketAddress leader = LEADERS.get(topicAndPartition);
+    if (leader != null) {
+      return leader;
+    }
+    if (leaderHint != null) {
+      int idx = leaderHint.lastIndexOf(':');
+      if (idx > 0) {
+        leader = InetSocketAddress.createUnresolved(leaderHint.substring(0, idx),
+                                                    Integer.parseInt(leaderHint.substring(idx + 1)));
+        InetSocketAddress existing = LEADERS.putIfAbsent(topicAndPartition, leader);
+        return existing == null ? leader : existing;
+      }
+    }
+    return lookupLeader(brokers, topic, partition);
+  }
+
+  /**
+   * Returns a new leader for the given topic partition after the given leader is found to be no longer valid.
+   * If the cached leader was already refreshed by another reader, the refreshed one is returned without lookup.
+   *
+   * @param brokers the set of brokers to query from
+   * @param topic the topic to query for
+   * @param partition the partition to query for
+   * @param staleLeader the leader that is no longer valid, or {@code null} if there was none
+   * @return the address of the leader broker
+   * @throws LeaderNotAvailableException if cannot find the leader broker
+   */
+  static InetSocketAddress refreshLeader(Map<String, Integer> brokers, String topic, int partition,
+                                         @Nullable InetSocketAddress staleLeader) {
+    TopicAndPartition topicAndPartition = new TopicAndPartition(topic, partition);
+    InetSocketAddress leader = LEADERS.get(topicAndPartition);
+    if (leader != null && !leader.equals(staleLeader)) {
+      return leader;
+    }
+    if (staleLeader != null) {
+      LEADERS.remove(topicAndPartition, staleLeader);
+    }
+    return lookupLeader(brokers, topic, partition);
+  }
+
+  /**
+   * Looks up the leader for the given topic partition from the given brokers. The leaders of all the partitions of
+   * the topic that are returned by the lookup are cached.
+   */
+  private static InetSocketAddress lookupLeader(Map<String, Integer> brokers, String topic, int partition) {
+    TopicMetadataRequest request = new TopicMetadataRequest(Collections.singletonList(topic));
+    TopicAndPartition topicAndPartition = new TopicAndPartition(topic, partition);
+
+    for (Map.Entry<String, Integer> entry : brokers.entrySet()) {
+      SimpleConsumer consumer = new SimpleConsumer(entry.getKey(), entry.getValue(), 20 * 1000, 64 * 1024, "client");
+      try {
+        for (TopicMetadata metadata : consumer.send(request).topicsMetadata()) {
+          // This shouldn't happen. In case it does, just skip the metadata not for the right topic
+          if (!topic.equals(metadata.topic())) {
+            continue;
+          }
+          for (PartitionMetadata partitionMetadata : metadata.partitionsMetadata()) {
+            // The leader is null while a new leader is being elected
+            if (partitionMetadata.errorCode() != ErrorMapping.NoError() || partitionMetadata.leader() == null) {
+              continue;
+            }
+            LEADERS.put(new TopicAndPartition(topic, partitionMetadata.partitionId()),
+                        InetSocketAddress.createUnresolved(partitionMetadata.leader().host(),
+                                                           partitionMetadata.leader().port()));
+          }
+        }
+        InetSocketAddress leader = LEADERS.get(topicAndPartition);
+        if (leader != null) {
+          LOG.debug("Found leader {} for topic {} and partition {}", leader, topic, partition);
+          return leader;
+        }
+      } catch (Exception e) {
+        LOG.debug("Failed to fetch metadata for topic {} from broker {}:{}", topic, entry.getKey(), entry.getValue(),
+                  e);
+      } finally {
+        consumer.close();
+      }
+    }
+
+    throw new LeaderNotAvailableException(String.format("Failed to get broker information for partition %d in topic %s",
+                                                        partition, topic));
+  }
+
+  private KafkaLeaderCache() {
+    // no-op
+  }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright © 2022 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package io.cdap.plugin.common;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.cdap.cdap.etl.api.StageMetrics;
+import kafka.javaapi.consumer.SimpleConsumer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import javax.annotation.Nullable;
+
+/**
+ * Utility class for sending a request to a set of Kafka brokers concurrently, so that a slow or unavailable broker
+ * does not delay the answer from the other brokers. The latency of each broker is logged, and reported as the
+ * {@code kafka.broker.<host>:<port>.query.ms} gauge of the calling stage if it provides metrics. Brokers that fail are
+ * reported separately, with the time until the failure in the log and the
+ * {@code kafka.broker.<host>:<port>.query.failures} count, so that a broker failing fast does not look healthy.
+ */
+public final class KafkaBrokerQuery {
+  private static final Logger LOG = LoggerFactory.getLogger(KafkaBrokerQuery.class);
+
+  // The overall time allowed for a query to all the brokers
+  public static final long DEFAULT_DEADLINE_MS = TimeUnit.SECONDS.toMillis(30);
+  private static final int SO_TIMEOUT_MS = 20 * 1000;
+  private static final int BUFFER_SIZE = 128 * 1024;
+
+  // This class cannot be instantiated
+  private KafkaBrokerQuery() {
+  }
+
+  /**
+   * Sends a request to each of the given brokers concurrently, and passes the responses to the given handler in the
+   * order they arrive, until the handler reports the answer is complete or the deadline is reached. Brokers that
+   * fail are skipped.
+   *
+   * @param brokers a {@link Map} from broker host to port
+   * @param description description of the request for logging
+   * @param deadlineMs the maximum time in milliseconds to wait for a complete answer
+   * @param request the function that sends the request with a consumer connected to a broker
+   * @param handler the handler of a response, which returns {@code true} once the answer is complete
+   * @param metrics the metrics of the calling stage to report the broker latencies to, or {@code null} to only log them
+   * @param <T> type of the response
+   * @return {@code true} if the handler reported a complete answer before the deadline, {@code false} otherwise
+   */
+  public static <T> boolean query(Map<String, Integer> brokers, String description, long deadlineMs,
+                                  Function<SimpleConsumer, T> request, Predicate<T> handler,
+                                  @Nullable StageMetrics metrics) {
+    if (brokers.isEmpty()) {
+      return false;
+    }
+
+    long startTime = System.currentTimeMillis();
+    long deadline = startTime + deadlineMs;
+    Map<String, Long> latencies = new ConcurrentHashMap<>();
+    Map<String, Long> failures = new ConcurrentHashMap<>();
+    ExecutorService executor = Executors.newFixedThreadPool(
+      brokers.size(), new ThreadFactoryBuilder().setDaemon(true).setNameFormat("kafka-broker-query-%d").build());
+    try {
+      CompletionService<T> completionService = new ExecutorCompletionService<>(executor);
+      for (Map.Entry<String, Integer> entry : brokers.entrySet()) {
+        String broker = entry.getKey() + ":" + entry.getValue();
+        completionService.submit(() -> {
+          SimpleConsumer consumer = new SimpleConsumer(entry.getKey(), entry.getValue(),
+                                                       (int) Math.min(SO_TIMEOUT_MS, deadlineMs), BUFFER_SIZE,
+                                                       "client");
+          try {
+            T response = request.apply(consumer);
+            latencies.put(broker, System.currentTimeMillis() - startTime);
+            return response;
+          } catch (Exception e) {
+            failures.put(broker, System.currentTimeMillis() - startTime);
+            LOG.debug("Failed to query {} from broker {}", description, broker, e);
+            throw e;
+          } finally {
+            consumer.close();
+          }
+        });
+      }
+
+      for (int i = 0; i < brokers.size(); i++) {
+        long remaining = deadline - System.currentTimeMillis();
+        Future<T> future = remaining > 0 ? completionService.poll(remaining, TimeUnit.MILLISECONDS) : null;
+        if (future == null) {
+          LOG.warn("Failed to query {} from brokers {} within {} ms", description, brokers, deadlineMs);
+          return false;
+        }
+        try {
+          if (handler.test(future.get())) {
+            return true;
+          }
+        } catch (ExecutionException e) {
+          // No-op, the failure is logged by the task and the response from the next broker is used
+        }
+      }
+      LOG.warn("Failed to query {} from brokers {}", description, brokers);
+      return false;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Interrupted while querying " + description + " from brokers " + brokers, e);
+    } finally {
+      executor.shutdownNow();
+      reportLatencies(brokers, description, latencies, failures, metrics);
+    }
+  }
+
+  /**
+   * Logs the latency of each broker and reports it to the given metrics. Brokers that did not respond before the
+   * answer was complete are only logged.
+   */
+  private static void reportLatencies(Map<String, Integer> brokers, String description, Map<String, Long> latencies,
+                                      Map<String, Long> failures, @Nullable StageMetrics metrics) {
+    Map<String, String> brokerLatencies = new LinkedHashMap<>();
+    for (Map.Entry<String, Integer> entry : brokers.entrySet()) {
+      String broker = entry.getKey() + ":" + entry.getValue();
+      Long latency = latencies.get(broker);
+      Long failure = failures.get(broker);
+      if (latency != null) {
+        brokerLatencies.put(broker, latency + " ms");
+        if (metrics != null) {
+          metrics.gauge("kafka.broker." + broker + ".query.ms", latency);
+        }
+      } else if (failure != null) {
+        brokerLatencies.put(broker, "failed after " + failure + " ms");
+        if (metrics != null) {
+          metrics.count("kafka.broker." + broker + ".query.failures", 1);
+        }
+      } else {
+        brokerLatencies.put(broker, "no response");
+      }
+    }
+    LOG.info("Latency of brokers for querying {}: {}", description, brokerLatencies);
+  }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright © 2022 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package io.cdap.plugin.common;
+
+import com.google.common.annotations.VisibleForTesting;
+import org.apache.kafka.clients.producer.KafkaProducer;
+import org.apache.kafka.clients.producer.Producer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Pool of Kafka producers shared by all the tasks running in the same JVM. Producers are keyed by their effective
+ * configuration and reference counted, so that tasks and alert publishers using the same configuration share one
+ * producer, with its metadata, buffer memory and I/O thread. A producer that is not used by anyone is closed once it
+ * has been idle for {@link #IDLE_TIMEOUT_MS}, which keeps it warm across streaming micro-batches.
+ */
+public final class KafkaProducerPool {
+  private static final Logger LOG = LoggerFactory.getLogger(KafkaProducerPool.class);
+  private static final long IDLE_TIMEOUT_MS = TimeUnit.MINUTES.toMillis(1);
+
+  private static final Map<Map<String, String>, PooledProducer> PRODUCERS = new HashMap<>();
+  private static final Map<Producer<?, ?>, PooledProducer> ACQUIRED = new IdentityHashMap<>();
+  private static ScheduledExecutorService evictor;
+
+  // This class cannot be instantiated
+  private KafkaProducerPool() {
+  }
+
+  /**
+   * Returns a producer for the given configuration, creating it if there is none in the pool. The producer must be
+   * given back with {@link #release} instead of being closed, once it is not used anymore.
+   *
+   * @param props the configuration of the producer
+   * @return a producer shared with the other users of the same configuration
+   */
+  public static <K, V> Producer<K, V> acquire(Properties props) {
+    return acquire(props, KafkaProducer::new);
+  }
+
+  /**
+   * Returns a producer for the given configuration, creating it with the given function if there is none in the
+   * pool. The producer must be given back with {@link #release} instead of being closed.
+   *
+   * @param props the configuration of the producer
+   * @param producerFunction the function creating a producer from its configuration
+   * @return a producer shared with the other users of the same configuration
+   */
+  @VisibleForTesting
+  @SuppressWarnings("unchecked")
+  public static synchronized <K, V> Producer<K, V> acquire(Properties props,
+                                                           Function<Properties, Producer<K, V>> producerFunction) {
+    Map<String, String> key = new TreeMap<>();
+    for (String name : props.stringPropertyNames()) {
+      key.put(name, props.getProperty(name));
+    }
+    PooledProducer pooled = PRODUCERS.get(key);
+    if (pooled == null) {
+      pooled = new PooledProducer(producerFunction.apply(props));
+      PRODUCERS.put(key, pooled);
+      ACQUIRED.put(pooled.producer, pooled);
+      startEvictor();
+      LOG.debug("Created producer for brokers {}", key.get("bootstrap.servers"));
+    }
+    pooled.references++;
+    return (Producer<K, V>) pooled.producer;
+  }
+
+  /**
+   * Gives back a producer acquired with {@link #acquire}. The producer is closed once it has not been used for a
+   * while. Messages sent with it are not flushed by this method.
+   *
+   * @param producer the producer to give back
+   */
+  public static synchronized void release(Producer<?, ?> producer) {
+    PooledProducer pooled = ACQUIRED.get(producer);
+    if (pooled == null || pooled.references == 0) {
+      throw new IllegalStateException("Producer was not acquired from the pool");
+    }
+    if (--pooled.references == 0) {
+      pooled.idleSince = System.currentTimeMillis();
+    }
+  }
+
+  private static void startEvictor() {
+    if (evictor != null) {
+      return;
+    }
+    evictor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "kafka-producer-pool-evictor");
+      thread.setDaemon(true);
+      return thread;
+    });
+    evictor.scheduleWithFixedDelay(() -> evictIdle(System.currentTimeMillis()), IDLE_TIMEOUT_MS / 2,
+                                   IDLE_TIMEOUT_MS / 2, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Closes the producers that are not used by anyone and have been idle for {@link #IDLE_TIMEOUT_MS} at the given
+   * time.
+   */
+  @VisibleForTesting
+  static void evictIdle(long now) {
+    List<Producer<?, ?>> idle = new ArrayList<>();
+    synchronized (KafkaProducerPool.class) {
+      Iterator<PooledProducer> iterator = PRODUCERS.values().iterator();
+      while (iterator.hasNext()) {
+        PooledProducer pooled = iterator.next();
+        if (pooled.references == 0 && now - pooled.idleSince >= IDLE_TIMEOUT_MS) {
+          iterator.remove();
+          ACQUIRED.remove(pooled.producer);
+          idle.add(pooled.producer);
+        }
+      }
+    }
+    // Closing waits for the messages sent to be acknowledged, hence it is done without holding the lock
+    for (Producer<?, ?> producer : idle) {
+      try {
+        producer.close();
+      } catch (Exception e) {
+        LOG.warn("Failed to close idle Kafka producer", e);
+      }
+    }
+  }
+
+  /**
+   * A producer in the pool, with the number of users it is acquired by.
+   */
+  private static final class PooledProducer {
+    private final Producer<?, ?> producer;
+    private int references;
+    private long idleSince;
+
+    private PooledProducer(Producer<?, ?> producer) {
+      this.producer = producer;
+    }
+  }
+}
@@ -17,7 +17,6 @@
 package io.cdap.plugin.sink;
 
 import com.google.common.base.Strings;
-import com.google.common.collect.Lists;
 import io.cdap.cdap.api.annotation.Description;
 import io.cdap.cdap.api.annotation.Macro;
 import io.cdap.cdap.api.annotation.Name;
@@ -29,23 +28,23 @@ import io.cdap.cdap.api.data.schema.Schema;
 import io.cdap.cdap.api.dataset.lib.KeyValue;
 import io.cdap.cdap.etl.api.Emitter;
 import io.cdap.cdap.etl.api.PipelineConfigurer;
+import io.cdap.cdap.etl.api.batch.BatchRuntimeContext;
 import io.cdap.cdap.etl.api.batch.BatchSink;
 import io.cdap.cdap.etl.api.batch.BatchSinkContext;
-import io.cdap.cdap.format.StructuredRecordStringConverter;
+import io.cdap.plugin.common.KafkaRecordEncoder;
 import io.cdap.plugin.common.KeyValueListParser;
 import io.cdap.plugin.common.LineageRecorder;
 import io.cdap.plugin.common.ReferenceBatchSink;
 import io.cdap.plugin.common.ReferencePluginConfig;
 import org.apache.avro.reflect.Nullable;
-import org.apache.commons.lang3.StringUtils;
-import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.BytesWritable;
 import org.apache.kafka.clients.producer.ProducerConfig;
-import org.apache.kafka.common.serialization.StringSerializer;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
 import java.util.stream.Collectors;
 
@@ -55,7 +54,7 @@ import java.util.stream.Collectors;
 @Plugin(type = BatchSink.PLUGIN_TYPE)
 @Name("Kafka")
 @Description("KafkaSink to write events to kafka")
-public class Kafka extends ReferenceBatchSink<StructuredRecord, Text, Text> {
+public class Kafka extends ReferenceBatchSink<StructuredRecord, BytesWritable, BytesWritable> {
   private static final Logger LOG = LoggerFactory.getLogger(Kafka.class);
 
   // Configuration for the plugin.
@@ -63,6 +62,8 @@ public class Kafka extends ReferenceBatchSink<StructuredRecord, Text, Text> {
 
   private final KafkaOutputFormatProvider kafkaOutputFormatProvider;
 
+  private KafkaRecordEncoder encoder;
+
   // Static constants for configuring Kafka producer.
   private static final String ACKS_REQUIRED = "acks";
 
@@ -96,33 +97,22 @@ public class Kafka extends ReferenceBatchSink<StructuredRecord, Text, Text> {
   }
 
   @Override
-  public void transform(StructuredRecord input, Emitter<KeyValue<Text, Text>> emitter)
-    throws Exception {
-    List<Schema.Field> fields = input.getSchema().getFields();
-
-      String body;
-      if (producerConfig.format.equalsIgnoreCase("json")) {
-        body = StructuredRecordStringConverter.toJsonString(input);
-      } else {
-        List<Object> objs = getExtractedValues(input, fields);
-        body = StringUtils.join(objs, ",");
-      }
-
-      if (Strings.isNullOrEmpty(producerConfig.key)) {
-        emitter.emit(new KeyValue<>((Text) null, new Text(body)));
-      } else {
-        String key = input.get(producerConfig.key);
-        emitter.emit(new KeyValue<>(new Text(key), new Text(body)));
-      }
+  public void initialize(BatchRuntimeContext context) throws Exception {
+    super.initialize(context);
+    encoder = new KafkaRecordEncoder(producerConfig.format);
   }
 
-  private List<Object> getExtractedValues(StructuredRecord input, List<Schema.Field> fields) {
-    // Extract all values from the structured record
-    List<Object> objs = Lists.newArrayList();
-    for (Schema.Field field : fields) {
-      objs.add(input.get(field.getName()));
+  @Override
+  public void transform(StructuredRecord input, Emitter<KeyValue<BytesWritable, BytesWritable>> emitter)
+    throws Exception {
+    // The payload is encoded straight to bytes, which the producer sends without any conversion
+    BytesWritable body = new BytesWritable(encoder.encode(input));
+    if (Strings.isNullOrEmpty(producerConfig.key)) {
+      emitter.emit(new KeyValue<>((BytesWritable) null, body));
+    } else {
+      String key = input.get(producerConfig.key);
+      emitter.emit(new KeyValue<>(new BytesWritable(key.getBytes(StandardCharsets.UTF_8)), body));
     }
-    return objs;
   }
 
 
@@ -148,6 +138,15 @@ public class Kafka extends ReferenceBatchSink<StructuredRecord, Text, Text> {
     @Macro
     private String async;
 
+    @Name("syncWrites")
+    @Description("Whether to wait for each message to be acknowledged before sending the next one. By default, " +
+      "messages are sent without waiting, so that the producer can batch and compress them, and a failure to send " +
+      "a message fails the pipeline when the following messages are written. Sync writes are much slower. " +
+      "Default is false.")
+    @Macro
+    @Nullable
+    private Boolean syncWrites;
+
     @Name("key")
     @Description("Specify the key field to be used in the message. Only String Partitioner is supported.")
     @Macro
@@ -197,12 +196,13 @@ public class Kafka extends ReferenceBatchSink<StructuredRecord, Text, Text> {
 
       conf.put(ProducerConfig.BOOTSTRAP_SERVERS_CONFIG, kafkaSinkConfig.brokers);
       conf.put("compression.type", kafkaSinkConfig.compressionType);
-      conf.put(ProducerConfig.KEY_SERIALIZER_CLASS_CONFIG, StringSerializer.class.getCanonicalName());
-      conf.put(ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG, StringSerializer.class.getCanonicalName());
+      conf.put(ProducerConfig.KEY_SERIALIZER_CLASS_CONFIG, ByteArraySerializer.class.getCanonicalName());
+      conf.put(ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG, ByteArraySerializer.class.getCanonicalName());
 
       addKafkaProperties(kafkaSinkConfig.kafkaProperties);
 
       conf.put("async", kafkaSinkConfig.async);
+      conf.put("syncWrites", String.valueOf(kafkaSinkConfig.syncWrites != null && kafkaSinkConfig.syncWrites));
       if (kafkaSinkConfig.async.equalsIgnoreCase("true")) {
         conf.put(ACKS_REQUIRED, "1");
       }
@@ -17,14 +17,16 @@
 package io.cdap.plugin.sink;
 
 import com.google.common.base.Strings;
+import io.cdap.plugin.common.KafkaProducerPool;
 import org.apache.hadoop.conf.Configuration;
-import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.BytesWritable;
 import org.apache.hadoop.mapreduce.JobContext;
 import org.apache.hadoop.mapreduce.OutputCommitter;
 import org.apache.hadoop.mapreduce.OutputFormat;
 import org.apache.hadoop.mapreduce.RecordWriter;
 import org.apache.hadoop.mapreduce.TaskAttemptContext;
-import org.apache.kafka.clients.producer.KafkaProducer;
+import org.apache.hadoop.mapreduce.TaskAttemptID;
+import org.apache.kafka.clients.producer.Producer;
 import org.apache.kafka.clients.producer.ProducerConfig;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -32,14 +34,17 @@ import org.slf4j.LoggerFactory;
 import java.io.IOException;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * Output format to write to kafka
  */
-public class KafkaOutputFormat extends OutputFormat<Text, Text> {
+public class KafkaOutputFormat extends OutputFormat<BytesWritable, BytesWritable> {
   private static final Logger LOG = LoggerFactory.getLogger(KafkaOutputFormat.class);
-
-  private KafkaProducer<String, String> producer;
+  // The committer is not created from the same output format instance as the writer, hence the writers of the
+  // running tasks are kept here, so that a task is only committed once all its messages are acknowledged
+  private static final ConcurrentMap<TaskAttemptID, KafkaRecordWriter> WRITERS = new ConcurrentHashMap<>();
 
   @Override
   public void checkOutputSpecs(JobContext jobContext) throws IOException, InterruptedException {
@@ -61,29 +66,41 @@ public class KafkaOutputFormat extends OutputFormat<Text, Text> {
 
       @Override
       public boolean needsTaskCommit(TaskAttemptContext taskContext) throws IOException {
-        return false;
+        return WRITERS.containsKey(taskContext.getTaskAttemptID());
       }
 
       @Override
       public void commitTask(TaskAttemptContext taskContext) throws IOException {
-        //no-op
+        KafkaRecordWriter writer = WRITERS.remove(taskContext.getTaskAttemptID());
+        if (writer == null) {
+          return;
+        }
+        try {
+          // The writer is closed, and its messages flushed, before the task is committed. Committing fails the task if
+          // any message of the task could not be sent, so that it is not committed
+          writer.commit(taskContext);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new IOException("Interrupted while committing the messages of task " +
+                                  taskContext.getTaskAttemptID(), e);
+        }
       }
 
       @Override
       public void abortTask(TaskAttemptContext taskContext) throws IOException {
-        //no-op
+        KafkaRecordWriter writer = WRITERS.remove(taskContext.getTaskAttemptID());
+        if (writer != null) {
+          writer.abort();
+        }
       }
     };
   }
 
   @Override
-  public RecordWriter<Text, Text> getRecordWriter(TaskAttemptContext context)
+  public RecordWriter<BytesWritable, BytesWritable> getRecordWriter(TaskAttemptContext context)
     throws IOException, InterruptedException {
     Configuration configuration = context.getConfiguration();
 
-    // Extract the topics
-    String topic = configuration.get("topic");
-
     Properties props = new Properties();
     // Configure the properties for kafka.
     props.put(ProducerConfig.BOOTSTRAP_SERVERS_CONFIG,
@@ -114,12 +131,20 @@ public class KafkaOutputFormat extends OutputFormat<Text, Text> {
       LOG.info("Property key: {}, value: {}", entry.getKey().substring(11), entry.getValue());
     }
 
-    // CDAP-9178: cached the producer object to avoid being created on every batch interval
-    if (producer == null) {
-      producer = new org.apache.kafka.clients.producer.KafkaProducer<>(props);
-    }
+    // CDAP-9178: producers are shared by the tasks of the JVM to avoid being created on every batch interval
+    return createRecordWriter(context, KafkaProducerPool.acquire(props));
+  }
 
-    return new KafkaRecordWriter(producer, topic);
+  /**
+   * Creates the writer of the given task with the given producer acquired from the pool, and keeps it for the
+   * output committer of the task.
+   */
+  KafkaRecordWriter createRecordWriter(TaskAttemptContext context, Producer<byte[], byte[]> producer) {
+    Configuration configuration = context.getConfiguration();
+    KafkaRecordWriter writer = new KafkaRecordWriter(producer, configuration.get("topic"),
+                                                     configuration.getBoolean("syncWrites", false));
+    WRITERS.put(context.getTaskAttemptID(), writer);
+    return writer;
   }
 }
 
@@ -16,51 +16,177 @@
 
 package io.cdap.plugin.sink;
 
-import org.apache.hadoop.io.Text;
+import io.cdap.plugin.common.KafkaProducerPool;
+import org.apache.hadoop.io.BytesWritable;
 import org.apache.hadoop.mapreduce.RecordWriter;
 import org.apache.hadoop.mapreduce.TaskAttemptContext;
-import org.apache.kafka.clients.producer.KafkaProducer;
+import org.apache.kafka.clients.producer.Callback;
+import org.apache.kafka.clients.producer.Producer;
 import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.Metric;
+import org.apache.kafka.common.MetricName;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.util.Map;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
- * Record writer to write events to kafka
+ * Record writer to write events to kafka.
+ *
+ * Messages are sent without waiting for the previous ones to be acknowledged, so that the producer can batch and
+ * compress them. The number of messages in flight is bounded, and the first failure to send a message is thrown by
+ * the next call to {@link #write} or {@link #close}. Sync writes wait for each message to be acknowledged instead.
+ * The output committer of the task commits the writer, which fails the task if any message could not be sent. Spark
+ * closes the writer before committing the task, hence the messages are flushed and the flush counters are recorded
+ * when the writer is closed, and committing only closes the writer if it is still open.
  */
-public class KafkaRecordWriter extends RecordWriter<Text, Text> {
+public class KafkaRecordWriter extends RecordWriter<BytesWritable, BytesWritable> {
   private static final Logger LOG = LoggerFactory.getLogger(KafkaRecordWriter.class);
-  private KafkaProducer<String, String> producer;
-  private String topic;
+  private static final int MAX_IN_FLIGHT_RECORDS = 10000;
+
+  static final String COUNTER_GROUP = "Kafka Sink";
+  static final String FLUSH_TIME_COUNTER = "Flush time (ms)";
+  static final String PENDING_BYTES_COUNTER = "Pending bytes at close";
 
-  public KafkaRecordWriter(KafkaProducer<String, String> producer, String topic) {
+  private final Producer<byte[], byte[]> producer;
+  private final String topic;
+  private final boolean syncWrites;
+  private final Semaphore inFlight;
+  private final AtomicReference<Exception> failure;
+  private final Callback callback;
+  private boolean closed;
+
+  public KafkaRecordWriter(Producer<byte[], byte[]> producer, String topic) {
+    this(producer, topic, false);
+  }
+
+  public KafkaRecordWriter(Producer<byte[], byte[]> producer, String topic, boolean syncWrites) {
     this.producer = producer;
     this.topic = topic;
+    this.syncWrites = syncWrites;
+    this.inFlight = new Semaphore(MAX_IN_FLIGHT_RECORDS);
+    this.failure = new AtomicReference<>();
+    this.callback = (metadata, exception) -> {
+      if (exception != null && failure.compareAndSet(null, exception)) {
+        LOG.error("Failed to send a message to topic {}", topic, exception);
+      }
+      inFlight.release();
+    };
   }
 
   @Override
-  public void write(Text key, Text value) throws IOException, InterruptedException {
-    if (key == null) {
-      sendMessage(null, value.toString());
-    } else {
-      sendMessage(key.toString(), value.toString());
-    }
+  public void write(BytesWritable key, BytesWritable value) throws IOException, InterruptedException {
+    checkFailure();
+    sendMessage(key == null ? null : getBytes(key), getBytes(value));
   }
 
+  /**
+   * Waits for all the messages sent to be acknowledged and gives the producer back to the pool.
+   */
   @Override
   public void close(TaskAttemptContext taskAttemptContext) throws IOException, InterruptedException {
-    if (producer != null) {
-      producer.close();
+    if (producer == null || closed) {
+      return;
+    }
+    try {
+      flush(taskAttemptContext);
+    } finally {
+      closed = true;
+      KafkaProducerPool.release(producer);
+    }
+  }
+
+  /**
+   * Makes sure that all the messages sent are acknowledged, closing the writer if needed, and throws the first
+   * failure to send a message, even if it was already thrown by a call that did not fail the task.
+   */
+  void commit(TaskAttemptContext taskAttemptContext) throws IOException, InterruptedException {
+    close(taskAttemptContext);
+    checkFailure();
+  }
+
+  /**
+   * Gives the producer back to the pool without waiting for the messages in flight to be acknowledged. The producer
+   * is shared with other tasks, hence those messages are still sent.
+   */
+  void abort() {
+    if (producer != null && !closed) {
+      closed = true;
+      KafkaProducerPool.release(producer);
     }
   }
 
-  private void sendMessage(final String key, final String body) throws IOException, InterruptedException {
+  /**
+   * Waits for all the messages sent to be acknowledged, and throws the first failure to send a message. The time
+   * taken and the number of bytes buffered in the producer when the writer is closed are added to the counters of
+   * the task.
+   */
+  private void flush(TaskAttemptContext taskAttemptContext) throws IOException, InterruptedException {
+    long pendingBytes = getPendingBytes();
+    long startTime = System.currentTimeMillis();
+    // The producer has no flush, hence wait for the callbacks of all the messages sent
+    inFlight.acquire(MAX_IN_FLIGHT_RECORDS);
+    inFlight.release(MAX_IN_FLIGHT_RECORDS);
+    long flushTime = System.currentTimeMillis() - startTime;
+    taskAttemptContext.getCounter(COUNTER_GROUP, FLUSH_TIME_COUNTER).increment(flushTime);
+    taskAttemptContext.getCounter(COUNTER_GROUP, PENDING_BYTES_COUNTER).increment(pendingBytes);
+    LOG.debug("Flushed {} bytes pending for topic {} in {} ms", pendingBytes, topic, flushTime);
+    checkFailure();
+  }
+
+  /**
+   * Returns the number of bytes of messages buffered in the producer and not yet acknowledged.
+   */
+  private long getPendingBytes() {
+    double totalBytes = 0;
+    double availableBytes = 0;
+    for (Map.Entry<MetricName, ? extends Metric> entry : producer.metrics().entrySet()) {
+      if ("buffer-total-bytes".equals(entry.getKey().name())) {
+        totalBytes = entry.getValue().value();
+      } else if ("buffer-available-bytes".equals(entry.getKey().name())) {
+        availableBytes = entry.getValue().value();
+      }
+    }
+    return (long) Math.max(0, totalBytes - availableBytes);
+  }
+
+  private void sendMessage(byte[] key, byte[] body) throws IOException, InterruptedException {
+    ProducerRecord<byte[], byte[]> record = new ProducerRecord<>(topic, key, body);
+    if (syncWrites) {
+      try {
+        producer.send(record).get();
+      } catch (ExecutionException e) {
+        throw new IOException(e.getCause());
+      }
+      return;
+    }
+
+    inFlight.acquire();
     try {
-      producer.send(new ProducerRecord<>(topic, key, body)).get();
-    } catch (ExecutionException e) {
-      throw new IOException(e.getCause());
+      producer.send(record, callback);
+    } catch (RuntimeException e) {
+      // The callback is not called when the send fails right away
+      inFlight.release();
+      throw e;
+    }
+  }
+
+  /**
+   * Returns the bytes of the given writable, without copying them when the writable wraps an array of exact size.
+   */
+  private static byte[] getBytes(BytesWritable writable) {
+    byte[] bytes = writable.getBytes();
+    return bytes.length == writable.getLength() ? bytes : writable.copyBytes();
+  }
+
+  private void checkFailure() throws IOException {
+    Exception e = failure.get();
+    if (e != null) {
+      throw new IOException("Failed to send messages to topic " + topic, e);
     }
   }
 }
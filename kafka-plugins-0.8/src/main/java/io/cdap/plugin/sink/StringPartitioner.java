@@ -20,6 +20,8 @@ import com.google.common.hash.Hashing;
 import kafka.producer.Partitioner;
 import kafka.utils.VerifiableProperties;
 
+import java.nio.charset.StandardCharsets;
+
 /**
  * String partitioner for kafka
  */
@@ -32,6 +34,14 @@ public final class StringPartitioner implements Partitioner {
 
   @Override
   public int partition(Object key, int numPartitions) {
-    return Math.abs(Hashing.md5().hashString(key.toString()).asInt()) % numPartitions;
+    return Math.abs(Hashing.md5().hashString(getString(key)).asInt()) % numPartitions;
+  }
+
+  /**
+   * Returns the string of the given key. Keys are sent as UTF-8 bytes, which are hashed as the string they encode so
+   * that keys are assigned to the same partitions as when they were sent as strings.
+   */
+  private static String getString(Object key) {
+    return key instanceof byte[] ? new String((byte[]) key, StandardCharsets.UTF_8) : key.toString();
   }
 }
@@ -16,41 +16,44 @@
 
 package io.cdap.plugin.source;
 
+import com.google.common.collect.Iterators;
 import com.google.common.collect.Sets;
-import io.cdap.cdap.api.data.format.FormatSpecification;
-import io.cdap.cdap.api.data.format.RecordFormat;
 import io.cdap.cdap.api.data.format.StructuredRecord;
 import io.cdap.cdap.api.data.schema.Schema;
 import io.cdap.cdap.etl.api.FailureCollector;
+import io.cdap.cdap.etl.api.StageMetrics;
 import io.cdap.cdap.etl.api.streaming.StreamingContext;
-import io.cdap.cdap.format.RecordFormats;
+import io.cdap.plugin.common.KafkaBrokerQuery;
+import io.cdap.plugin.common.KafkaRecordDecoder;
 import kafka.api.OffsetRequest;
 import kafka.api.PartitionOffsetRequestInfo;
+import kafka.common.ErrorMapping;
 import kafka.common.TopicAndPartition;
-import kafka.javaapi.OffsetResponse;
 import kafka.javaapi.PartitionMetadata;
 import kafka.javaapi.TopicMetadata;
 import kafka.javaapi.TopicMetadataRequest;
-import kafka.javaapi.TopicMetadataResponse;
-import kafka.javaapi.consumer.SimpleConsumer;
 import kafka.message.MessageAndMetadata;
 import kafka.serializer.DefaultDecoder;
 import org.apache.spark.api.java.JavaRDD;
+import org.apache.spark.api.java.JavaSparkContext;
+import org.apache.spark.api.java.function.FlatMapFunction;
 import org.apache.spark.api.java.function.Function;
 import org.apache.spark.api.java.function.Function2;
+import org.apache.spark.broadcast.Broadcast;
 import org.apache.spark.streaming.Time;
 import org.apache.spark.streaming.api.java.JavaDStream;
 import org.apache.spark.streaming.kafka.KafkaUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.Serializable;
 import java.nio.ByteBuffer;
-import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.List;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
 
 /**
@@ -74,16 +77,11 @@ final class KafkaStreamingSourceUtil {
     Map<String, String> kafkaParams = new HashMap<>();
     kafkaParams.put("metadata.broker.list", conf.getBrokers());
 
-    List<SimpleConsumer> consumers = new ArrayList<>();
     Map<String, Integer> brokerMap = conf.getBrokerMap(collector);
     collector.getOrThrowException();
-    for (Map.Entry<String, Integer> brokerEntry : brokerMap.entrySet()) {
-      consumers.add(new SimpleConsumer(brokerEntry.getKey(), brokerEntry.getValue(),
-                                       20 * 1000, 128 * 1024, "partitionLookup"));
-    }
 
     try {
-      Set<Integer> partitions = getPartitions(consumers, conf, collector);
+      Set<Integer> partitions = getPartitions(brokerMap, conf, collector, context.getMetrics());
       Map<TopicAndPartition, Long> offsets = conf.getInitialPartitionOffsets(partitions, collector);
       collector.getOrThrowException();
 
@@ -98,25 +96,31 @@ final class KafkaStreamingSourceUtil {
         }
       }
 
-      kafka.javaapi.OffsetRequest offsetRequest =
-        new kafka.javaapi.OffsetRequest(offsetsToRequest, OffsetRequest.CurrentVersion(), "offsetLookup");
-      Set<TopicAndPartition> offsetsFound = new HashSet<>();
-      for (SimpleConsumer consumer : consumers) {
-        OffsetResponse response = consumer.getOffsetsBefore(offsetRequest);
-        for (TopicAndPartition topicAndPartition : offsetsToRequest.keySet()) {
-          String topic = topicAndPartition.topic();
-          int partition = topicAndPartition.partition();
-          if (response.errorCode(topic, partition) == 0) {
-            offsets.put(topicAndPartition, response.offsets(topic, partition)[0]);
-            offsetsFound.add(topicAndPartition);
-          }
-        }
-      }
+      if (!offsetsToRequest.isEmpty()) {
+        // Each broker only knows the offsets of the partitions it leads, hence the responses of all brokers are
+        // combined until the offsets of all partitions are found
+        kafka.javaapi.OffsetRequest offsetRequest =
+          new kafka.javaapi.OffsetRequest(offsetsToRequest, OffsetRequest.CurrentVersion(), "offsetLookup");
+        Set<TopicAndPartition> offsetsFound = new HashSet<>();
+        KafkaBrokerQuery.query(brokerMap, "offsets of topic " + conf.getTopic(), KafkaBrokerQuery.DEFAULT_DEADLINE_MS,
+                               consumer -> consumer.getOffsetsBefore(offsetRequest), response -> {
+            for (TopicAndPartition topicAndPartition : offsetsToRequest.keySet()) {
+              String topic = topicAndPartition.topic();
+              int partition = topicAndPartition.partition();
+              if (response.errorCode(topic, partition) == 0) {
+                offsets.put(topicAndPartition, response.offsets(topic, partition)[0]);
+                offsetsFound.add(topicAndPartition);
+              }
+            }
+            return offsetsFound.containsAll(offsetsToRequest.keySet());
+          }, context.getMetrics());
 
-      Set<TopicAndPartition> missingOffsets = Sets.difference(offsetsToRequest.keySet(), offsetsFound);
-      if (!missingOffsets.isEmpty()) {
-        throw new IllegalStateException(String.format(
-          "Could not find offsets for %s. Please check all brokers were included in the broker list.", missingOffsets));
+        Set<TopicAndPartition> missingOffsets = Sets.difference(offsetsToRequest.keySet(), offsetsFound);
+        if (!missingOffsets.isEmpty()) {
+          throw new IllegalStateException(String.format(
+            "Could not find offsets for %s. Please check all brokers were included in the broker list.",
+            missingOffsets));
+        }
       }
       LOG.info("Using initial offsets {}", offsets);
 
@@ -126,23 +130,19 @@ final class KafkaStreamingSourceUtil {
         (Function<MessageAndMetadata<byte[], byte[]>, MessageAndMetadata>) in -> in)
         .transform(new RecordTransform(conf));
     } catch (Exception e) {
-      // getPartitions() throws a ClosedChannelException if kafka connection fails
+      // getPartitions() throws an exception if kafka connection fails
       LOG.error("Unable to read from kafka. " +
                   "Please verify that the hostname/IPAddress of the kafka server is correct and that it is running.");
       throw e;
-    } finally {
-      for (SimpleConsumer consumer : consumers) {
-        try {
-          consumer.close();
-        } catch (Exception e) {
-          LOG.warn("Error closing Kafka consumer.", e);
-        }
-      }
     }
   }
 
-  private static Set<Integer> getPartitions(List<SimpleConsumer> consumers, KafkaConfig conf,
-                                            FailureCollector collector) {
+  /**
+   * Returns the partitions to read from. If no partition is configured, the metadata of the topic is requested from
+   * all the brokers concurrently, and the first answer is used.
+   */
+  private static Set<Integer> getPartitions(Map<String, Integer> brokerMap, KafkaConfig conf,
+                                            FailureCollector collector, StageMetrics metrics) {
     Set<Integer> partitions = conf.getPartitions(collector);
     collector.getOrThrowException();
     if (!partitions.isEmpty()) {
@@ -150,138 +150,171 @@ final class KafkaStreamingSourceUtil {
     }
 
     TopicMetadataRequest topicMetadataRequest = new TopicMetadataRequest(Collections.singletonList(conf.getTopic()));
-    for (SimpleConsumer consumer : consumers) {
-      TopicMetadataResponse response = consumer.send(topicMetadataRequest);
-      for (TopicMetadata topicMetadata : response.topicsMetadata()) {
-        for (PartitionMetadata partitionMetadata : topicMetadata.partitionsMetadata()) {
-          partitions.add(partitionMetadata.partitionId());
+    boolean found = KafkaBrokerQuery.query(brokerMap, "metadata of topic " + conf.getTopic(),
+                                           KafkaBrokerQuery.DEFAULT_DEADLINE_MS,
+                                           consumer -> consumer.send(topicMetadataRequest), response -> {
+        for (TopicMetadata topicMetadata : response.topicsMetadata()) {
+          if (!conf.getTopic().equals(topicMetadata.topic()) || topicMetadata.errorCode() != ErrorMapping.NoError()) {
+            continue;
+          }
+          for (PartitionMetadata partitionMetadata : topicMetadata.partitionsMetadata()) {
+            partitions.add(partitionMetadata.partitionId());
+          }
         }
-      }
+        return !partitions.isEmpty();
+      }, metrics);
+    if (!found) {
+      throw new IllegalStateException(String.format("Failed to get the partitions of topic %s from brokers %s",
+                                                    conf.getTopic(), brokerMap));
     }
 
     return partitions;
   }
 
   /**
-   * Applies the format function to each rdd.
+   * Applies the record function to each partition of each rdd. The decoder spec is broadcast once, so that the tasks
+   * only carry a reference to it. The broadcast is created lazily on the driver, because broadcasts cannot be
+   * restored from a streaming checkpoint.
    */
   private static class RecordTransform
     implements Function2<JavaRDD<MessageAndMetadata>, Time, JavaRDD<StructuredRecord>> {
 
-    private final KafkaConfig conf;
+    private final DecoderSpec spec;
+    private transient Broadcast<DecoderSpec> specBroadcast;
 
     RecordTransform(KafkaConfig conf) {
-      this.conf = conf;
+      this.spec = new DecoderSpec(conf);
     }
 
     @Override
-    public JavaRDD<StructuredRecord> call(JavaRDD<MessageAndMetadata> input, Time batchTime) throws Exception {
-      Function<MessageAndMetadata, StructuredRecord> recordFunction = conf.getFormat() == null ?
-        new BytesFunction(batchTime.milliseconds(), conf) : new FormatFunction(batchTime.milliseconds(), conf);
-      return input.map(recordFunction);
+    public JavaRDD<StructuredRecord> call(JavaRDD<MessageAndMetadata> input, Time batchTime) {
+      if (specBroadcast == null) {
+        specBroadcast = JavaSparkContext.fromSparkContext(input.context()).broadcast(spec);
+      }
+      return input.mapPartitions(new RecordFunction(batchTime.milliseconds(), specBroadcast));
     }
   }
 
   /**
-   * Common logic for transforming kafka key, message, partition, and offset into a structured record.
+   * Transforms the kafka messages of a partition into structured records.
    * Everything here should be serializable, as Spark Streaming will serialize all functions.
    */
-  private abstract static class BaseFunction implements Function<MessageAndMetadata, StructuredRecord> {
+  private static class RecordFunction implements FlatMapFunction<Iterator<MessageAndMetadata>, StructuredRecord> {
     private final long ts;
-    protected final KafkaConfig conf;
-    private transient String messageField;
-    private transient String timeField;
-    private transient String keyField;
-    private transient String partitionField;
-    private transient String offsetField;
-    private transient Schema schema;
-
-    BaseFunction(long ts, KafkaConfig conf) {
+    private final Broadcast<DecoderSpec> spec;
+
+    RecordFunction(long ts, Broadcast<DecoderSpec> spec) {
       this.ts = ts;
-      this.conf = conf;
+      this.spec = spec;
     }
 
     @Override
-    public StructuredRecord call(MessageAndMetadata in) throws Exception {
-      // first time this was called, initialize schema and time, key, and message fields.
-      if (schema == null) {
-        schema = conf.getSchema();
-        timeField = conf.getTimeField();
-        keyField = conf.getKeyField();
-        partitionField = conf.getPartitionField();
-        offsetField = conf.getOffsetField();
-        for (Schema.Field field : schema.getFields()) {
-          String name = field.getName();
-          if (!name.equals(timeField) && !name.equals(keyField)) {
-            messageField = name;
-            break;
-          }
-        }
-      }
-
-      StructuredRecord.Builder builder = StructuredRecord.builder(schema);
-      if (timeField != null) {
-        builder.set(timeField, ts);
-      }
-      if (keyField != null) {
-        builder.set(keyField, in.key());
-      }
-      if (partitionField != null) {
-        builder.set(partitionField, in.partition());
-      }
-      if (offsetField != null) {
-        builder.set(offsetField, in.offset());
-      }
-      addMessage(builder, messageField, (byte[]) in.message());
-      return builder.build();
+    public Iterator<StructuredRecord> call(Iterator<MessageAndMetadata> input) throws Exception {
+      MessageDecoder decoder = MessageDecoder.get(spec.value());
+      return Iterators.transform(input, in -> decoder.decode(in, ts));
     }
-
-    protected abstract void addMessage(StructuredRecord.Builder builder, String messageField,
-                                       byte[] message) throws Exception;
   }
 
   /**
-   * Transforms kafka key and message into a structured record when message format is not given.
-   * Everything here should be serializable, as Spark Streaming will serialize all functions.
+   * The schemas and field names needed to transform kafka messages into structured records, parsed once on the
+   * driver.
    */
-  private static class BytesFunction extends BaseFunction {
+  private static final class DecoderSpec implements Serializable {
+    private static final long serialVersionUID = -2739421896185301517L;
+
+    private final Schema schema;
+    private final Schema messageSchema;
+    private final String format;
+    private final String messageField;
+    private final String timeField;
+    private final String keyField;
+    private final String partitionField;
+    private final String offsetField;
 
-    BytesFunction(long ts, KafkaConfig conf) {
-      super(ts, conf);
+    DecoderSpec(KafkaConfig conf) {
+      this.schema = conf.getSchema();
+      this.messageSchema = conf.getMessageSchema();
+      this.format = conf.getFormat();
+      this.messageField = messageSchema.getFields().get(0).getName();
+      this.timeField = conf.getTimeField();
+      this.keyField = conf.getKeyField();
+      this.partitionField = conf.getPartitionField();
+      this.offsetField = conf.getOffsetField();
     }
 
     @Override
-    protected void addMessage(StructuredRecord.Builder builder, String messageField, byte[] message) {
-      builder.set(messageField, message);
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (o == null || getClass() != o.getClass()) {
+        return false;
+      }
+      DecoderSpec that = (DecoderSpec) o;
+      return schema.equals(that.schema) && Objects.equals(format, that.format)
+        && Objects.equals(timeField, that.timeField) && Objects.equals(keyField, that.keyField)
+        && Objects.equals(partitionField, that.partitionField) && Objects.equals(offsetField, that.offsetField);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(schema, format, timeField, keyField, partitionField, offsetField);
     }
   }
 
   /**
-   * Transforms kafka key and message into a structured record when message format and schema are given.
-   * Everything here should be serializable, as Spark Streaming will serialize all functions.
+   * Transforms kafka messages into structured records. Decoders hold the initialized record format, which is not
+   * thread safe, hence they are cached per thread. This allows the tasks of all the batches running on the same
+   * executor thread to reuse the same decoder.
    */
-  private static class FormatFunction extends BaseFunction {
-    private transient RecordFormat<ByteBuffer, StructuredRecord> recordFormat;
+  private static final class MessageDecoder {
+    private static final ThreadLocal<Map<DecoderSpec, MessageDecoder>> DECODERS =
+      ThreadLocal.withInitial(HashMap::new);
 
-    FormatFunction(long ts, KafkaConfig conf) {
-      super(ts, conf);
+    private final DecoderSpec spec;
+    private final KafkaRecordDecoder recordDecoder;
+
+    static MessageDecoder get(DecoderSpec spec) throws Exception {
+      Map<DecoderSpec, MessageDecoder> decoders = DECODERS.get();
+      MessageDecoder decoder = decoders.get(spec);
+      if (decoder == null) {
+        decoder = new MessageDecoder(spec);
+        decoders.put(spec, decoder);
+      }
+      return decoder;
     }
 
-    @Override
-    protected void addMessage(StructuredRecord.Builder builder, String messageField, byte[] message) throws Exception {
-      // first time this was called, initialize record format
-      if (recordFormat == null) {
-        Schema messageSchema = conf.getMessageSchema();
-        FormatSpecification spec =
-          new FormatSpecification(conf.getFormat(), messageSchema, new HashMap<>());
-        recordFormat = RecordFormats.createInitializedFormat(spec);
+    private MessageDecoder(DecoderSpec spec) throws Exception {
+      this.spec = spec;
+      this.recordDecoder = spec.format == null
+        ? null : new KafkaRecordDecoder(spec.schema, spec.messageSchema, spec.format);
+    }
+
+    StructuredRecord decode(MessageAndMetadata in, long ts) {
+      // Without time, key, partition or offset fields, the output record is decoded directly
+      if (recordDecoder != null && recordDecoder.isPassThrough()) {
+        return recordDecoder.decode(ByteBuffer.wrap((byte[]) in.message()));
       }
 
-      StructuredRecord messageRecord = recordFormat.read(ByteBuffer.wrap(message));
-      for (Schema.Field field : messageRecord.getSchema().getFields()) {
-        String fieldName = field.getName();
-        builder.set(fieldName, messageRecord.get(fieldName));
+      StructuredRecord.Builder builder = StructuredRecord.builder(spec.schema);
+      if (spec.timeField != null) {
+        builder.set(spec.timeField, ts);
       }
+      if (spec.keyField != null) {
+        builder.set(spec.keyField, in.key());
+      }
+      if (spec.partitionField != null) {
+        builder.set(spec.partitionField, in.partition());
+      }
+      if (spec.offsetField != null) {
+        builder.set(spec.offsetField, in.offset());
+      }
+      if (recordDecoder == null) {
+        builder.set(spec.messageField, (byte[]) in.message());
+      } else {
+        recordDecoder.decode(ByteBuffer.wrap((byte[]) in.message()), builder);
+      }
+      return builder.build();
     }
   }
 
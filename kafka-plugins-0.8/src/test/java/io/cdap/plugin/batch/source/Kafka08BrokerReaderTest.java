@@ -0,0 +1,332 @@
+/*
+ * Copyright © 2022 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package io.cdap.plugin.batch.source;
+
+import kafka.api.PartitionFetchInfo;
+import kafka.common.ErrorMapping;
+import kafka.common.TopicAndPartition;
+import kafka.javaapi.FetchRequest;
+import kafka.javaapi.FetchResponse;
+import kafka.javaapi.consumer.SimpleConsumer;
+import kafka.javaapi.message.ByteBufferMessageSet;
+import kafka.message.Message;
+import org.junit.Assert;
+import org.junit.Test;
+import scala.collection.JavaConverters;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+import javax.annotation.Nullable;
+
+/**
+ * Tests for {@link Kafka08BrokerReader}, with a fake consumer in place of the connection to the leader.
+ */
+public class Kafka08BrokerReaderTest {
+
+  private static final String LEADER = "broker1:9092";
+
+  @Test
+  public void testRoundRobin() throws Exception {
+    // Only two partitions fit in one fetch request with this fetch size
+    Map<String, String> conf = createConf(20 * 1024 * 1024);
+    List<KafkaRequest> requests = Arrays.asList(createRequest("roundrobin", 0, 0L, 2L, LEADER, conf),
+                                                createRequest("roundrobin", 1, 0L, 2L, LEADER, conf),
+                                                createRequest("roundrobin", 2, 0L, 2L, LEADER, conf));
+    FakeConsumer consumer = new FakeConsumer(info -> {
+      FakeFetchResponse response = new FakeFetchResponse();
+      info.forEach((topicAndPartition, fetchInfo) -> response.add(topicAndPartition, fetchInfo.offset()));
+      return response;
+    });
+    List<KafkaRequest> fallbackRequests = new ArrayList<>();
+
+    Kafka08BrokerReader reader = createReader(requests, consumer, fallbackRequests);
+    Assert.assertEquals(Arrays.asList("0@0", "1@0", "2@0", "0@1", "1@1", "2@1"), readAll(reader));
+    reader.close();
+
+    // The partitions are fetched in turns
+    Assert.assertEquals(Arrays.asList(partitions(0, 1), partitions(0, 2), partitions(1, 2)),
+                        consumer.getFetchedPartitions());
+    Assert.assertTrue(fallbackRequests.isEmpty());
+    Assert.assertTrue(consumer.closed);
+  }
+
+  @Test
+  public void testLeaderErrorFallback() throws Exception {
+    Map<String, String> conf = createConf(-1);
+    List<KafkaRequest> requests = Arrays.asList(createRequest("leader", 0, 0L, 2L, LEADER, conf),
+                                                createRequest("leader", 1, 0L, 2L, LEADER, conf),
+                                                createRequest("leader", 2, 0L, 1L, "broker2:9092", conf));
+    FakeConsumer consumer = new FakeConsumer(info -> {
+      FakeFetchResponse response = new FakeFetchResponse();
+      info.forEach((topicAndPartition, fetchInfo) -> {
+        if (topicAndPartition.partition() == 1) {
+          response.addError(topicAndPartition, ErrorMapping.NotLeaderForPartitionCode());
+        } else {
+          response.add(topicAndPartition, fetchInfo.offset());
+        }
+      });
+      return response;
+    });
+    List<KafkaRequest> fallbackRequests = new ArrayList<>();
+
+    // The partition led by another broker and the partition whose leader changed are read separately at the end
+    Kafka08BrokerReader reader = createReader(requests, consumer, fallbackRequests);
+    Assert.assertEquals(Arrays.asList("0@0", "0@1", "2@0", "1@0", "1@1"), readAll(reader));
+    reader.close();
+
+    Assert.assertEquals(Arrays.asList("2[0,1)", "1[0,2)"), describe(fallbackRequests));
+    Assert.assertEquals(Arrays.asList(partitions(0, 1), partitions(0)), consumer.getFetchedPartitions());
+  }
+
+  @Test
+  public void testFetchExceptionFallback() throws Exception {
+    Map<String, String> conf = createConf(-1);
+    List<KafkaRequest> requests = Arrays.asList(createRequest("failure", 0, 0L, 3L, LEADER, conf),
+                                                createRequest("failure", 1, 0L, 3L, LEADER, conf));
+    FakeConsumer consumer = new FakeConsumer(info -> {
+      throw new RuntimeException("Connection lost");
+    });
+    consumer.responses.add(info -> {
+      FakeFetchResponse response = new FakeFetchResponse();
+      info.forEach((topicAndPartition, fetchInfo) -> response.add(topicAndPartition, fetchInfo.offset()));
+      return response;
+    });
+    List<KafkaRequest> fallbackRequests = new ArrayList<>();
+
+    // The partitions left are read separately from where the broker reader stopped
+    Kafka08BrokerReader reader = createReader(requests, consumer, fallbackRequests);
+    Assert.assertEquals(Arrays.asList("0@0", "1@0", "0@1", "0@2", "1@1", "1@2"), readAll(reader));
+    reader.close();
+
+    Assert.assertEquals(Arrays.asList("0[1,3)", "1[1,3)"), describe(fallbackRequests));
+    Assert.assertEquals(2, consumer.fetchInfos.size());
+    Assert.assertTrue(consumer.closed);
+  }
+
+  @Test
+  public void testIncreaseFetchSize() throws Exception {
+    Map<String, String> conf = createConf(1024);
+    List<KafkaRequest> requests = Arrays.asList(createRequest("large", 0, 0L, 2L, LEADER, conf));
+    FakeConsumer consumer = new FakeConsumer(info -> {
+      FakeFetchResponse response = new FakeFetchResponse();
+      info.forEach((topicAndPartition, fetchInfo) -> response.add(topicAndPartition, fetchInfo.offset()));
+      return response;
+    });
+    // The first response only has the beginning of a message larger than the fetch size
+    consumer.responses.add(info -> {
+      FakeFetchResponse response = new FakeFetchResponse();
+      info.forEach((topicAndPartition, fetchInfo) -> response.addTruncated(topicAndPartition, fetchInfo.offset()));
+      return response;
+    });
+
+    Kafka08BrokerReader reader = createReader(requests, consumer, new ArrayList<>());
+    Assert.assertEquals(Arrays.asList("0@0", "0@1"), readAll(reader));
+    reader.close();
+
+    // The fetch size is doubled to read the large message, and reset once it is read
+    List<Integer> fetchSizes = new ArrayList<>();
+    for (Map<TopicAndPartition, PartitionFetchInfo> info : consumer.fetchInfos) {
+      fetchSizes.add(info.get(new TopicAndPartition("large", 0)).fetchSize());
+    }
+    Assert.assertEquals(Arrays.asList(1024, 2048, 1024), fetchSizes);
+  }
+
+  private Map<String, String> createConf(int fetchSize) {
+    Map<String, String> conf = new HashMap<>();
+    conf.put(KafkaInputFormat.KAFKA_BROKERS, LEADER);
+    if (fetchSize > 0) {
+      conf.put(KafkaInputFormat.FETCH_SIZE_BYTES, String.valueOf(fetchSize));
+    }
+    return conf;
+  }
+
+  private KafkaRequest createRequest(String topic, int partition, long startOffset, long endOffset,
+                                     @Nullable String leader, Map<String, String> conf) {
+    return new KafkaRequest(topic, partition, conf, startOffset, endOffset, 100L, leader);
+  }
+
+  private Kafka08BrokerReader createReader(List<KafkaRequest> requests, SimpleConsumer consumer,
+                                           List<KafkaRequest> fallbackRequests) {
+    return new Kafka08BrokerReader(requests, leader -> consumer, request -> {
+      fallbackRequests.add(request);
+      return new FakeFallbackReader(request);
+    });
+  }
+
+  /**
+   * Reads all the messages of the given reader, as partition@offset strings, checking that their payload matches.
+   */
+  private List<String> readAll(KafkaReader reader) {
+    List<String> messages = new ArrayList<>();
+    KafkaKey key = new KafkaKey();
+    KafkaMessage message = new KafkaMessage();
+    while (reader.hasNext()) {
+      reader.getNext(key, message);
+      String id = key.getPartition() + "@" + (key.getOffset() - 1);
+      Assert.assertEquals(id, new String(message.getPayloadBytes(), StandardCharsets.UTF_8));
+      messages.add(id);
+    }
+    return messages;
+  }
+
+  private List<String> describe(List<KafkaRequest> requests) {
+    List<String> descriptions = new ArrayList<>();
+    for (KafkaRequest request : requests) {
+      descriptions.add(request.getPartition() + "[" + request.getStartOffset() + "," + request.getEndOffset() + ")");
+    }
+    return descriptions;
+  }
+
+  private Set<Integer> partitions(Integer... partitions) {
+    return new HashSet<>(Arrays.asList(partitions));
+  }
+
+  /**
+   * Returns a message set with a single message at the given offset, with partition@offset as payload.
+   */
+  private static ByteBufferMessageSet createMessageSet(int partition, long offset) {
+    Message message = new Message((partition + "@" + offset).getBytes(StandardCharsets.UTF_8),
+                                  "key".getBytes(StandardCharsets.UTF_8));
+    ByteBuffer buffer = ByteBuffer.allocate(12 + message.size());
+    buffer.putLong(offset);
+    buffer.putInt(message.size());
+    buffer.put(message.buffer().duplicate());
+    buffer.flip();
+    return new ByteBufferMessageSet(buffer);
+  }
+
+  /**
+   * A consumer that answers fetch requests with the given functions instead of connecting to a broker. The functions
+   * added to {@link #responses} answer the first requests, and the default function answers the ones after.
+   */
+  private static final class FakeConsumer extends SimpleConsumer {
+    private final List<Map<TopicAndPartition, PartitionFetchInfo>> fetchInfos = new ArrayList<>();
+    private final List<Function<Map<TopicAndPartition, PartitionFetchInfo>, FetchResponse>> responses =
+      new ArrayList<>();
+    private final Function<Map<TopicAndPartition, PartitionFetchInfo>, FetchResponse> defaultResponse;
+    private boolean closed;
+
+    FakeConsumer(Function<Map<TopicAndPartition, PartitionFetchInfo>, FetchResponse> defaultResponse) {
+      super("broker1", 9092, 1000, 1024, "test");
+      this.defaultResponse = defaultResponse;
+    }
+
+    @Override
+    public FetchResponse fetch(FetchRequest request) {
+      Map<TopicAndPartition, PartitionFetchInfo> info =
+        new HashMap<>(JavaConverters.mapAsJavaMapConverter(request.underlying().requestInfo()).asJava());
+      fetchInfos.add(info);
+      return responses.isEmpty() ? defaultResponse.apply(info) : responses.remove(0).apply(info);
+    }
+
+    List<Set<Integer>> getFetchedPartitions() {
+      List<Set<Integer>> fetched = new ArrayList<>();
+      for (Map<TopicAndPartition, PartitionFetchInfo> info : fetchInfos) {
+        Set<Integer> partitions = new HashSet<>();
+        for (TopicAndPartition topicAndPartition : info.keySet()) {
+          partitions.add(topicAndPartition.partition());
+        }
+        fetched.add(partitions);
+      }
+      return fetched;
+    }
+
+    @Override
+    public void close() {
+      closed = true;
+    }
+  }
+
+  /**
+   * A fetch response with the error codes and message sets added to it.
+   */
+  private static final class FakeFetchResponse extends FetchResponse {
+    private final Map<TopicAndPartition, Short> errorCodes = new HashMap<>();
+    private final Map<TopicAndPartition, ByteBufferMessageSet> messageSets = new HashMap<>();
+
+    FakeFetchResponse() {
+      super(null);
+    }
+
+    void add(TopicAndPartition topicAndPartition, long offset) {
+      messageSets.put(topicAndPartition, createMessageSet(topicAndPartition.partition(), offset));
+    }
+
+    void addTruncated(TopicAndPartition topicAndPartition, long offset) {
+      ByteBuffer buffer = ByteBuffer.allocate(20);
+      buffer.putLong(offset);
+      buffer.putInt(4096);
+      buffer.rewind();
+      messageSets.put(topicAndPartition, new ByteBufferMessageSet(buffer));
+    }
+
+    void addError(TopicAndPartition topicAndPartition, short errorCode) {
+      errorCodes.put(topicAndPartition, errorCode);
+    }
+
+    @Override
+    public short errorCode(String topic, int partition) {
+      Short errorCode = errorCodes.get(new TopicAndPartition(topic, partition));
+      return errorCode == null ? ErrorMapping.NoError() : errorCode;
+    }
+
+    @Override
+    public ByteBufferMessageSet messageSet(String topic, int partition) {
+      ByteBufferMessageSet messageSet = messageSets.get(new TopicAndPartition(topic, partition));
+      return messageSet == null ? new ByteBufferMessageSet(ByteBuffer.allocate(0)) : messageSet;
+    }
+  }
+
+  /**
+   * A reader of a single request that returns the messages created by {@link #createMessageSet(int, long)}.
+   */
+  private static final class FakeFallbackReader implements KafkaReader {
+    private final KafkaRequest request;
+    private long offset;
+
+    FakeFallbackReader(KafkaRequest request) {
+      this.request = request;
+      this.offset = request.getStartOffset();
+    }
+
+    @Override
+    public boolean hasNext() {
+      return offset < request.getEndOffset();
+    }
+
+    @Override
+    public void getNext(KafkaKey kafkaKey, KafkaMessage kafkaMessage) {
+      kafkaKey.set(request.getTopic(), request.getPartition(), offset, offset + 1, 0L, 0L);
+      kafkaMessage.set((request.getPartition() + "@" + offset).getBytes(StandardCharsets.UTF_8), null);
+      offset++;
+    }
+
+    @Override
+    public void close() {
+      // no-op
+    }
+  }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright © 2022 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package io.cdap.plugin.common;
+
+import org.apache.kafka.clients.producer.MockProducer;
+import org.apache.kafka.clients.producer.Producer;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests for {@link KafkaProducerPool}.
+ */
+public class KafkaProducerPoolTest {
+
+  private static final long IDLE_TIMEOUT_MS = TimeUnit.MINUTES.toMillis(1);
+
+  @Test
+  public void testReferenceCounting() {
+    Properties props = createProps("references");
+    AtomicInteger created = new AtomicInteger();
+    ClosingProducer producer = new ClosingProducer();
+    Producer<byte[], byte[]> first = KafkaProducerPool.acquire(props, p -> {
+      created.incrementAndGet();
+      return producer;
+    });
+    Producer<byte[], byte[]> second = KafkaProducerPool.acquire(props, p -> {
+      created.incrementAndGet();
+      return new ClosingProducer();
+    });
+    Assert.assertSame(producer, first);
+    Assert.assertSame(producer, second);
+    Assert.assertEquals(1, created.get());
+
+    // The producer is not closed while it is acquired, however long it has been used
+    KafkaProducerPool.release(first);
+    KafkaProducerPool.evictIdle(System.currentTimeMillis() + 2 * IDLE_TIMEOUT_MS);
+    Assert.assertFalse(producer.closed);
+
+    // Once released by everyone, it is only closed after being idle for the timeout
+    KafkaProducerPool.release(second);
+    KafkaProducerPool.evictIdle(System.currentTimeMillis());
+    Assert.assertFalse(producer.closed);
+    KafkaProducerPool.evictIdle(System.currentTimeMillis() + IDLE_TIMEOUT_MS);
+    Assert.assertTrue(producer.closed);
+
+    // A closed producer is not returned anymore
+    ClosingProducer next = new ClosingProducer();
+    Assert.assertSame(next, KafkaProducerPool.acquire(props, p -> next));
+    KafkaProducerPool.release(next);
+  }
+
+  @Test
+  public void testReacquireIdle() {
+    Properties props = createProps("reacquire");
+    ClosingProducer producer = new ClosingProducer();
+    KafkaProducerPool.release(KafkaProducerPool.acquire(props, p -> producer));
+
+    // An idle producer that is acquired again is kept warm
+    Assert.assertSame(producer, KafkaProducerPool.acquire(props, p -> new ClosingProducer()));
+    KafkaProducerPool.evictIdle(System.currentTimeMillis() + 2 * IDLE_TIMEOUT_MS);
+    Assert.assertFalse(producer.closed);
+    KafkaProducerPool.release(producer);
+  }
+
+  @Test
+  public void testDifferentConfigurations() {
+    Producer<byte[], byte[]> first = KafkaProducerPool.acquire(createProps("first"), p -> new ClosingProducer());
+    Producer<byte[], byte[]> second = KafkaProducerPool.acquire(createProps("second"), p -> new ClosingProducer());
+    Assert.assertNotSame(first, second);
+    KafkaProducerPool.release(first);
+    KafkaProducerPool.release(second);
+  }
+
+  @Test
+  public void testReleaseSymmetry() {
+    Producer<byte[], byte[]> producer = KafkaProducerPool.acquire(createProps("symmetry"),
+                                                                  p -> new ClosingProducer());
+    KafkaProducerPool.release(producer);
+    try {
+      KafkaProducerPool.release(producer);
+      Assert.fail("Expected a producer released more times than acquired to be rejected");
+    } catch (IllegalStateException e) {
+      // expected
+    }
+    try {
+      KafkaProducerPool.release(new ClosingProducer());
+      Assert.fail("Expected a producer not acquired from the pool to be rejected");
+    } catch (IllegalStateException e) {
+      // expected
+    }
+  }
+
+  private Properties createProps(String clientId) {
+    Properties props = new Properties();
+    props.put("bootstrap.servers", "localhost:9092");
+    props.put("client.id", KafkaProducerPoolTest.class.getSimpleName() + "-" + clientId);
+    return props;
+  }
+
+  /**
+   * A mock producer that records whether it is closed.
+   */
+  private static final class ClosingProducer extends MockProducer {
+    private volatile boolean closed;
+
+    ClosingProducer() {
+      super(true);
+    }
+
+    @Override
+    public void close() {
+      closed = true;
+    }
+  }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright © 2022 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin.batch.source;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.function.Function;
+
+/**
+ * A {@link KafkaReader} that reads a list of {@link KafkaRequest}s one after the other, with a reader created
+ * for each of them.
+ */
+final class ChainedKafkaReader implements KafkaReader {
+
+  private final Iterator<KafkaRequest> requests;
+  private final Function<KafkaRequest, KafkaReader> readerFunction;
+  private KafkaReader reader;
+
+  ChainedKafkaReader(List<KafkaRequest> requests, Function<KafkaRequest, KafkaReader> readerFunction) {
+    this.requests = requests.iterator();
+    this.readerFunction = readerFunction;
+  }
+
+  @Override
+  public boolean hasNext() {
+    while (reader == null || !reader.hasNext()) {
+      try {
+        closeReader();
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+      if (!requests.hasNext()) {
+        return false;
+      }
+      reader = readerFunction.apply(requests.next());
+    }
+    return true;
+  }
+
+  @Override
+  public void getNext(KafkaKey kafkaKey, KafkaMessage kafkaMessage) {
+    if (!hasNext()) {
+      throw new NoSuchElementException("No message is available");
+    }
+    reader.getNext(kafkaKey, kafkaMessage);
+  }
+
+  @Override
+  public void close() throws IOException {
+    closeReader();
+  }
+
+  private void closeReader() throws IOException {
+    if (reader != null) {
+      try {
+        reader.close();
+      } finally {
+        reader = null;
+      }
+    }
+  }
+}
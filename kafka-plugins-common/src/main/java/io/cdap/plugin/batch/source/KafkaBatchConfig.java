@@ -3,6 +3,7 @@ package io.cdap.plugin.batch.source;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Splitter;
 import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
 import io.cdap.cdap.api.annotation.Description;
 import io.cdap.cdap.api.annotation.Macro;
 import io.cdap.cdap.api.data.format.FormatSpecification;
@@ -33,14 +34,21 @@ public class KafkaBatchConfig extends ReferencePluginConfig {
   public static final String KEY_FIELD = "keyField";
   public static final String PARTITION_FIELD = "partitionField";
   public static final String OFFSET_FIELD = "offsetField";
+  public static final String TOPIC_FIELD = "topicField";
   public static final String SCHEMA = "schema";
   public static final String INITIAL_PARTITION_OFFSETS = "initialPartitionOffsets";
   public static final String FORMAT = "format";
   public static final String TOPIC = "topic";
   public static final String KAFKA_BROKERS = "kafkaBrokers";
+  public static final String MAX_PARTITION_BYTES = "maxPartitionBytes";
+  public static final String MAX_SPLIT_RECORDS = "maxSplitRecords";
+  public static final String MAX_SPLIT_BYTES = "maxSplitBytes";
+  public static final String COMBINE_SPLITS = "combineSplits";
+  public static final String PREFETCH_BYTES = "prefetchBytes";
 
   @Description("Kafka topic to read from.")
   @Macro
+  @Nullable
   private String topic;
 
   @Description("A directory path to store the latest Kafka offsets. " +
@@ -71,6 +79,43 @@ public class KafkaBatchConfig extends ReferencePluginConfig {
   @Macro
   private Long maxNumberRecords;
 
+  @Description("The maximum estimated number of bytes the source will read from each topic partition in one run. " +
+    "The size of the messages of each partition is estimated from a sample of the messages to read, so that " +
+    "partitions with large messages are read up to a smaller offset than partitions with small messages. " +
+    "At least one message is read from each partition that has messages to read. " +
+    "If not specified, the number of bytes read is not limited.")
+  @Nullable
+  @Macro
+  private Long maxPartitionBytes;
+
+  @Description("The maximum number of messages read by a single split. Partitions with more messages to read " +
+    "are divided into several contiguous offset ranges that are read in parallel. " +
+    "If not specified, each partition is read by a single split.")
+  @Nullable
+  @Macro
+  private Long maxSplitRecords;
+
+  @Description("The maximum estimated number of bytes read by a single split. Partitions with more data to read " +
+    "are divided into several contiguous offset ranges that are read in parallel. " +
+    "If not specified, each partition is read by a single split.")
+  @Nullable
+  @Macro
+  private Long maxSplitBytes;
+
+  @Description("Whether to read partitions with few messages together in one split, up to the maximum split size. " +
+    "This reduces the number of tasks when reading from topics with many partitions. " +
+    "If no maximum split size is given, splits are combined up to 128 MB of estimated data.")
+  @Nullable
+  @Macro
+  private Boolean combineSplits;
+
+  @Description("The maximum number of bytes of messages fetched ahead of processing by each split. " +
+    "If set, messages are fetched on a background thread so that fetching overlaps with processing. " +
+    "If not specified, messages are fetched on demand.")
+  @Nullable
+  @Macro
+  private Long prefetchBytes;
+
   @Description("Output schema of the source, including the timeField and keyField. " +
     "The fields excluding keyField are used in conjunction with the format " +
     "to parse Kafka payloads.")
@@ -100,6 +145,12 @@ public class KafkaBatchConfig extends ReferencePluginConfig {
   @Nullable
   private String offsetField;
 
+  @Description("Optional name of the field containing the kafka topic that was read from. " +
+    "If this is not set, no topic field will be added to output records. " +
+    "If set, this field must be present in the schema property and must be a string.")
+  @Nullable
+  private String topicField;
+
   public KafkaBatchConfig() {
     super("");
   }
@@ -112,10 +163,21 @@ public class KafkaBatchConfig extends ReferencePluginConfig {
   }
 
   // Accessors
+  @Nullable
   public String getTopic() {
     return topic;
   }
 
+  /**
+   * Returns the topics given by the {@link #topic} field, or an empty list if no topic is given.
+   */
+  public List<String> getTopics() {
+    if (Strings.isNullOrEmpty(topic)) {
+      return Collections.emptyList();
+    }
+    return ImmutableList.copyOf(Splitter.on(',').trimResults().omitEmptyStrings().split(topic));
+  }
+
   @Nullable
   public String getOffsetDir() {
     return offsetDir;
@@ -152,10 +214,35 @@ public class KafkaBatchConfig extends ReferencePluginConfig {
     return Strings.isNullOrEmpty(offsetField) ? null : offsetField;
   }
 
+  @Nullable
+  public String getTopicField() {
+    return Strings.isNullOrEmpty(topicField) ? null : topicField;
+  }
+
   public long getMaxNumberRecords() {
     return maxNumberRecords == null ? -1 : maxNumberRecords;
   }
 
+  public long getMaxPartitionBytes() {
+    return maxPartitionBytes == null ? -1 : maxPartitionBytes;
+  }
+
+  public long getMaxSplitRecords() {
+    return maxSplitRecords == null ? -1 : maxSplitRecords;
+  }
+
+  public long getMaxSplitBytes() {
+    return maxSplitBytes == null ? -1 : maxSplitBytes;
+  }
+
+  public boolean isCombineSplits() {
+    return combineSplits != null && combineSplits;
+  }
+
+  public long getPrefetchBytes() {
+    return prefetchBytes == null ? -1 : prefetchBytes;
+  }
+
   @Nullable
   public String getFormat() {
     return Strings.isNullOrEmpty(format) ? null : format;
@@ -184,6 +271,7 @@ public class KafkaBatchConfig extends ReferencePluginConfig {
     boolean keyFieldExists = false;
     boolean partitionFieldExists = false;
     boolean offsetFieldExists = false;
+    boolean topicFieldExists = false;
 
     for (Schema.Field field : schema.getFields()) {
       String fieldName = field.getName();
@@ -213,6 +301,13 @@ public class KafkaBatchConfig extends ReferencePluginConfig {
                   .withOutputSchemaField(offsetField);
         }
         offsetFieldExists = true;
+      } else if (fieldName.equals(topicField)) {
+        if (fieldType != Schema.Type.STRING) {
+          collector.addFailure("The topic field must be of type string.", null)
+                  .withConfigProperty(TOPIC_FIELD)
+                  .withOutputSchemaField(topicField);
+        }
+        topicFieldExists = true;
       } else {
         messageFields.add(field);
       }
@@ -236,6 +331,11 @@ public class KafkaBatchConfig extends ReferencePluginConfig {
         "offsetField '%s' does not exist in the schema. Please add it to the schema.", offsetField), null)
         .withConfigProperty(OFFSET_FIELD);
     }
+    if (getTopicField() != null && !topicFieldExists) {
+      collector.addFailure(String.format(
+        "topicField '%s' does not exist in the schema. Please add it to the schema.", topicField), null)
+        .withConfigProperty(TOPIC_FIELD);
+    }
     return Schema.recordOf("kafka.message", messageFields);
   }
 
@@ -310,6 +410,22 @@ public class KafkaBatchConfig extends ReferencePluginConfig {
   public void validate(FailureCollector collector) {
     getPartitions(collector);
     getInitialPartitionOffsets(collector);
+    if (maxPartitionBytes != null && maxPartitionBytes <= 0) {
+      collector.addFailure("Max partition bytes must be a positive number.", null)
+        .withConfigProperty(MAX_PARTITION_BYTES);
+    }
+    if (maxSplitRecords != null && maxSplitRecords <= 0) {
+      collector.addFailure("Max split records must be a positive number.", null)
+        .withConfigProperty(MAX_SPLIT_RECORDS);
+    }
+    if (maxSplitBytes != null && maxSplitBytes <= 0) {
+      collector.addFailure("Max split bytes must be a positive number.", null)
+        .withConfigProperty(MAX_SPLIT_BYTES);
+    }
+    if (prefetchBytes != null && prefetchBytes <= 0) {
+      collector.addFailure("Prefetch bytes must be a positive number.", null)
+        .withConfigProperty(PREFETCH_BYTES);
+    }
 
     Schema messageSchema = getMessageSchema(collector);
     if (messageSchema == null) {
@@ -0,0 +1,92 @@
+/*
+ * Copyright © 2022 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin.batch.source;
+
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapreduce.InputSplit;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Kafka split that reads multiple partitions in one task.
+ */
+public class KafkaCombinedSplit extends InputSplit implements Writable {
+
+  private List<KafkaRequest> requests;
+
+  @SuppressWarnings("unused")
+  public KafkaCombinedSplit() {
+    // For serialization
+  }
+
+  public KafkaCombinedSplit(List<KafkaRequest> requests) {
+    this.requests = Collections.unmodifiableList(new ArrayList<>(requests));
+  }
+
+  @Override
+  public void readFields(DataInput in) throws IOException {
+    int size = in.readInt();
+    List<KafkaRequest> requests = new ArrayList<>(size);
+    for (int i = 0; i < size; i++) {
+      requests.add(KafkaSplit.readRequest(in));
+    }
+    this.requests = Collections.unmodifiableList(requests);
+  }
+
+  @Override
+  public void write(DataOutput out) throws IOException {
+    out.writeInt(requests.size());
+    for (KafkaRequest request : requests) {
+      KafkaSplit.writeRequest(out, request);
+    }
+  }
+
+  @Override
+  public long getLength() {
+    return requests.stream().mapToLong(KafkaRequest::estimateDataSize).sum();
+  }
+
+  /**
+   * Returns the hosts of the leader brokers of the partitions, ordered by decreasing estimated size of the data to
+   * read from them.
+   */
+  @Override
+  public String[] getLocations() {
+    Map<String, Long> hostSizes = new HashMap<>();
+    for (KafkaRequest request : requests) {
+      String host = request.getLeaderHost();
+      if (host != null) {
+        hostSizes.merge(host, request.estimateDataSize(), Long::sum);
+      }
+    }
+    return hostSizes.entrySet().stream()
+      .sorted(Map.Entry.<String, Long>comparingByValue().reversed())
+      .map(Map.Entry::getKey)
+      .toArray(String[]::new);
+  }
+
+  public List<KafkaRequest> getRequests() {
+    return requests;
+  }
+}
@@ -49,6 +49,12 @@ public class KafkaKey implements WritableComparable<KafkaKey> {
     set(beginOffset, offset, 1024L, checksum);
   }
 
+  public void set(String topic, int partition, long beginOffset, long offset, long messageSize, long checksum) {
+    this.topic = topic;
+    this.partition = partition;
+    set(beginOffset, offset, messageSize, checksum);
+  }
+
   public void set(long beginOffset, long offset, long messageSize, long checksum) {
     this.beginOffset = beginOffset;
     this.offset = offset;
@@ -64,6 +70,10 @@ public class KafkaKey implements WritableComparable<KafkaKey> {
     return partition;
   }
 
+  public long getBeginOffset() {
+    return beginOffset;
+  }
+
   public long getOffset() {
     return offset;
   }
@@ -72,6 +82,10 @@ public class KafkaKey implements WritableComparable<KafkaKey> {
     return messageSize;
   }
 
+  public long getChecksum() {
+    return checksum;
+  }
+
   @Override
   public void readFields(DataInput in) throws IOException {
     this.topic = in.readUTF();
@@ -17,25 +17,103 @@
 package io.cdap.plugin.batch.source;
 
 import java.nio.ByteBuffer;
+import javax.annotation.Nullable;
 
 /**
- * Kafka Message.
+ * Kafka Message. Instances are reused by the record reader, which refills them in place for every message.
  */
 public class KafkaMessage {
 
-  private final ByteBuffer payload;
-  private final ByteBuffer key;
+  private ByteBuffer payload;
+  private ByteBuffer key;
+  private byte[] payloadBytes;
+  private byte[] keyBytes;
 
-  public KafkaMessage(ByteBuffer payload, ByteBuffer key) {
+  public KafkaMessage() {
+    // empty message to be filled by a reader
+  }
+
+  public KafkaMessage(@Nullable ByteBuffer payload, @Nullable ByteBuffer key) {
+    set(payload, key);
+  }
+
+  /**
+   * Sets the payload and key from buffers, which may be views on a larger buffer.
+   */
+  public void set(@Nullable ByteBuffer payload, @Nullable ByteBuffer key) {
     this.payload = payload;
     this.key = key;
+    this.payloadBytes = null;
+    this.keyBytes = null;
+  }
+
+  /**
+   * Sets the payload and key from arrays holding exactly their content. The arrays are used without being copied.
+   */
+  public void set(@Nullable byte[] payload, @Nullable byte[] key) {
+    this.payload = null;
+    this.key = null;
+    this.payloadBytes = payload;
+    this.keyBytes = key;
+  }
+
+  /**
+   * Sets this message to the same content as the given message.
+   */
+  public void set(KafkaMessage message) {
+    this.payload = message.payload;
+    this.key = message.key;
+    this.payloadBytes = message.payloadBytes;
+    this.keyBytes = message.keyBytes;
   }
 
+  @Nullable
   public ByteBuffer getPayload() {
+    if (payload == null && payloadBytes != null) {
+      payload = ByteBuffer.wrap(payloadBytes);
+    }
     return payload;
   }
 
+  @Nullable
   public ByteBuffer getKey() {
+    if (key == null && keyBytes != null) {
+      key = ByteBuffer.wrap(keyBytes);
+    }
     return key;
   }
+
+  /**
+   * Returns the payload as a byte array. The array is only copied if the message was set from a buffer that is a
+   * view on a larger buffer.
+   */
+  @Nullable
+  public byte[] getPayloadBytes() {
+    if (payloadBytes == null && payload != null) {
+      payloadBytes = toByteArray(payload);
+    }
+    return payloadBytes;
+  }
+
+  /**
+   * Returns the key as a byte array. The array is only copied if the message was set from a buffer that is a
+   * view on a larger buffer.
+   */
+  @Nullable
+  public byte[] getKeyBytes() {
+    if (keyBytes == null && key != null) {
+      keyBytes = toByteArray(key);
+    }
+    return keyBytes;
+  }
+
+  private static byte[] toByteArray(ByteBuffer buffer) {
+    if (buffer.hasArray() && buffer.arrayOffset() == 0 && buffer.position() == 0
+      && buffer.remaining() == buffer.array().length) {
+      return buffer.array();
+    }
+    byte[] bytes = new byte[buffer.remaining()];
+    buffer.duplicate().get(bytes);
+    return bytes;
+  }
 }
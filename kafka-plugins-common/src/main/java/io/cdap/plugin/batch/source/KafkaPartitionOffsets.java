@@ -30,20 +30,46 @@ import java.io.OutputStreamWriter;
 import java.io.Reader;
 import java.io.Writer;
 import java.nio.charset.StandardCharsets;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.Map;
+import javax.annotation.Nullable;
 
 /**
- * A container class for holding the Kafka offsets for a set of partitions.
+ * A container class for holding the Kafka offsets for a set of partitions. Offsets can be kept per topic, for sources
+ * reading from multiple topics. The offsets that are not kept per topic, which are the ones read by earlier versions,
+ * record the topic they belong to and only apply to that topic. Offsets without a recorded topic, such as the initial
+ * offsets given in the configuration or the offsets saved by earlier versions, only apply once
+ * {@link #setTopics(Collection)} is given exactly one topic.
  */
 public class KafkaPartitionOffsets {
 
   private final Map<Integer, Long> partitionOffsets;
+  // The topic of the partition offsets, null if they were saved by earlier versions or given in the configuration
+  @Nullable
+  private String topic;
+  // Can be null when loaded from a file saved by earlier versions
+  private Map<String, Map<Integer, Long>> topicOffsets;
 
   public KafkaPartitionOffsets(Map<Integer, Long> partitionOffsets) {
+    this(partitionOffsets, Collections.emptyMap());
+  }
+
+  public KafkaPartitionOffsets(Map<Integer, Long> partitionOffsets, Map<String, Map<Integer, Long>> topicOffsets) {
+    this(partitionOffsets, null, topicOffsets);
+  }
+
+  /**
+   * Creates the offsets of the partitions of the given topic, together with the offsets kept per topic.
+   */
+  public KafkaPartitionOffsets(Map<Integer, Long> partitionOffsets, @Nullable String topic,
+                               Map<String, Map<Integer, Long>> topicOffsets) {
     this.partitionOffsets = new HashMap<>(partitionOffsets);
+    this.topic = topic;
+    this.topicOffsets = new HashMap<>();
+    topicOffsets.forEach((t, offsets) -> this.topicOffsets.put(t, new HashMap<>(offsets)));
   }
 
   public void setPartitionOffset(int partition, long offset) {
@@ -54,6 +80,38 @@ public class KafkaPartitionOffsets {
     return partitionOffsets.getOrDefault(partition, defaultValue);
   }
 
+  /**
+   * Sets the offset of a partition of the given topic.
+   */
+  public void setPartitionOffset(String topic, int partition, long offset) {
+    if (topicOffsets == null) {
+      topicOffsets = new HashMap<>();
+    }
+    topicOffsets.computeIfAbsent(topic, t -> new HashMap<>()).put(partition, offset);
+  }
+
+  /**
+   * Sets the topics to read. Partition offsets without a recorded topic are associated with the topic to read if
+   * there is exactly one, and never apply otherwise, since it is unknown which topic they were meant for.
+   */
+  public void setTopics(Collection<String> topics) {
+    if (topic == null && topics.size() == 1) {
+      topic = topics.iterator().next();
+    }
+  }
+
+  /**
+   * Returns the offset of a partition of the given topic. If there is no offset kept for the topic, the partition
+   * offset is returned if it belongs to the given topic.
+   */
+  public long getPartitionOffset(String topic, int partition, long defaultValue) {
+    Map<Integer, Long> offsets = topicOffsets == null ? null : topicOffsets.get(topic);
+    if (offsets != null) {
+      return offsets.getOrDefault(partition, defaultValue);
+    }
+    return topic.equals(this.topic) ? getPartitionOffset(partition, defaultValue) : defaultValue;
+  }
+
   /**
    * Loads the {@link KafkaPartitionOffsets} from the given input file.
    *
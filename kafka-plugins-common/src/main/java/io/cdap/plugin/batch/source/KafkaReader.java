@@ -9,5 +9,5 @@ interface KafkaReader extends Closeable {
   /**
    * Fetches the next Kafka message and stuffs the results into the key and value.
    */
-  KafkaMessage getNext(KafkaKey kafkaKey);
+  void getNext(KafkaKey kafkaKey, KafkaMessage kafkaMessage);
 }
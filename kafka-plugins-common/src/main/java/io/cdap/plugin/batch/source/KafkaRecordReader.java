@@ -16,35 +16,77 @@
 
 package io.cdap.plugin.batch.source;
 
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.mapreduce.Counter;
 import org.apache.hadoop.mapreduce.InputSplit;
 import org.apache.hadoop.mapreduce.RecordReader;
 import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.util.List;
 import java.util.function.Function;
 
 /**
  * Kafka Record Reader to be used by KafkaInputFormat.
  */
 public class KafkaRecordReader extends RecordReader<KafkaKey, KafkaMessage> {
+  private static final Logger LOG = LoggerFactory.getLogger(KafkaRecordReader.class);
+  private static final String PREFETCH_BYTES = "kafka.prefetch.bytes";
+  private static final String PREFETCH_COUNTER_GROUP = "Kafka Prefetch";
 
   private final Function<KafkaRequest, KafkaReader> readerFunction;
+  private final Function<List<KafkaRequest>, KafkaReader> combinedReaderFunction;
   private final KafkaKey key;
+  private final KafkaMessage value;
 
   private long totalBytes;
   private KafkaReader reader;
   private long readBytes = 0;
-  private KafkaMessage value;
+  private TaskAttemptContext context;
 
+  /**
+   * Creates a record reader that reads the requests of a {@link KafkaCombinedSplit} one after the other.
+   */
   public KafkaRecordReader(Function<KafkaRequest, KafkaReader> readerFunction) {
+    this(readerFunction, requests -> new ChainedKafkaReader(requests, readerFunction));
+  }
+
+  /**
+   * Creates a record reader that uses the given combined reader function to read all the requests of a
+   * {@link KafkaCombinedSplit} together.
+   */
+  public KafkaRecordReader(Function<KafkaRequest, KafkaReader> readerFunction,
+                           Function<List<KafkaRequest>, KafkaReader> combinedReaderFunction) {
     this.readerFunction = readerFunction;
+    this.combinedReaderFunction = combinedReaderFunction;
     this.key = new KafkaKey();
+    this.value = new KafkaMessage();
+  }
+
+  /**
+   * Sets the maximum number of bytes of messages fetched ahead of processing by each record reader. Messages are
+   * fetched on a background thread if it is positive, and on demand otherwise.
+   */
+  public static void setPrefetchBytes(Configuration conf, long prefetchBytes) {
+    conf.setLong(PREFETCH_BYTES, prefetchBytes);
   }
 
   @Override
   public void initialize(InputSplit split, TaskAttemptContext context) throws IOException, InterruptedException {
+    this.context = context;
     this.totalBytes = split.getLength();
-    this.reader = readerFunction.apply(((KafkaSplit) split).getRequest());
+    if (split instanceof KafkaCombinedSplit) {
+      this.reader = combinedReaderFunction.apply(((KafkaCombinedSplit) split).getRequests());
+    } else {
+      this.reader = readerFunction.apply(((KafkaSplit) split).getRequest());
+    }
+
+    long prefetchBytes = context.getConfiguration().getLong(PREFETCH_BYTES, -1L);
+    if (prefetchBytes > 0) {
+      this.reader = new PrefetchingKafkaReader(reader, prefetchBytes);
+    }
   }
 
   @Override
@@ -85,10 +127,10 @@ public class KafkaRecordReader extends RecordReader<KafkaKey, KafkaMessage> {
       return false;
     }
 
-    KafkaMessage message = reader.getNext(key);
+    // The key and value are refilled in place for every message
+    reader.getNext(key, value);
 
     readBytes += key.getMessageSize();
-    value = message;
     return true;
   }
 
@@ -96,6 +138,9 @@ public class KafkaRecordReader extends RecordReader<KafkaKey, KafkaMessage> {
     if (reader != null) {
       try {
         reader.close();
+        if (reader instanceof PrefetchingKafkaReader) {
+          recordPrefetchMetrics((PrefetchingKafkaReader) reader);
+        }
       } catch (Exception e) {
         // not much to do here but skip the task
       } finally {
@@ -103,4 +148,28 @@ public class KafkaRecordReader extends RecordReader<KafkaKey, KafkaMessage> {
       }
     }
   }
+
+  /**
+   * Records the prefetch statistics as task counters. The average queue size can be computed by dividing the
+   * queue bytes by the number of batches.
+   */
+  private void recordPrefetchMetrics(PrefetchingKafkaReader prefetchReader) {
+    LOG.info("Kafka prefetch: {} fetch stalls for {} ms, {} batches, average queue size {} bytes, " +
+               "maximum queue size {} bytes", prefetchReader.getFetchStalls(), prefetchReader.getFetchStallMillis(),
+             prefetchReader.getBatches(), prefetchReader.getAverageQueueBytes(), prefetchReader.getMaxQueueBytes());
+    if (context == null) {
+      return;
+    }
+    incrementCounter("Fetch stalls", prefetchReader.getFetchStalls());
+    incrementCounter("Fetch stall millis", prefetchReader.getFetchStallMillis());
+    incrementCounter("Batches", prefetchReader.getBatches());
+    incrementCounter("Queue bytes", prefetchReader.getTotalQueueBytes());
+  }
+
+  private void incrementCounter(String name, long value) {
+    Counter counter = context.getCounter(PREFETCH_COUNTER_GROUP, name);
+    if (counter != null) {
+      counter.increment(value);
+    }
+  }
 }
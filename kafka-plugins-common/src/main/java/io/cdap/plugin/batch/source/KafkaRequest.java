@@ -16,9 +16,12 @@
 
 package io.cdap.plugin.batch.source;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import javax.annotation.Nullable;
 
 /**
  * A class that represents the kafka pull request.
@@ -38,18 +41,28 @@ public class KafkaRequest {
 
   private final long averageMessageSize;
 
+  // The leader broker in host:port form as known when the request was created, used to place the splits
+  @Nullable
+  private final String leader;
+
   public KafkaRequest(String topic, int partition, Map<String, String> conf, long startOffset, long endOffset) {
     this(topic, partition, conf, startOffset, endOffset, 1024);
   }
 
   public KafkaRequest(String topic, int partition, Map<String, String> conf,
                       long startOffset, long endOffset, long averageMessageSize) {
+    this(topic, partition, conf, startOffset, endOffset, averageMessageSize, null);
+  }
+
+  public KafkaRequest(String topic, int partition, Map<String, String> conf,
+                      long startOffset, long endOffset, long averageMessageSize, @Nullable String leader) {
     this.topic = topic;
     this.partition = partition;
     this.conf = Collections.unmodifiableMap(new HashMap<>(conf));
     this.startOffset = startOffset;
     this.endOffset = endOffset;
     this.averageMessageSize = averageMessageSize;
+    this.leader = leader;
   }
 
   public String getTopic() {
@@ -76,7 +89,76 @@ public class KafkaRequest {
     return averageMessageSize;
   }
 
+  /**
+   * Returns the leader broker of the partition in host:port form as known when this request was created, or
+   * {@code null} if it is not known.
+   */
+  @Nullable
+  public String getLeader() {
+    return leader;
+  }
+
+  /**
+   * Returns the host of the leader broker of the partition as known when this request was created, or {@code null}
+   * if it is not known.
+   */
+  @Nullable
+  public String getLeaderHost() {
+    if (leader == null) {
+      return null;
+    }
+    int idx = leader.lastIndexOf(':');
+    return idx < 0 ? leader : leader.substring(0, idx);
+  }
+
   public long estimateDataSize() {
     return (getEndOffset() - getStartOffset()) * averageMessageSize;
   }
+
+  /**
+   * Returns a request on the same partition starting at the same offset, that covers at most the given estimated
+   * number of bytes. The returned request covers at least one record if this request is not empty, so that
+   * partitions with messages larger than the limit are still read.
+   *
+   * @param maxBytes maximum estimated number of bytes of the request, or a non-positive value for no limit
+   * @return this request if it is within the limit, or a request with a smaller end offset
+   */
+  public KafkaRequest limitBytes(long maxBytes) {
+    if (maxBytes <= 0) {
+      return this;
+    }
+    long limit = Math.max(1L, maxBytes / Math.max(1L, averageMessageSize));
+    if (endOffset - startOffset <= limit) {
+      return this;
+    }
+    return new KafkaRequest(topic, partition, conf, startOffset, startOffset + limit, averageMessageSize, leader);
+  }
+
+  /**
+   * Splits this request into contiguous requests on the same partition, such that each of them covers at most the
+   * given number of records and estimated bytes. The offset ranges of the returned requests are of similar sizes.
+   *
+   * @param maxRecords maximum number of records per request, or a non-positive value for no limit
+   * @param maxBytes maximum estimated number of bytes per request, or a non-positive value for no limit
+   * @return the list of requests covering the same offset range as this request, ordered by offset
+   */
+  public List<KafkaRequest> split(long maxRecords, long maxBytes) {
+    long limit = maxRecords > 0 ? maxRecords : Long.MAX_VALUE;
+    if (maxBytes > 0) {
+      limit = Math.min(limit, Math.max(1L, maxBytes / Math.max(1L, averageMessageSize)));
+    }
+    long size = endOffset - startOffset;
+    if (size <= limit) {
+      return Collections.singletonList(this);
+    }
+
+    long numSplits = (size + limit - 1) / limit;
+    long splitSize = (size + numSplits - 1) / numSplits;
+    List<KafkaRequest> requests = new ArrayList<>();
+    for (long offset = startOffset; offset < endOffset; offset += splitSize) {
+      requests.add(new KafkaRequest(topic, partition, conf, offset, Math.min(endOffset, offset + splitSize),
+                                    averageMessageSize, leader));
+    }
+    return requests;
+  }
 }
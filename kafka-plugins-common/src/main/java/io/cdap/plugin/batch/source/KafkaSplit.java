@@ -44,6 +44,37 @@ public class KafkaSplit extends InputSplit implements Writable {
 
   @Override
   public void readFields(DataInput in) throws IOException {
+    request = readRequest(in);
+  }
+
+  @Override
+  public void write(DataOutput out) throws IOException {
+    writeRequest(out, request);
+  }
+
+  @Override
+  public long getLength() {
+    return request.estimateDataSize();
+  }
+
+  /**
+   * Returns the host of the leader broker of the partition, so that the split can be read on the same host when
+   * executors run on the broker hosts.
+   */
+  @Override
+  public String[] getLocations() {
+    String host = request.getLeaderHost();
+    return host == null ? new String[0] : new String[] { host };
+  }
+
+  public KafkaRequest getRequest() {
+    return request;
+  }
+
+  /**
+   * Reads a {@link KafkaRequest} written by {@link #writeRequest(DataOutput, KafkaRequest)}.
+   */
+  static KafkaRequest readRequest(DataInput in) throws IOException {
     String topic = in.readUTF();
     int partition = in.readInt();
 
@@ -57,11 +88,14 @@ public class KafkaSplit extends InputSplit implements Writable {
     long startOffset = in.readLong();
     long endOffset = in.readLong();
     long averageMessageSize = in.readLong();
-    request = new KafkaRequest(topic, partition, conf, startOffset, endOffset, averageMessageSize);
+    String leader = in.readBoolean() ? in.readUTF() : null;
+    return new KafkaRequest(topic, partition, conf, startOffset, endOffset, averageMessageSize, leader);
   }
 
-  @Override
-  public void write(DataOutput out) throws IOException {
+  /**
+   * Writes the given {@link KafkaRequest} to the given output.
+   */
+  static void writeRequest(DataOutput out, KafkaRequest request) throws IOException {
     out.writeUTF(request.getTopic());
     out.writeInt(request.getPartition());
 
@@ -76,19 +110,12 @@ public class KafkaSplit extends InputSplit implements Writable {
     out.writeLong(request.getStartOffset());
     out.writeLong(request.getEndOffset());
     out.writeLong(request.getAverageMessageSize());
-  }
 
-  @Override
-  public long getLength() {
-    return request.estimateDataSize();
-  }
-
-  @Override
-  public String[] getLocations() {
-    return new String[0];
-  }
-
-  public KafkaRequest getRequest() {
-    return request;
+    // Write the optional leader
+    String leader = request.getLeader();
+    out.writeBoolean(leader != null);
+    if (leader != null) {
+      out.writeUTF(leader);
+    }
   }
 }
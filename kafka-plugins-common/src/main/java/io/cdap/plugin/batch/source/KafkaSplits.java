@@ -0,0 +1,159 @@
+/*
+ * Copyright © 2022 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin.batch.source;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import javax.annotation.Nullable;
+
+/**
+ * Helper methods to turn the list of {@link KafkaRequest}s into {@link InputSplit}s.
+ */
+final class KafkaSplits {
+  private static final Logger LOG = LoggerFactory.getLogger(KafkaSplits.class);
+
+  private static final String COMBINE_SPLITS = "kafka.split.combine";
+  private static final String MAX_SPLIT_RECORDS = "kafka.split.max.records";
+  private static final String MAX_SPLIT_BYTES = "kafka.split.max.bytes";
+  private static final String GROUP_BY_LEADER = "kafka.split.group.leader";
+  // The size budget of a combined or grouped split if none is provided
+  private static final long DEFAULT_COMBINED_SPLIT_BYTES = 128L * 1024 * 1024;
+
+  /**
+   * Sets whether requests should be packed into combined splits, together with the size budget of a split.
+   *
+   * @param conf the hadoop configuration to update
+   * @param combine whether to combine small requests into one split
+   * @param maxSplitRecords maximum number of records in one split, or a non-positive value for no limit
+   * @param maxSplitBytes maximum estimated number of bytes in one split, or a non-positive value for no limit
+   */
+  static void setCombineSplits(Configuration conf, boolean combine, long maxSplitRecords, long maxSplitBytes) {
+    conf.setBoolean(COMBINE_SPLITS, combine);
+    conf.setLong(MAX_SPLIT_RECORDS, maxSplitRecords);
+    conf.setLong(MAX_SPLIT_BYTES, maxSplitBytes);
+  }
+
+  /**
+   * Sets whether requests should be grouped into splits by the leader broker of their partition, so that a split
+   * can read all of its partitions from one broker. The size budget set by
+   * {@link #setCombineSplits(Configuration, boolean, long, long)} also applies to the grouped splits.
+   */
+  static void setGroupByLeader(Configuration conf, boolean groupByLeader) {
+    conf.setBoolean(GROUP_BY_LEADER, groupByLeader);
+  }
+
+  /**
+   * Returns whether requests are grouped into splits by the leader broker of their partition.
+   */
+  static boolean isGroupByLeader(Configuration conf) {
+    return conf.getBoolean(GROUP_BY_LEADER, false);
+  }
+
+  /**
+   * Creates the splits for the given requests. If split combining is enabled, requests smaller than the split size
+   * budget are packed together into {@link KafkaCombinedSplit}s, with at most one request per partition in a split.
+   * If grouping by leader is enabled, only requests with the same leader are packed together, with the same default
+   * size budget, so that a split does not read every partition of a broker. Otherwise, one {@link KafkaSplit} is
+   * created per request.
+   */
+  static List<InputSplit> createSplits(Configuration conf, List<KafkaRequest> requests) {
+    List<InputSplit> splits = new ArrayList<>();
+    boolean combine = conf.getBoolean(COMBINE_SPLITS, false);
+    boolean groupByLeader = isGroupByLeader(conf);
+    if (!combine && !groupByLeader) {
+      for (KafkaRequest request : requests) {
+        splits.add(new KafkaSplit(request));
+      }
+      return splits;
+    }
+
+    long maxRecords = conf.getLong(MAX_SPLIT_RECORDS, -1L);
+    long maxBytes = conf.getLong(MAX_SPLIT_BYTES, -1L);
+    if (maxRecords <= 0 && maxBytes <= 0) {
+      maxBytes = DEFAULT_COMBINED_SPLIT_BYTES;
+    }
+
+    // First fit decreasing, so that the large requests get their own split and the small ones fill the gaps
+    List<KafkaRequest> sorted = new ArrayList<>(requests);
+    sorted.sort(Comparator.comparingLong(KafkaRequest::estimateDataSize).reversed());
+    List<SplitBin> bins = new ArrayList<>();
+    for (KafkaRequest request : sorted) {
+      SplitBin target = null;
+      for (SplitBin bin : bins) {
+        if ((!groupByLeader || Objects.equals(bin.leader, request.getLeader()))
+          && bin.fits(request, maxRecords, maxBytes)) {
+          target = bin;
+          break;
+        }
+      }
+      if (target == null) {
+        target = new SplitBin(request.getLeader());
+        bins.add(target);
+      }
+      target.add(request);
+    }
+
+    for (SplitBin bin : bins) {
+      splits.add(bin.requests.size() == 1 ? new KafkaSplit(bin.requests.get(0)) : new KafkaCombinedSplit(bin.requests));
+    }
+    LOG.debug("Combined {} Kafka requests into {} splits", requests.size(), splits.size());
+    return splits;
+  }
+
+  /**
+   * The set of requests packed into one split.
+   */
+  private static final class SplitBin {
+    private final List<KafkaRequest> requests = new ArrayList<>();
+    private final Set<String> partitions = new HashSet<>();
+    @Nullable
+    private final String leader;
+    private long records;
+    private long bytes;
+
+    SplitBin(@Nullable String leader) {
+      this.leader = leader;
+    }
+
+    boolean fits(KafkaRequest request, long maxRecords, long maxBytes) {
+      long requestRecords = request.getEndOffset() - request.getStartOffset();
+      return !partitions.contains(request.getTopic() + ":" + request.getPartition())
+        && (maxRecords <= 0 || records + requestRecords <= maxRecords)
+        && (maxBytes <= 0 || bytes + request.estimateDataSize() <= maxBytes);
+    }
+
+    void add(KafkaRequest request) {
+      requests.add(request);
+      partitions.add(request.getTopic() + ":" + request.getPartition());
+      records += request.getEndOffset() - request.getStartOffset();
+      bytes += request.estimateDataSize();
+    }
+  }
+
+  private KafkaSplits() {
+    // no-op
+  }
+}
@@ -0,0 +1,280 @@
+/*
+ * Copyright © 2022 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin.batch.source;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.NoSuchElementException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link KafkaReader} that reads from another reader on a background thread. Fetched messages are handed over to
+ * the task thread in batches through a queue bounded in bytes, so that fetching from Kafka overlaps with the processing
+ * of the messages. The underlying reader is only accessed by the background thread, which also closes it.
+ */
+final class PrefetchingKafkaReader implements KafkaReader {
+  private static final Logger LOG = LoggerFactory.getLogger(PrefetchingKafkaReader.class);
+  private static final int BATCH_RECORDS = 1024;
+  private static final long MAX_BATCH_BYTES = 1024 * 1024;
+  private static final long CLOSE_TIMEOUT_SECONDS = 30;
+  // Marker for the end of the messages
+  private static final Batch END = new Batch(0);
+
+  private final KafkaReader reader;
+  private final long maxQueueBytes;
+  private final long batchBytes;
+  private final BlockingQueue<Batch> queue;
+  private final BlockingQueue<Batch> freeBatches;
+  private final Object lock;
+  private final Thread fetchThread;
+
+  // guarded by lock
+  private long queueBytes;
+  private volatile boolean closed;
+  private volatile Throwable failure;
+
+  private Batch current;
+  private int position;
+  private boolean done;
+
+  // Statistics, only updated by the task thread
+  private long fetchStalls;
+  private long fetchStallNanos;
+  private long batches;
+  private long totalQueueBytes;
+  private long maxQueueBytesSeen;
+
+  PrefetchingKafkaReader(KafkaReader reader, long maxQueueBytes) {
+    this.reader = reader;
+    this.maxQueueBytes = maxQueueBytes;
+    this.batchBytes = Math.max(1L, Math.min(MAX_BATCH_BYTES, maxQueueBytes / 4));
+    this.queue = new LinkedBlockingQueue<>();
+    this.freeBatches = new LinkedBlockingQueue<>();
+    this.lock = new Object();
+    this.fetchThread = new Thread(this::fetchLoop, "kafka-prefetch");
+    this.fetchThread.setDaemon(true);
+    this.fetchThread.start();
+  }
+
+  @Override
+  public boolean hasNext() {
+    while (current == null || position >= current.size) {
+      if (done) {
+        return false;
+      }
+      if (current != null) {
+        freeBatches.offer(current);
+        current = null;
+      }
+      Batch batch = take();
+      if (batch == END) {
+        done = true;
+        if (failure != null) {
+          throw new RuntimeException("Failed to fetch messages from Kafka", failure);
+        }
+        return false;
+      }
+      current = batch;
+      position = 0;
+    }
+    return true;
+  }
+
+  @Override
+  public void getNext(KafkaKey kafkaKey, KafkaMessage kafkaMessage) {
+    if (!hasNext()) {
+      throw new NoSuchElementException("No message is available");
+    }
+    KafkaKey key = current.keys[position];
+    kafkaKey.set(key.getTopic(), key.getPartition(), key.getBeginOffset(), key.getOffset(), key.getMessageSize(),
+                 key.getChecksum());
+    kafkaMessage.set(current.messages[position++]);
+  }
+
+  @Override
+  public void close() throws IOException {
+    closed = true;
+    synchronized (lock) {
+      lock.notifyAll();
+    }
+    fetchThread.interrupt();
+    try {
+      fetchThread.join(TimeUnit.SECONDS.toMillis(CLOSE_TIMEOUT_SECONDS));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Returns the number of times the task thread had to wait for messages to be fetched.
+   */
+  long getFetchStalls() {
+    return fetchStalls;
+  }
+
+  /**
+   * Returns the total time in milliseconds the task thread waited for messages to be fetched.
+   */
+  long getFetchStallMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(fetchStallNanos);
+  }
+
+  /**
+   * Returns the number of batches consumed by the task thread.
+   */
+  long getBatches() {
+    return batches;
+  }
+
+  /**
+   * Returns the sum of the number of bytes in the queue, sampled each time a batch is consumed.
+   */
+  long getTotalQueueBytes() {
+    return totalQueueBytes;
+  }
+
+  /**
+   * Returns the average number of bytes in the queue, sampled each time a batch is consumed.
+   */
+  long getAverageQueueBytes() {
+    return batches == 0 ? 0 : totalQueueBytes / batches;
+  }
+
+  /**
+   * Returns the maximum number of bytes in the queue, sampled each time a batch is consumed.
+   */
+  long getMaxQueueBytes() {
+    return maxQueueBytesSeen;
+  }
+
+  /**
+   * Takes the next batch from the queue, recording the time spent waiting if the queue is empty.
+   */
+  private Batch take() {
+    Batch batch = queue.poll();
+    if (batch == null) {
+      long startTime = System.nanoTime();
+      try {
+        batch = queue.take();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new RuntimeException("Interrupted while waiting for messages from Kafka", e);
+      }
+      fetchStalls++;
+      fetchStallNanos += System.nanoTime() - startTime;
+    }
+
+    synchronized (lock) {
+      batches++;
+      totalQueueBytes += queueBytes;
+      maxQueueBytesSeen = Math.max(maxQueueBytesSeen, queueBytes);
+      queueBytes -= batch.bytes;
+      lock.notifyAll();
+    }
+    return batch;
+  }
+
+  /**
+   * Reads from the underlying reader until it is exhausted or this reader is closed.
+   */
+  private void fetchLoop() {
+    try {
+      boolean hasMore = true;
+      while (hasMore && !closed) {
+        Batch batch = freeBatches.poll();
+        if (batch == null) {
+          batch = new Batch(BATCH_RECORDS);
+        }
+        batch.clear();
+        while (batch.size < BATCH_RECORDS && batch.bytes < batchBytes) {
+          if (!reader.hasNext()) {
+            hasMore = false;
+            break;
+          }
+          batch.add(reader);
+        }
+        if (batch.size > 0) {
+          enqueue(batch);
+        }
+      }
+    } catch (Throwable t) {
+      if (!closed) {
+        failure = t;
+      }
+    } finally {
+      queue.offer(END);
+      // Clear the interrupt flag set by close so that the reader can be closed properly
+      Thread.interrupted();
+      try {
+        reader.close();
+      } catch (Exception e) {
+        LOG.warn("Failed to close Kafka reader", e);
+      }
+    }
+  }
+
+  /**
+   * Adds a batch to the queue, waiting if the queue is full. A batch is always accepted by an empty queue.
+   */
+  private void enqueue(Batch batch) throws InterruptedException {
+    synchronized (lock) {
+      while (!closed && queueBytes > 0 && queueBytes + batch.bytes > maxQueueBytes) {
+        lock.wait();
+      }
+      queueBytes += batch.bytes;
+    }
+    queue.offer(batch);
+  }
+
+  /**
+   * A batch of messages, together with their keys. Batches are recycled once consumed, and their keys and messages are
+   * refilled in place.
+   */
+  private static final class Batch {
+    private final KafkaKey[] keys;
+    private final KafkaMessage[] messages;
+    private int size;
+    private long bytes;
+
+    Batch(int capacity) {
+      keys = new KafkaKey[capacity];
+      messages = new KafkaMessage[capacity];
+      for (int i = 0; i < capacity; i++) {
+        keys[i] = new KafkaKey();
+        messages[i] = new KafkaMessage();
+      }
+    }
+
+    void add(KafkaReader reader) {
+      reader.getNext(keys[size], messages[size]);
+      bytes += keys[size].getMessageSize();
+      size++;
+    }
+
+    void clear() {
+      for (int i = 0; i < size; i++) {
+        messages[i].set((byte[]) null, null);
+      }
+      size = 0;
+      bytes = 0L;
+    }
+  }
+}
@@ -0,0 +1,296 @@
+/*
+ * Copyright © 2022 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package io.cdap.plugin.common;
+
+import io.cdap.cdap.api.data.format.StructuredRecord;
+import io.cdap.cdap.api.data.schema.Schema;
+import io.cdap.cdap.format.StructuredRecordStringConverter;
+
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.annotation.Nullable;
+
+/**
+ * Encodes records into json, producing the same output as {@link StructuredRecordStringConverter#toJsonString}.
+ *
+ * The schema of the records is compiled once into writers, with the field names rendered as json tokens ahead of
+ * time, and the json is written as UTF-8 straight into a {@link KafkaMessageBuffer}, so that no json writer, string
+ * builder or intermediate string is created per record. Schemas with types that are not compiled, such as logical
+ * types, bytes and unions other than nullable ones, are encoded with the converter.
+ */
+public final class KafkaJsonEncoder {
+  private static final byte[] NULL = ascii("null");
+  private static final byte[] TRUE = ascii("true");
+  private static final byte[] FALSE = ascii("false");
+  private static final byte[][] REPLACEMENTS = new byte[128][];
+  private static final byte[] LINE_SEPARATOR = ascii("\\u2028");
+  private static final byte[] PARAGRAPH_SEPARATOR = ascii("\\u2029");
+
+  static {
+    // Same escaping as the json writer used by the converter
+    for (int i = 0; i < 0x20; i++) {
+      REPLACEMENTS[i] = ascii(String.format("\\u%04x", i));
+    }
+    REPLACEMENTS['"'] = ascii("\\\"");
+    REPLACEMENTS['\\'] = ascii("\\\\");
+    REPLACEMENTS['\t'] = ascii("\\t");
+    REPLACEMENTS['\b'] = ascii("\\b");
+    REPLACEMENTS['\n'] = ascii("\\n");
+    REPLACEMENTS['\r'] = ascii("\\r");
+    REPLACEMENTS['\f'] = ascii("\\f");
+  }
+
+  private Schema schema;
+  private ValueWriter writer;
+
+  /**
+   * Writes the json of the given record into the given buffer.
+   *
+   * @throws IOException if the record cannot be encoded with the converter
+   */
+  public void encode(StructuredRecord record, KafkaMessageBuffer buffer) throws IOException {
+    Schema recordSchema = record.getSchema();
+    if (recordSchema != schema && !recordSchema.equals(schema)) {
+      // Records of a stage usually share the same schema, so only the last one is kept
+      schema = recordSchema;
+      writer = compile(recordSchema, new HashSet<>());
+    }
+    if (writer == null) {
+      buffer.writeUtf8(StructuredRecordStringConverter.toJsonString(record));
+    } else {
+      writer.write(record, buffer);
+    }
+  }
+
+  /**
+   * Returns the writer of the values of the given schema, or {@code null} if the schema is not supported.
+   *
+   * @param records names of the records being compiled, which are not supported as nested records
+   */
+  @Nullable
+  private static ValueWriter compile(Schema schema, Set<String> records) {
+    if (schema.getLogicalType() != null) {
+      return null;
+    }
+    switch (schema.getType()) {
+      case NULL:
+        return (value, buffer) -> buffer.write(NULL);
+      case BOOLEAN:
+        return (value, buffer) -> buffer.write((Boolean) value ? TRUE : FALSE);
+      case INT:
+      case LONG:
+        return (value, buffer) -> writeLong(((Number) value).longValue(), buffer);
+      case FLOAT:
+        // The converter widens floats to doubles, hence 1.1f is written as 1.100000023841858
+        return (value, buffer) -> writeDouble(((Number) value).floatValue(), buffer);
+      case DOUBLE:
+        return (value, buffer) -> writeDouble(((Number) value).doubleValue(), buffer);
+      case STRING:
+      case ENUM:
+        return (value, buffer) -> writeString(value.toString(), buffer);
+      case ARRAY:
+        return compileArray(schema, records);
+      case MAP:
+        return compileMap(schema, records);
+      case RECORD:
+        return compileRecord(schema, records);
+      case UNION:
+        if (!schema.isNullable()) {
+          return null;
+        }
+        ValueWriter nonNullable = compile(schema.getNonNullable(), records);
+        if (nonNullable == null) {
+          return null;
+        }
+        return (value, buffer) -> {
+          if (value == null) {
+            buffer.write(NULL);
+          } else {
+            nonNullable.write(value, buffer);
+          }
+        };
+      default:
+        return null;
+    }
+  }
+
+  @Nullable
+  private static ValueWriter compileArray(Schema schema, Set<String> records) {
+    ValueWriter componentWriter = compile(schema.getComponentSchema(), records);
+    if (componentWriter == null) {
+      return null;
+    }
+    return (value, buffer) -> {
+      buffer.write('[');
+      if (value instanceof Collection) {
+        boolean first = true;
+        for (Object element : (Collection<?>) value) {
+          if (!first) {
+            buffer.write(',');
+          }
+          first = false;
+          componentWriter.write(element, buffer);
+        }
+      } else {
+        int length = Array.getLength(value);
+        for (int i = 0; i < length; i++) {
+          if (i > 0) {
+            buffer.write(',');
+          }
+          componentWriter.write(Array.get(value, i), buffer);
+        }
+      }
+      buffer.write(']');
+    };
+  }
+
+  @Nullable
+  private static ValueWriter compileMap(Schema schema, Set<String> records) {
+    Schema keySchema = schema.getMapSchema().getKey();
+    if (keySchema.getType() != Schema.Type.STRING || keySchema.getLogicalType() != null) {
+      return null;
+    }
+    ValueWriter valueWriter = compile(schema.getMapSchema().getValue(), records);
+    if (valueWriter == null) {
+      return null;
+    }
+    return (value, buffer) -> {
+      buffer.write('{');
+      boolean first = true;
+      for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+        if (!first) {
+          buffer.write(',');
+        }
+        first = false;
+        writeString(entry.getKey().toString(), buffer);
+        buffer.write(':');
+        valueWriter.write(entry.getValue(), buffer);
+      }
+      buffer.write('}');
+    };
+  }
+
+  @Nullable
+  private static ValueWriter compileRecord(Schema schema, Set<String> records) {
+    // Recursive records are left to the converter
+    List<Schema.Field> fields = schema.getFields();
+    if (fields == null || !records.add(schema.getRecordName())) {
+      return null;
+    }
+    String[] names = new String[fields.size()];
+    byte[][] tokens = new byte[fields.size()][];
+    ValueWriter[] writers = new ValueWriter[fields.size()];
+    KafkaMessageBuffer tokenBuffer = new KafkaMessageBuffer();
+    for (int i = 0; i < names.length; i++) {
+      Schema.Field field = fields.get(i);
+      names[i] = field.getName();
+      writers[i] = compile(field.getSchema(), records);
+      if (writers[i] == null) {
+        return null;
+      }
+      // Renders the separator, the name and the colon that precede the value of the field
+      tokenBuffer.reset();
+      tokenBuffer.write(i == 0 ? '{' : ',');
+      writeString(names[i], tokenBuffer);
+      tokenBuffer.write(':');
+      tokens[i] = tokenBuffer.toByteArray();
+    }
+    records.remove(schema.getRecordName());
+
+    return (value, buffer) -> {
+      StructuredRecord record = (StructuredRecord) value;
+      if (names.length == 0) {
+        buffer.write('{');
+      }
+      for (int i = 0; i < names.length; i++) {
+        buffer.write(tokens[i]);
+        writers[i].write(record.get(names[i]), buffer);
+      }
+      buffer.write('}');
+    };
+  }
+
+  private static void writeString(String str, KafkaMessageBuffer buffer) {
+    buffer.write('"');
+    int start = 0;
+    int length = str.length();
+    for (int i = 0; i < length; i++) {
+      char c = str.charAt(i);
+      byte[] replacement;
+      if (c < REPLACEMENTS.length) {
+        replacement = REPLACEMENTS[c];
+      } else if (c == '\u2028') {
+        replacement = LINE_SEPARATOR;
+      } else if (c == '\u2029') {
+        replacement = PARAGRAPH_SEPARATOR;
+      } else {
+        replacement = null;
+      }
+      if (replacement != null) {
+        buffer.writeUtf8(str, start, i);
+        buffer.write(replacement);
+        start = i + 1;
+      }
+    }
+    buffer.writeUtf8(str, start, length);
+    buffer.write('"');
+  }
+
+  private static void writeLong(long value, KafkaMessageBuffer buffer) {
+    if (value == Long.MIN_VALUE) {
+      buffer.writeUtf8(Long.toString(value));
+      return;
+    }
+    if (value < 0) {
+      buffer.write('-');
+      value = -value;
+    }
+    // Writes the digits from the most significant one, without creating a string
+    long divisor = 1;
+    while (divisor <= value / 10) {
+      divisor *= 10;
+    }
+    for (; divisor > 0; divisor /= 10) {
+      buffer.write((int) ('0' + (value / divisor) % 10));
+    }
+  }
+
+  private static void writeDouble(double value, KafkaMessageBuffer buffer) {
+    if (Double.isNaN(value) || Double.isInfinite(value)) {
+      throw new IllegalArgumentException("Numeric values must be finite, but was " + value);
+    }
+    buffer.writeUtf8(Double.toString(value));
+  }
+
+  private static byte[] ascii(String str) {
+    return str.getBytes(StandardCharsets.US_ASCII);
+  }
+
+  /**
+   * Writes a value of a compiled schema.
+   */
+  private interface ValueWriter {
+    void write(Object value, KafkaMessageBuffer buffer);
+  }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright © 2022 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package io.cdap.plugin.common;
+
+import java.util.Arrays;
+
+/**
+ * Growable byte buffer that Kafka messages are encoded into. Strings are encoded to UTF-8 directly into the buffer,
+ * without intermediate byte arrays, and the buffer is reused across messages, so that encoding a message only
+ * allocates the resulting byte array.
+ */
+public final class KafkaMessageBuffer {
+  private static final int DEFAULT_CAPACITY = 1024;
+
+  private byte[] buffer;
+  private int size;
+
+  public KafkaMessageBuffer() {
+    this.buffer = new byte[DEFAULT_CAPACITY];
+  }
+
+  /**
+   * Discards the content of the buffer, keeping its capacity.
+   */
+  public void reset() {
+    size = 0;
+  }
+
+  /**
+   * Returns the number of bytes written since the last reset.
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Writes a single byte.
+   */
+  public void write(int b) {
+    ensureCapacity(size + 1);
+    buffer[size++] = (byte) b;
+  }
+
+  /**
+   * Writes all the given bytes.
+   */
+  public void write(byte[] bytes) {
+    ensureCapacity(size + bytes.length);
+    System.arraycopy(bytes, 0, buffer, size, bytes.length);
+    size += bytes.length;
+  }
+
+  /**
+   * Writes the UTF-8 encoding of the given string. Unpaired surrogates are written as '?', like the String encoder.
+   */
+  public void writeUtf8(CharSequence str) {
+    writeUtf8(str, 0, str.length());
+  }
+
+  /**
+   * Writes the UTF-8 encoding of the chars of the given string from start, inclusive, to end, exclusive.
+   */
+  public void writeUtf8(CharSequence str, int start, int end) {
+    // A char takes at most three bytes, and a surrogate pair takes four bytes for two chars
+    ensureCapacity(size + (end - start) * 3);
+    for (int i = start; i < end; i++) {
+      char c = str.charAt(i);
+      if (c < 0x80) {
+        buffer[size++] = (byte) c;
+      } else if (c < 0x800) {
+        buffer[size++] = (byte) (0xc0 | (c >> 6));
+        buffer[size++] = (byte) (0x80 | (c & 0x3f));
+      } else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(str.charAt(i + 1))) {
+        int codePoint = Character.toCodePoint(c, str.charAt(++i));
+        buffer[size++] = (byte) (0xf0 | (codePoint >> 18));
+        buffer[size++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+        buffer[size++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+        buffer[size++] = (byte) (0x80 | (codePoint & 0x3f));
+      } else if (Character.isSurrogate(c)) {
+        buffer[size++] = (byte) '?';
+      } else {
+        buffer[size++] = (byte) (0xe0 | (c >> 12));
+        buffer[size++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+        buffer[size++] = (byte) (0x80 | (c & 0x3f));
+      }
+    }
+  }
+
+  /**
+   * Returns a copy of the bytes written since the last reset.
+   */
+  public byte[] toByteArray() {
+    return Arrays.copyOf(buffer, size);
+  }
+
+  private void ensureCapacity(int capacity) {
+    if (capacity > buffer.length) {
+      buffer = Arrays.copyOf(buffer, Math.max(capacity, buffer.length * 2));
+    }
+  }
+}
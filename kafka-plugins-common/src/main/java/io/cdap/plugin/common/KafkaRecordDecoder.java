@@ -0,0 +1,114 @@
+/*
+ * Copyright © 2022 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin.common;
+
+import io.cdap.cdap.api.data.format.FormatSpecification;
+import io.cdap.cdap.api.data.format.RecordFormat;
+import io.cdap.cdap.api.data.format.StructuredRecord;
+import io.cdap.cdap.api.data.schema.Schema;
+import io.cdap.cdap.format.RecordFormats;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Decodes formatted Kafka message payloads into records of the output schema of a source.
+ *
+ * When the output schema has no field besides the message fields, the format decodes the payload directly into a
+ * record of the output schema, so that no intermediate record is built. Otherwise, the format can only decode into a
+ * record of its own schema, and the fields of the decoded record are copied into the builder of the output record.
+ * The output field of each position of the decoded record is resolved once per decoded schema, rather than looked up
+ * by name for every record, and positions without an output field are skipped. Instances are not thread safe.
+ */
+public final class KafkaRecordDecoder {
+  private final RecordFormat<ByteBuffer, StructuredRecord> recordFormat;
+  private final Schema schema;
+  private final boolean passThrough;
+  // The schema of the last decoded record, and the output field of each of its fields, or null if there is none
+  private Schema decodedSchema;
+  private String[] outputFields;
+
+  /**
+   * Creates a decoder.
+   *
+   * @param schema the output schema of the source
+   * @param messageSchema the schema of the message, which is the output schema without the time, key, partition,
+   *                      offset and topic fields
+   * @param format the format of the message payloads
+   * @throws Exception if the record format cannot be created
+   */
+  public KafkaRecordDecoder(Schema schema, Schema messageSchema, String format) throws Exception {
+    this.schema = schema;
+    // The message schema only differs from the output schema by the additional fields and the record name
+    this.passThrough = messageSchema.getFields().size() == schema.getFields().size();
+    this.recordFormat = RecordFormats.createInitializedFormat(
+      new FormatSpecification(format, passThrough ? schema : messageSchema, new HashMap<>()));
+  }
+
+  /**
+   * Returns whether payloads are decoded directly into records of the output schema, in which case
+   * {@link #decode(ByteBuffer)} must be used.
+   */
+  public boolean isPassThrough() {
+    return passThrough;
+  }
+
+  /**
+   * Decodes the given payload into a record of the output schema. Only valid if the decoder is pass through.
+   */
+  public StructuredRecord decode(ByteBuffer payload) {
+    if (!passThrough) {
+      throw new IllegalStateException("The output schema has fields that are not part of the message.");
+    }
+    return recordFormat.read(payload);
+  }
+
+  /**
+   * Decodes the given payload and sets the message fields in the given builder of an output record. Valid whether
+   * the decoder is pass through or not.
+   */
+  public void decode(ByteBuffer payload, StructuredRecord.Builder builder) {
+    StructuredRecord messageRecord = recordFormat.read(payload);
+    List<Schema.Field> fields = messageRecord.getSchema().getFields();
+    String[] outputFields = getOutputFields(messageRecord.getSchema());
+    for (int i = 0; i < outputFields.length; i++) {
+      if (outputFields[i] != null) {
+        builder.set(outputFields[i], messageRecord.get(fields.get(i).getName()));
+      }
+    }
+  }
+
+  /**
+   * Returns the output field of each field of the given decoded schema, resolving them if the schema differs from
+   * the one of the previous record. Formats return the same schema instance for every record, so the identity check
+   * is enough in the common case.
+   */
+  private String[] getOutputFields(Schema messageSchema) {
+    if (messageSchema != decodedSchema) {
+      List<Schema.Field> fields = messageSchema.getFields();
+      String[] resolved = new String[fields.size()];
+      for (int i = 0; i < resolved.length; i++) {
+        String name = fields.get(i).getName();
+        resolved[i] = schema.getField(name) == null ? null : name;
+      }
+      decodedSchema = messageSchema;
+      outputFields = resolved;
+    }
+    return outputFields;
+  }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright © 2022 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package io.cdap.plugin.common;
+
+import io.cdap.cdap.api.data.format.StructuredRecord;
+import io.cdap.cdap.api.data.schema.Schema;
+
+import java.io.IOException;
+import javax.annotation.Nullable;
+
+/**
+ * Encodes records into the payloads of Kafka messages written by a sink.
+ *
+ * The payload is encoded in a buffer reused across records and copied once into the resulting byte array, which
+ * the producer sends as is, instead of building a string that is then converted to bytes.
+ */
+public final class KafkaRecordEncoder {
+  public static final String FORMAT_JSON = "json";
+
+  @Nullable
+  private final KafkaJsonEncoder jsonEncoder;
+  private final KafkaMessageBuffer buffer;
+
+  /**
+   * Creates an encoder.
+   *
+   * @param format the format of the message payloads, either json or csv
+   */
+  public KafkaRecordEncoder(String format) {
+    this.jsonEncoder = FORMAT_JSON.equalsIgnoreCase(format) ? new KafkaJsonEncoder() : null;
+    this.buffer = new KafkaMessageBuffer();
+  }
+
+  /**
+   * Encodes the given record into a message payload.
+   *
+   * @throws IOException if the record cannot be encoded into json
+   */
+  public byte[] encode(StructuredRecord record) throws IOException {
+    buffer.reset();
+    if (jsonEncoder != null) {
+      jsonEncoder.encode(record, buffer);
+    } else {
+      encodeDelimited(record);
+    }
+    return buffer.toByteArray();
+  }
+
+  /**
+   * Writes the values of the fields separated by commas, with empty values for nulls.
+   */
+  private void encodeDelimited(StructuredRecord record) {
+    boolean first = true;
+    for (Schema.Field field : record.getSchema().getFields()) {
+      if (!first) {
+        buffer.write(',');
+      }
+      first = false;
+      Object value = record.get(field.getName());
+      if (value != null) {
+        buffer.writeUtf8(value.toString());
+      }
+    }
+  }
+}
@@ -55,6 +55,7 @@ import org.apache.twill.kafka.client.KafkaPublisher;
 import org.apache.twill.zookeeper.ZKClientService;
 import org.junit.After;
 import org.junit.Assert;
+import org.junit.Assume;
 import org.junit.Before;
 import org.junit.ClassRule;
 import org.junit.Test;
@@ -100,6 +101,13 @@ public abstract class AbstractKafkaBatchSourceTest extends HydratorTestBase {
    */
   protected abstract String getKafkaBatchSourceName();
 
+  /**
+   * Returns whether the Kafka batch source can read a comma separated list of topics.
+   */
+  protected boolean supportsMultipleTopics() {
+    return false;
+  }
+
   @Before
   public void setup() throws Exception {
     ArtifactId parentArtifact = NamespaceId.DEFAULT.artifact(APP_ARTIFACT.getName(), APP_ARTIFACT.getVersion());
@@ -231,6 +239,75 @@ public abstract class AbstractKafkaBatchSourceTest extends HydratorTestBase {
     ));
   }
 
+  @Test
+  public void testTopicAdded() throws Exception {
+    Assume.assumeTrue(supportsMultipleTopics());
+    File offsetDir = TMP_FOLDER.newFolder();
+
+    Schema schema = Schema.recordOf(
+      "user",
+      Schema.Field.of("id", Schema.of(Schema.Type.LONG)),
+      Schema.Field.of("first", Schema.of(Schema.Type.STRING)),
+      Schema.Field.of("last", Schema.of(Schema.Type.STRING)));
+
+    String outputName = "topicAddedOutput";
+    Map<String, String> sourceProperties = new HashMap<>();
+    sourceProperties.put("kafkaBrokers", kafkaBroker);
+    sourceProperties.put("referenceName", "kafkaTopicAdded");
+    sourceProperties.put("offsetDir", offsetDir.toURI().toString());
+    sourceProperties.put("topic", "${topic}");
+    sourceProperties.put("schema", schema.toString());
+    sourceProperties.put("format", "csv");
+    ETLStage source = new ETLStage("source", new ETLPlugin(getKafkaBatchSourceName(),
+                                                           BatchSource.PLUGIN_TYPE, sourceProperties, null));
+    ETLStage sink = new ETLStage("sink", MockSink.getPlugin(outputName));
+    ETLBatchConfig pipelineConfig = ETLBatchConfig.builder()
+      .addStage(source)
+      .addStage(sink)
+      .addConnection(source.getName(), sink.getName())
+      .build();
+    ApplicationId pipelineId = NamespaceId.DEFAULT.app("testTopicAdded");
+    ApplicationManager appManager = deployApplication(pipelineId, new AppRequest<>(APP_ARTIFACT, pipelineConfig));
+    WorkflowManager workflowManager = appManager.getWorkflowManager(SmartWorkflow.NAME);
+
+    // The first run reads a single topic, whose offsets are also saved without a topic
+    Map<String, String> messages = new LinkedHashMap<>();
+    messages.put("a", "1,samuel,jackson");
+    messages.put("b", "2,dwayne,johnson");
+    messages.put("c", "3,christopher,walken");
+    sendKafkaMessage("members", messages);
+    workflowManager.startAndWaitForRun(Collections.singletonMap("topic", "members"),
+                                       ProgramRunStatus.COMPLETED, 2, TimeUnit.MINUTES);
+    validate(outputName, offsetDir, pipelineId, Collections.singletonMap(0, 3L), ImmutableMap.of(
+      1L, "samuel jackson",
+      2L, "dwayne johnson",
+      3L, "christopher walken"
+    ));
+    MockSink.clear(getDataset(outputName));
+
+    // A topic added later is read from its start rather than from the offsets of the first topic
+    messages = new LinkedHashMap<>();
+    messages.put("d", "4,michael,jackson");
+    messages.put("e", "5,bruce,lee");
+    sendKafkaMessage("guests", messages);
+    workflowManager.startAndWaitForRun(Collections.singletonMap("topic", "members,guests"),
+                                       ProgramRunStatus.COMPLETED, 2, TimeUnit.MINUTES);
+
+    DataSetManager<Table> outputManager = getDataset(outputName);
+    Map<Long, String> actual = new HashMap<>();
+    for (StructuredRecord outputRecord : MockSink.readOutput(outputManager)) {
+      actual.put(outputRecord.get("id"), outputRecord.get("first") + " " + outputRecord.get("last"));
+    }
+    Assert.assertEquals(ImmutableMap.of(4L, "michael jackson", 5L, "bruce lee"), actual);
+
+    Path offsetFilePath = KafkaBatchConfig.getOffsetFilePath(new Path(offsetDir.toURI()),
+                                                             pipelineId.getNamespace(), pipelineId.getApplication());
+    KafkaPartitionOffsets partitionOffsets = KafkaPartitionOffsets.load(FileContext.getFileContext(
+      offsetFilePath.toUri()), offsetFilePath);
+    Assert.assertEquals(3L, partitionOffsets.getPartitionOffset("members", 0, -1L));
+    Assert.assertEquals(2L, partitionOffsets.getPartitionOffset("guests", 0, -1L));
+  }
+
   /**
    * Validates the test result and offsets after the testing pipeline was executed.
    *
@@ -0,0 +1,104 @@
+/*
+ * Copyright © 2022 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package io.cdap.plugin.batch.source;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Tests for {@link KafkaCombinedSplit} and {@link KafkaSplit}.
+ */
+public class KafkaCombinedSplitTest {
+
+  @Test
+  public void testWriteRead() throws IOException {
+    List<KafkaRequest> requests = Arrays.asList(
+      new KafkaRequest("test", 0, Collections.singletonMap("key", "value"), 5L, 10L, 100L, "broker1:9092"),
+      new KafkaRequest("other", 3, Collections.emptyMap(), 0L, 7L, 2048L, null));
+    KafkaCombinedSplit split = new KafkaCombinedSplit(requests);
+
+    KafkaCombinedSplit copy = new KafkaCombinedSplit();
+    copy.readFields(toInput(out -> split.write(out)));
+    Assert.assertEquals(requests.size(), copy.getRequests().size());
+    for (int i = 0; i < requests.size(); i++) {
+      assertRequest(requests.get(i), copy.getRequests().get(i));
+    }
+    Assert.assertEquals(split.getLength(), copy.getLength());
+    Assert.assertArrayEquals(split.getLocations(), copy.getLocations());
+  }
+
+  @Test
+  public void testSplitWriteRead() throws IOException {
+    for (String leader : Arrays.asList("broker1:9092", null)) {
+      KafkaSplit split = new KafkaSplit(new KafkaRequest("test", 1, Collections.emptyMap(), 3L, 4L, 10L, leader));
+      KafkaSplit copy = new KafkaSplit();
+      copy.readFields(toInput(out -> split.write(out)));
+      assertRequest(split.getRequest(), copy.getRequest());
+      Assert.assertArrayEquals(split.getLocations(), copy.getLocations());
+    }
+  }
+
+  @Test
+  public void testLocations() {
+    KafkaCombinedSplit split = new KafkaCombinedSplit(Arrays.asList(
+      new KafkaRequest("test", 0, Collections.emptyMap(), 0L, 10L, 10L, "broker1:9092"),
+      new KafkaRequest("test", 1, Collections.emptyMap(), 0L, 30L, 10L, "broker2:9092"),
+      new KafkaRequest("test", 2, Collections.emptyMap(), 0L, 15L, 10L, "broker1:9093"),
+      new KafkaRequest("test", 3, Collections.emptyMap(), 0L, 100L, 10L, null)));
+
+    // The hosts are ordered by the size of the data read from them, and requests without a leader have no host
+    Assert.assertArrayEquals(new String[] { "broker2", "broker1" }, split.getLocations());
+    Assert.assertEquals(1550L, split.getLength());
+    Assert.assertEquals(0, new KafkaCombinedSplit(Collections.singletonList(
+      new KafkaRequest("test", 0, Collections.emptyMap(), 0L, 10L, 10L, null))).getLocations().length);
+  }
+
+  private void assertRequest(KafkaRequest expected, KafkaRequest actual) {
+    Assert.assertEquals(expected.getTopic(), actual.getTopic());
+    Assert.assertEquals(expected.getPartition(), actual.getPartition());
+    Assert.assertEquals(expected.getConf(), actual.getConf());
+    Assert.assertEquals(expected.getStartOffset(), actual.getStartOffset());
+    Assert.assertEquals(expected.getEndOffset(), actual.getEndOffset());
+    Assert.assertEquals(expected.getAverageMessageSize(), actual.getAverageMessageSize());
+    Assert.assertEquals(expected.getLeader(), actual.getLeader());
+  }
+
+  private DataInputStream toInput(Output output) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (DataOutputStream out = new DataOutputStream(bytes)) {
+      output.write(out);
+    }
+    return new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+  }
+
+  /**
+   * Writes to a data output.
+   */
+  private interface Output {
+    void write(DataOutputStream out) throws IOException;
+  }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright © 2022 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package io.cdap.plugin.batch.source;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.mapreduce.TaskAttemptID;
+import org.apache.hadoop.mapreduce.task.TaskAttemptContextImpl;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Collections;
+
+/**
+ * Tests for {@link KafkaRecordReader}.
+ */
+public class KafkaRecordReaderTest {
+
+  private static final String TOPIC = "test";
+  private static final byte[] KEY = "key".getBytes();
+  private static final byte[] PAYLOAD = "payload".getBytes();
+
+  @Test
+  public void testKeyValueReuse() throws Exception {
+    KafkaRecordReader recordReader = createRecordReader(10);
+    KafkaKey key = recordReader.getCurrentKey();
+    KafkaMessage value = recordReader.getCurrentValue();
+
+    long offset = 0;
+    while (recordReader.nextKeyValue()) {
+      Assert.assertSame(key, recordReader.getCurrentKey());
+      Assert.assertSame(value, recordReader.getCurrentValue());
+      Assert.assertEquals(TOPIC, key.getTopic());
+      Assert.assertEquals(++offset, key.getOffset());
+      // The arrays set by the reader are returned without copying
+      Assert.assertSame(KEY, value.getKeyBytes());
+      Assert.assertSame(PAYLOAD, value.getPayloadBytes());
+    }
+    Assert.assertEquals(10, offset);
+    recordReader.close();
+  }
+
+  private KafkaRecordReader createRecordReader(int records) throws Exception {
+    KafkaRecordReader recordReader = new KafkaRecordReader(InPlaceKafkaReader::new);
+    KafkaRequest request = new KafkaRequest(TOPIC, 0, Collections.emptyMap(), 0L, records);
+    recordReader.initialize(new KafkaSplit(request),
+                            new TaskAttemptContextImpl(new Configuration(), new TaskAttemptID()));
+    return recordReader;
+  }
+
+  /**
+   * A {@link KafkaReader} that sets the same arrays for every message without allocating.
+   */
+  private static final class InPlaceKafkaReader implements KafkaReader {
+    private final KafkaRequest request;
+    private long offset;
+
+    InPlaceKafkaReader(KafkaRequest request) {
+      this.request = request;
+      this.offset = request.getStartOffset();
+    }
+
+    @Override
+    public boolean hasNext() {
+      return offset < request.getEndOffset();
+    }
+
+    @Override
+    public void getNext(KafkaKey kafkaKey, KafkaMessage kafkaMessage) {
+      kafkaKey.set(request.getTopic(), request.getPartition(), offset, offset + 1,
+                   KEY.length + PAYLOAD.length, 0L);
+      kafkaMessage.set(PAYLOAD, KEY);
+      offset++;
+    }
+
+    @Override
+    public void close() {
+      // no-op
+    }
+  }
+}
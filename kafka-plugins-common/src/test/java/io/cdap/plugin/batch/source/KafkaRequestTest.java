@@ -0,0 +1,142 @@
+/*
+ * Copyright © 2022 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package io.cdap.plugin.batch.source;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Tests for {@link KafkaRequest}.
+ */
+public class KafkaRequestTest {
+
+  private static final String TOPIC = "test";
+  private static final String LEADER = "broker1:9092";
+
+  @Test
+  public void testSplitWithinLimits() {
+    KafkaRequest request = createRequest(3L, 13L, 100L);
+    Assert.assertEquals(Collections.singletonList(request), request.split(0L, 0L));
+    Assert.assertEquals(Collections.singletonList(request), request.split(10L, 0L));
+    Assert.assertEquals(Collections.singletonList(request), request.split(0L, 1000L));
+    Assert.assertEquals(Collections.singletonList(request), request.split(10L, 1000L));
+  }
+
+  @Test
+  public void testSplitEmpty() {
+    KafkaRequest request = createRequest(5L, 5L, 100L);
+    Assert.assertEquals(Collections.singletonList(request), request.split(1L, 1L));
+  }
+
+  @Test
+  public void testSplitRangeEnds() {
+    // One record over the limit gives two splits of similar sizes
+    assertSplits(createRequest(0L, 6L, 1L).split(5L, 0L), 0L, 3L, 6L);
+    // An exact multiple of the limit gives full splits
+    assertSplits(createRequest(10L, 20L, 1L).split(5L, 0L), 10L, 15L, 20L);
+    // The last split ends at the end offset
+    assertSplits(createRequest(0L, 11L, 1L).split(5L, 0L), 0L, 4L, 8L, 11L);
+  }
+
+  @Test
+  public void testSplitByBytes() {
+    // The byte limit allows 10 records, the record limit allows 4
+    assertSplits(createRequest(0L, 8L, 100L).split(4L, 1000L), 0L, 4L, 8L);
+    // The byte limit allows 2 records, the record limit allows 4
+    assertSplits(createRequest(0L, 4L, 100L).split(4L, 250L), 0L, 2L, 4L);
+  }
+
+  @Test
+  public void testSplitBytesBelowMessageSize() {
+    // A byte limit below the average message size still reads one record per split
+    assertSplits(createRequest(3L, 6L, 1024L).split(0L, 100L), 3L, 4L, 5L, 6L);
+  }
+
+  @Test
+  public void testSplitKeepsRequest() {
+    for (KafkaRequest split : createRequest(0L, 10L, 100L).split(3L, 0L)) {
+      Assert.assertEquals(TOPIC, split.getTopic());
+      Assert.assertEquals(1, split.getPartition());
+      Assert.assertEquals(100L, split.getAverageMessageSize());
+      Assert.assertEquals(LEADER, split.getLeader());
+    }
+  }
+
+  @Test
+  public void testSplitCoversRange() {
+    for (long size = 1L; size <= 50L; size++) {
+      for (long maxRecords = 1L; maxRecords <= 12L; maxRecords++) {
+        List<KafkaRequest> splits = createRequest(7L, 7L + size, 1L).split(maxRecords, 0L);
+        long numSplits = (size + maxRecords - 1) / maxRecords;
+        Assert.assertEquals(numSplits, splits.size());
+        long offset = 7L;
+        for (KafkaRequest split : splits) {
+          Assert.assertEquals(offset, split.getStartOffset());
+          long records = split.getEndOffset() - split.getStartOffset();
+          Assert.assertTrue(records > 0 && records <= maxRecords);
+          offset = split.getEndOffset();
+        }
+        Assert.assertEquals(7L + size, offset);
+      }
+    }
+  }
+
+  @Test
+  public void testLimitBytes() {
+    KafkaRequest request = createRequest(0L, 10L, 10L);
+    Assert.assertSame(request, request.limitBytes(0L));
+    Assert.assertSame(request, request.limitBytes(-1L));
+    Assert.assertSame(request, request.limitBytes(100L));
+    Assert.assertSame(request, request.limitBytes(1000L));
+
+    KafkaRequest limited = request.limitBytes(99L);
+    Assert.assertEquals(0L, limited.getStartOffset());
+    Assert.assertEquals(9L, limited.getEndOffset());
+    Assert.assertEquals(10L, limited.getAverageMessageSize());
+    Assert.assertEquals(LEADER, limited.getLeader());
+  }
+
+  @Test
+  public void testLimitBytesBelowMessageSize() {
+    // At least one record is read even if it is larger than the limit
+    KafkaRequest limited = createRequest(5L, 10L, 1024L).limitBytes(100L);
+    Assert.assertEquals(5L, limited.getStartOffset());
+    Assert.assertEquals(6L, limited.getEndOffset());
+
+    KafkaRequest empty = createRequest(5L, 5L, 1024L);
+    Assert.assertSame(empty, empty.limitBytes(100L));
+  }
+
+  private KafkaRequest createRequest(long startOffset, long endOffset, long averageMessageSize) {
+    return new KafkaRequest(TOPIC, 1, Collections.emptyMap(), startOffset, endOffset, averageMessageSize, LEADER);
+  }
+
+  /**
+   * Asserts that the given requests are contiguous with the given boundary offsets.
+   */
+  private void assertSplits(List<KafkaRequest> splits, long... offsets) {
+    Assert.assertEquals(offsets.length - 1, splits.size());
+    for (int i = 0; i < splits.size(); i++) {
+      Assert.assertEquals(offsets[i], splits.get(i).getStartOffset());
+      Assert.assertEquals(offsets[i + 1], splits.get(i).getEndOffset());
+    }
+  }
+}
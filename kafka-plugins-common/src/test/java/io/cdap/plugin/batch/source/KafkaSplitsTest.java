@@ -0,0 +1,149 @@
+/*
+ * Copyright © 2022 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package io.cdap.plugin.batch.source;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import javax.annotation.Nullable;
+
+/**
+ * Tests for {@link KafkaSplits}.
+ */
+public class KafkaSplitsTest {
+
+  private static final long MB = 1024L * 1024;
+
+  @Test
+  public void testNoCombine() {
+    List<KafkaRequest> requests = Arrays.asList(createRequest(0, 10L, 1L, null), createRequest(1, 10L, 1L, null));
+    List<InputSplit> splits = KafkaSplits.createSplits(new Configuration(), requests);
+    Assert.assertEquals(2, splits.size());
+    for (int i = 0; i < splits.size(); i++) {
+      Assert.assertSame(requests.get(i), ((KafkaSplit) splits.get(i)).getRequest());
+    }
+  }
+
+  @Test
+  public void testDefaultBudget() throws Exception {
+    Configuration conf = new Configuration();
+    KafkaSplits.setCombineSplits(conf, true, 0L, 0L);
+
+    // Two requests that exactly fill the default budget of 128 MB are combined
+    List<InputSplit> splits = KafkaSplits.createSplits(conf, Arrays.asList(createRequest(0, 64L, MB, null),
+                                                                           createRequest(1, 64L, MB, null)));
+    Assert.assertEquals(1, splits.size());
+    Assert.assertEquals(128L * MB, splits.get(0).getLength());
+
+    // One more byte does not fit
+    splits = KafkaSplits.createSplits(conf, Arrays.asList(createRequest(0, 64L, MB, null),
+                                                          createRequest(1, 64L * MB + 1, 1L, null)));
+    Assert.assertEquals(2, splits.size());
+  }
+
+  @Test
+  public void testFirstFitDecreasing() {
+    Configuration conf = new Configuration();
+    KafkaSplits.setCombineSplits(conf, true, 6L, 0L);
+    List<KafkaRequest> requests = new ArrayList<>();
+    for (int i = 1; i <= 5; i++) {
+      requests.add(createRequest(i, i, 1L, null));
+    }
+
+    // The largest requests are placed first, and the smaller ones fill the gaps: {5, 1}, {4, 2}, {3}
+    List<InputSplit> splits = KafkaSplits.createSplits(conf, requests);
+    Assert.assertEquals(3, splits.size());
+    Assert.assertEquals(Arrays.asList(5, 1), getPartitions(splits.get(0)));
+    Assert.assertEquals(Arrays.asList(4, 2), getPartitions(splits.get(1)));
+    Assert.assertEquals(Collections.singletonList(3), getPartitions(splits.get(2)));
+    Assert.assertTrue(splits.get(2) instanceof KafkaSplit);
+  }
+
+  @Test
+  public void testBudgetBounds() {
+    Configuration conf = new Configuration();
+    KafkaSplits.setCombineSplits(conf, true, 20L, 1000L);
+    List<KafkaRequest> requests = new ArrayList<>();
+    for (int i = 0; i < 40; i++) {
+      requests.add(createRequest(i, 1 + (i * 7) % 19, 10 + (i * 13) % 50, null));
+    }
+    // A request over the budget still gets a split of its own
+    requests.add(createRequest(40, 100L, 100L, null));
+
+    Set<Integer> partitions = new HashSet<>();
+    for (InputSplit split : KafkaSplits.createSplits(conf, requests)) {
+      List<KafkaRequest> splitRequests = getRequests(split);
+      long records = splitRequests.stream().mapToLong(r -> r.getEndOffset() - r.getStartOffset()).sum();
+      long bytes = splitRequests.stream().mapToLong(KafkaRequest::estimateDataSize).sum();
+      Assert.assertTrue(splitRequests.size() == 1 || (records <= 20L && bytes <= 1000L));
+      for (KafkaRequest request : splitRequests) {
+        Assert.assertTrue(partitions.add(request.getPartition()));
+      }
+    }
+    Assert.assertEquals(requests.size(), partitions.size());
+  }
+
+  @Test
+  public void testSamePartitionNotCombined() {
+    Configuration conf = new Configuration();
+    KafkaSplits.setCombineSplits(conf, true, 100L, 0L);
+    List<InputSplit> splits = KafkaSplits.createSplits(conf, Arrays.asList(createRequest(0, 10L, 1L, null),
+                                                                           createRequest(0, 10L, 1L, null)));
+    Assert.assertEquals(2, splits.size());
+  }
+
+  @Test
+  public void testGroupByLeader() {
+    Configuration conf = new Configuration();
+    KafkaSplits.setGroupByLeader(conf, true);
+    List<KafkaRequest> requests = Arrays.asList(createRequest(0, 10L, 1L, "broker1:9092"),
+                                                createRequest(1, 10L, 1L, "broker2:9092"),
+                                                createRequest(2, 10L, 1L, "broker1:9092"),
+                                                createRequest(3, 10L, 1L, null));
+    List<InputSplit> splits = KafkaSplits.createSplits(conf, requests);
+    Assert.assertEquals(3, splits.size());
+    Assert.assertEquals(Arrays.asList(0, 2), getPartitions(splits.get(0)));
+    Assert.assertEquals(Collections.singletonList(1), getPartitions(splits.get(1)));
+    Assert.assertEquals(Collections.singletonList(3), getPartitions(splits.get(2)));
+  }
+
+  private KafkaRequest createRequest(int partition, long records, long averageMessageSize, @Nullable String leader) {
+    return new KafkaRequest("test", partition, Collections.emptyMap(), 0L, records, averageMessageSize, leader);
+  }
+
+  private List<KafkaRequest> getRequests(InputSplit split) {
+    return split instanceof KafkaCombinedSplit ? ((KafkaCombinedSplit) split).getRequests()
+      : Collections.singletonList(((KafkaSplit) split).getRequest());
+  }
+
+  private List<Integer> getPartitions(InputSplit split) {
+    List<Integer> partitions = new ArrayList<>();
+    for (KafkaRequest request : getRequests(split)) {
+      partitions.add(request.getPartition());
+    }
+    return partitions;
+  }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright © 2022 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package io.cdap.plugin.batch.source;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tests for {@link PrefetchingKafkaReader}.
+ */
+public class PrefetchingKafkaReaderTest {
+
+  private static final String TOPIC = "test";
+
+  @Test
+  public void testOrdering() throws Exception {
+    // A small queue makes the reader recycle its batches many times
+    FakeKafkaReader fakeReader = new FakeKafkaReader(5000L, 10L, -1L);
+    PrefetchingKafkaReader reader = new PrefetchingKafkaReader(fakeReader, 1000L);
+    KafkaKey key = new KafkaKey();
+    KafkaMessage message = new KafkaMessage();
+    byte[] firstPayload = null;
+    long offset = 0L;
+    while (reader.hasNext()) {
+      reader.getNext(key, message);
+      Assert.assertEquals(TOPIC, key.getTopic());
+      Assert.assertEquals(offset, key.getBeginOffset());
+      Assert.assertEquals(offset + 1, key.getOffset());
+      Assert.assertEquals(String.valueOf(offset), new String(message.getPayloadBytes(), StandardCharsets.UTF_8));
+      if (firstPayload == null) {
+        firstPayload = message.getPayloadBytes();
+      }
+      offset++;
+    }
+    Assert.assertEquals(5000L, offset);
+    Assert.assertFalse(reader.hasNext());
+    // Messages handed out are not changed when their batch is reused
+    Assert.assertEquals("0", new String(firstPayload, StandardCharsets.UTF_8));
+    Assert.assertTrue(reader.getBatches() > 1L);
+
+    reader.close();
+    Assert.assertTrue(fakeReader.closed);
+  }
+
+  @Test
+  public void testEmpty() throws Exception {
+    FakeKafkaReader fakeReader = new FakeKafkaReader(0L, 10L, -1L);
+    PrefetchingKafkaReader reader = new PrefetchingKafkaReader(fakeReader, 1000L);
+    Assert.assertFalse(reader.hasNext());
+    reader.close();
+    Assert.assertTrue(fakeReader.closed);
+  }
+
+  @Test
+  public void testMessagesLargerThanQueue() throws Exception {
+    // A batch is accepted by an empty queue even if it is larger than the queue
+    PrefetchingKafkaReader reader = new PrefetchingKafkaReader(new FakeKafkaReader(3L, 1000L, -1L), 100L);
+    Assert.assertEquals(3L, readAll(reader));
+    reader.close();
+  }
+
+  @Test
+  public void testFailure() throws Exception {
+    FakeKafkaReader fakeReader = new FakeKafkaReader(1000L, 10L, 100L);
+    PrefetchingKafkaReader reader = new PrefetchingKafkaReader(fakeReader, 1000L);
+    KafkaKey key = new KafkaKey();
+    KafkaMessage message = new KafkaMessage();
+    for (int i = 0; i < 100; i++) {
+      Assert.assertTrue(reader.hasNext());
+      reader.getNext(key, message);
+    }
+    try {
+      reader.hasNext();
+      Assert.fail("Expected the failure of the underlying reader");
+    } catch (RuntimeException e) {
+      Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+    }
+    Assert.assertFalse(reader.hasNext());
+    reader.close();
+    Assert.assertTrue(fakeReader.closed);
+  }
+
+  @Test(timeout = 10000L)
+  public void testCloseWithFullQueue() throws Exception {
+    // Each batch of three messages is 30 bytes, so the queue takes three batches and the fetch thread blocks with
+    // the fourth one
+    FakeKafkaReader fakeReader = new FakeKafkaReader(Long.MAX_VALUE, 10L, -1L);
+    PrefetchingKafkaReader reader = new PrefetchingKafkaReader(fakeReader, 100L);
+    while (fakeReader.read.get() < 12L) {
+      TimeUnit.MILLISECONDS.sleep(10);
+    }
+    TimeUnit.MILLISECONDS.sleep(100);
+    Assert.assertEquals(12L, fakeReader.read.get());
+
+    reader.close();
+    Assert.assertTrue(fakeReader.closed);
+  }
+
+  private long readAll(PrefetchingKafkaReader reader) {
+    KafkaKey key = new KafkaKey();
+    KafkaMessage message = new KafkaMessage();
+    long count = 0L;
+    while (reader.hasNext()) {
+      reader.getNext(key, message);
+      count++;
+    }
+    return count;
+  }
+
+  /**
+   * A {@link KafkaReader} that returns messages of a fixed size with their offset as payload, and optionally fails
+   * after a given number of messages.
+   */
+  private static final class FakeKafkaReader implements KafkaReader {
+    private final long messages;
+    private final long messageSize;
+    private final long failAfter;
+    private final AtomicLong read = new AtomicLong();
+    private volatile boolean closed;
+
+    FakeKafkaReader(long messages, long messageSize, long failAfter) {
+      this.messages = messages;
+      this.messageSize = messageSize;
+      this.failAfter = failAfter;
+    }
+
+    @Override
+    public boolean hasNext() {
+      if (read.get() == failAfter) {
+        throw new IllegalStateException("Failed to fetch");
+      }
+      return read.get() < messages;
+    }
+
+    @Override
+    public void getNext(KafkaKey kafkaKey, KafkaMessage kafkaMessage) {
+      long offset = read.getAndIncrement();
+      kafkaKey.set(TOPIC, 0, offset, offset + 1, messageSize, 0L);
+      kafkaMessage.set(String.valueOf(offset).getBytes(StandardCharsets.UTF_8), null);
+    }
+
+    @Override
+    public void close() {
+      closed = true;
+    }
+  }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright © 2022 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package io.cdap.plugin.common;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import io.cdap.cdap.api.data.format.StructuredRecord;
+import io.cdap.cdap.api.data.schema.Schema;
+import io.cdap.cdap.format.StructuredRecordStringConverter;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Compares the throughput of {@link KafkaRecordEncoder} with the json converter previously used by the sink, which
+ * converted the json string to UTF-8 bytes. It is not run as part of the tests. Run it with the test classpath:
+ *
+ * <pre>
+ *   java -cp ... io.cdap.plugin.common.KafkaJsonEncoderBenchmark [records]
+ * </pre>
+ */
+public final class KafkaJsonEncoderBenchmark {
+  private static final int WIDE_FIELDS = 100;
+
+  private KafkaJsonEncoderBenchmark() {
+  }
+
+  public static void main(String[] args) throws IOException {
+    int records = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+    run("wide", createWideRecord(), records);
+    run("nested", createNestedRecord(), records);
+  }
+
+  private static void run(String name, StructuredRecord record, int records) throws IOException {
+    KafkaRecordEncoder encoder = new KafkaRecordEncoder(KafkaRecordEncoder.FORMAT_JSON);
+    // Only outputs that are the same are worth comparing
+    if (!Arrays.equals(StructuredRecordStringConverter.toJsonString(record).getBytes(StandardCharsets.UTF_8),
+                       encoder.encode(record))) {
+      throw new IllegalStateException("The encoder and the converter produce different json for " + name);
+    }
+    // Warms up both paths before measuring
+    long bytes = 0;
+    for (int i = 0; i < records / 10; i++) {
+      bytes += StructuredRecordStringConverter.toJsonString(record).getBytes(StandardCharsets.UTF_8).length;
+      bytes += encoder.encode(record).length;
+    }
+
+    long startTime = System.nanoTime();
+    for (int i = 0; i < records; i++) {
+      bytes += StructuredRecordStringConverter.toJsonString(record).getBytes(StandardCharsets.UTF_8).length;
+    }
+    long converterTime = System.nanoTime() - startTime;
+
+    startTime = System.nanoTime();
+    for (int i = 0; i < records; i++) {
+      bytes += encoder.encode(record).length;
+    }
+    long encoderTime = System.nanoTime() - startTime;
+
+    System.out.printf("%s records (%d bytes, checksum %d): converter %.0f records/s, encoder %.0f records/s, %.2fx%n",
+                      name, encoder.encode(record).length, bytes, records * 1e9 / converterTime,
+                      records * 1e9 / encoderTime, (double) converterTime / encoderTime);
+  }
+
+  private static StructuredRecord createWideRecord() {
+    Schema.Field[] fields = new Schema.Field[WIDE_FIELDS];
+    for (int i = 0; i < WIDE_FIELDS; i++) {
+      Schema.Type type = i % 4 == 0 ? Schema.Type.LONG : i % 4 == 1 ? Schema.Type.DOUBLE : Schema.Type.STRING;
+      fields[i] = Schema.Field.of("field_" + i, Schema.nullableOf(Schema.of(type)));
+    }
+    StructuredRecord.Builder builder = StructuredRecord.builder(Schema.recordOf("wide", fields));
+    for (int i = 0; i < WIDE_FIELDS; i++) {
+      if (i % 4 == 0) {
+        builder.set("field_" + i, 1234567890L * i);
+      } else if (i % 4 == 1) {
+        builder.set("field_" + i, i / 7d);
+      } else if (i % 4 == 2) {
+        builder.set("field_" + i, "value of field " + i);
+      }
+    }
+    return builder.build();
+  }
+
+  private static StructuredRecord createNestedRecord() {
+    Schema schema = KafkaJsonEncoderTest.ADDRESS_SCHEMA;
+    StructuredRecord address = StructuredRecord.builder(schema).set("street", "1 Main St").set("zip", 94105).build();
+    StructuredRecord other = StructuredRecord.builder(schema).set("street", "2 Side St \"B\"").build();
+    return StructuredRecord.builder(KafkaJsonEncoderTest.NESTED_SCHEMA)
+      .set("id", 1L).set("name", "samuel jackson").set("address", address)
+      .set("previous", ImmutableList.of(address, other, address, other))
+      .set("tags", ImmutableMap.of("score", 0.75d, "rank", 12d, "weight", 3.25d))
+      .build();
+  }
+}
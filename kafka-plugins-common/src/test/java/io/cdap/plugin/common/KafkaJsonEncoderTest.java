@@ -0,0 +1,111 @@
+/*
+ * Copyright © 2022 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package io.cdap.plugin.common;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import io.cdap.cdap.api.data.format.StructuredRecord;
+import io.cdap.cdap.api.data.schema.Schema;
+import io.cdap.cdap.format.StructuredRecordStringConverter;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Tests for {@link KafkaJsonEncoder}, which must produce the same json as the converter.
+ */
+public class KafkaJsonEncoderTest {
+
+  static final Schema ADDRESS_SCHEMA = Schema.recordOf(
+    "address",
+    Schema.Field.of("street", Schema.of(Schema.Type.STRING)),
+    Schema.Field.of("zip", Schema.nullableOf(Schema.of(Schema.Type.INT))));
+  static final Schema NESTED_SCHEMA = Schema.recordOf(
+    "user",
+    Schema.Field.of("id", Schema.of(Schema.Type.LONG)),
+    Schema.Field.of("name", Schema.of(Schema.Type.STRING)),
+    Schema.Field.of("address", Schema.nullableOf(ADDRESS_SCHEMA)),
+    Schema.Field.of("previous", Schema.arrayOf(ADDRESS_SCHEMA)),
+    Schema.Field.of("tags", Schema.mapOf(Schema.of(Schema.Type.STRING), Schema.of(Schema.Type.DOUBLE))));
+
+  @Test
+  public void testWideRecord() throws Exception {
+    Schema.Field[] fields = new Schema.Field[5];
+    fields[0] = Schema.Field.of("int", Schema.of(Schema.Type.INT));
+    fields[1] = Schema.Field.of("long", Schema.of(Schema.Type.LONG));
+    fields[2] = Schema.Field.of("float", Schema.of(Schema.Type.FLOAT));
+    fields[3] = Schema.Field.of("double", Schema.nullableOf(Schema.of(Schema.Type.DOUBLE)));
+    fields[4] = Schema.Field.of("\"quoted\"", Schema.of(Schema.Type.STRING));
+    Schema schema = Schema.recordOf("wide", fields);
+
+    KafkaJsonEncoder encoder = new KafkaJsonEncoder();
+    assertEncoded(encoder, StructuredRecord.builder(schema)
+      .set("int", -42).set("long", Long.MIN_VALUE).set("float", 1.1f).set("double", 3.5e-12d)
+      .set("\"quoted\"", "tab\there, line\nthere, \u2028 and ünicode 😀").build());
+    assertEncoded(encoder, StructuredRecord.builder(schema)
+      .set("int", 0).set("long", 1234567890123L).set("float", -0.0f).set("\"quoted\"", "").build());
+  }
+
+  @Test
+  public void testFloat() throws Exception {
+    Schema schema = Schema.recordOf("floats", Schema.Field.of("float", Schema.of(Schema.Type.FLOAT)));
+    StructuredRecord record = StructuredRecord.builder(schema).set("float", 1.1f).build();
+
+    KafkaJsonEncoder encoder = new KafkaJsonEncoder();
+    assertEncoded(encoder, record);
+    // Floats are widened to doubles like the converter does
+    KafkaMessageBuffer buffer = new KafkaMessageBuffer();
+    encoder.encode(record, buffer);
+    Assert.assertEquals("{\"float\":1.100000023841858}", new String(buffer.toByteArray(), StandardCharsets.UTF_8));
+  }
+
+  @Test
+  public void testNestedRecord() throws Exception {
+    StructuredRecord address = StructuredRecord.builder(ADDRESS_SCHEMA).set("street", "1 Main St").build();
+    StructuredRecord other = StructuredRecord.builder(ADDRESS_SCHEMA).set("street", "2 Side St").set("zip", 94105)
+      .build();
+
+    KafkaJsonEncoder encoder = new KafkaJsonEncoder();
+    assertEncoded(encoder, StructuredRecord.builder(NESTED_SCHEMA)
+      .set("id", 1L).set("name", "samuel").set("address", address)
+      .set("previous", ImmutableList.of(address, other)).set("tags", ImmutableMap.of("a", 1.0d, "b\\", 2.5d))
+      .build());
+    assertEncoded(encoder, StructuredRecord.builder(NESTED_SCHEMA)
+      .set("id", 2L).set("name", "jackson").set("previous", ImmutableList.of()).set("tags", ImmutableMap.of())
+      .build());
+  }
+
+  @Test
+  public void testConverterFallback() throws Exception {
+    Schema schema = Schema.recordOf(
+      "event",
+      Schema.Field.of("id", Schema.of(Schema.Type.LONG)),
+      Schema.Field.of("ts", Schema.of(Schema.LogicalType.TIMESTAMP_MICROS)));
+
+    assertEncoded(new KafkaJsonEncoder(),
+                  StructuredRecord.builder(schema).set("id", 1L).set("ts", 1640995200000000L).build());
+  }
+
+  private static void assertEncoded(KafkaJsonEncoder encoder, StructuredRecord record) throws Exception {
+    KafkaMessageBuffer buffer = new KafkaMessageBuffer();
+    encoder.encode(record, buffer);
+    Assert.assertArrayEquals(StructuredRecordStringConverter.toJsonString(record).getBytes(StandardCharsets.UTF_8),
+                             buffer.toByteArray());
+  }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright © 2022 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.cdap.plugin.common;
+
+import io.cdap.cdap.api.data.format.StructuredRecord;
+import io.cdap.cdap.api.data.schema.Schema;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Tests for {@link KafkaRecordDecoder}.
+ */
+public class KafkaRecordDecoderTest {
+
+  private static final Schema MESSAGE_SCHEMA = Schema.recordOf(
+    "kafka.message",
+    Schema.Field.of("id", Schema.of(Schema.Type.LONG)),
+    Schema.Field.of("first", Schema.of(Schema.Type.STRING)),
+    Schema.Field.of("last", Schema.of(Schema.Type.STRING)));
+  private static final byte[] PAYLOAD = "1,samuel,jackson".getBytes(StandardCharsets.UTF_8);
+
+  @Test
+  public void testPassThrough() throws Exception {
+    Schema schema = Schema.recordOf("user", MESSAGE_SCHEMA.getFields());
+    KafkaRecordDecoder decoder = new KafkaRecordDecoder(schema, MESSAGE_SCHEMA, "csv");
+    Assert.assertTrue(decoder.isPassThrough());
+
+    StructuredRecord record = decoder.decode(ByteBuffer.wrap(PAYLOAD));
+    Assert.assertEquals(schema, record.getSchema());
+    Assert.assertEquals(1L, (long) record.get("id"));
+    Assert.assertEquals("samuel", record.get("first"));
+    Assert.assertEquals("jackson", record.get("last"));
+  }
+
+  @Test
+  public void testPassThroughIntoBuilder() throws Exception {
+    Schema schema = Schema.recordOf("user", MESSAGE_SCHEMA.getFields());
+    KafkaRecordDecoder decoder = new KafkaRecordDecoder(schema, MESSAGE_SCHEMA, "csv");
+
+    StructuredRecord.Builder builder = StructuredRecord.builder(schema);
+    decoder.decode(ByteBuffer.wrap(PAYLOAD), builder);
+    StructuredRecord record = builder.build();
+    Assert.assertEquals(1L, (long) record.get("id"));
+    Assert.assertEquals("samuel", record.get("first"));
+    Assert.assertEquals("jackson", record.get("last"));
+  }
+
+  @Test
+  public void testAdditionalFields() throws Exception {
+    Schema schema = Schema.recordOf(
+      "user",
+      Schema.Field.of("offset", Schema.of(Schema.Type.LONG)),
+      Schema.Field.of("id", Schema.of(Schema.Type.LONG)),
+      Schema.Field.of("first", Schema.of(Schema.Type.STRING)),
+      Schema.Field.of("last", Schema.of(Schema.Type.STRING)));
+    KafkaRecordDecoder decoder = new KafkaRecordDecoder(schema, MESSAGE_SCHEMA, "csv");
+    Assert.assertFalse(decoder.isPassThrough());
+
+    StructuredRecord.Builder builder = StructuredRecord.builder(schema).set("offset", 5L);
+    decoder.decode(ByteBuffer.wrap(PAYLOAD), builder);
+    StructuredRecord record = builder.build();
+    Assert.assertEquals(5L, (long) record.get("offset"));
+    Assert.assertEquals(1L, (long) record.get("id"));
+    Assert.assertEquals("samuel", record.get("first"));
+    Assert.assertEquals("jackson", record.get("last"));
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testDecodeWithoutPassThrough() throws Exception {
+    Schema schema = Schema.recordOf(
+      "user",
+      Schema.Field.of("offset", Schema.of(Schema.Type.LONG)),
+      Schema.Field.of("id", Schema.of(Schema.Type.LONG)),
+      Schema.Field.of("first", Schema.of(Schema.Type.STRING)),
+      Schema.Field.of("last", Schema.of(Schema.Type.STRING)));
+    new KafkaRecordDecoder(schema, MESSAGE_SCHEMA, "csv").decode(ByteBuffer.wrap(PAYLOAD));
+  }
+}
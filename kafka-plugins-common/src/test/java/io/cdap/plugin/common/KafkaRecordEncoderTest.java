@@ -0,0 +1,61 @@
+/*
+ * Copyright © 2022 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package io.cdap.plugin.common;
+
+import io.cdap.cdap.api.data.format.StructuredRecord;
+import io.cdap.cdap.api.data.schema.Schema;
+import io.cdap.cdap.format.StructuredRecordStringConverter;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Tests for {@link KafkaRecordEncoder}.
+ */
+public class KafkaRecordEncoderTest {
+
+  private static final Schema SCHEMA = Schema.recordOf(
+    "user",
+    Schema.Field.of("id", Schema.of(Schema.Type.LONG)),
+    Schema.Field.of("first", Schema.of(Schema.Type.STRING)),
+    Schema.Field.of("last", Schema.nullableOf(Schema.of(Schema.Type.STRING))),
+    Schema.Field.of("score", Schema.of(Schema.Type.DOUBLE)));
+
+  @Test
+  public void testCsv() throws Exception {
+    KafkaRecordEncoder encoder = new KafkaRecordEncoder("csv");
+    StructuredRecord record = StructuredRecord.builder(SCHEMA)
+      .set("id", 1L).set("first", "sämuel").set("last", "jackson 😀").set("score", 2.5d).build();
+    Assert.assertEquals("1,sämuel,jackson 😀,2.5",
+                        new String(encoder.encode(record), StandardCharsets.UTF_8));
+
+    // The buffer is reused, hence encoding a shorter record must not keep bytes of the previous one
+    record = StructuredRecord.builder(SCHEMA).set("id", 2L).set("first", "").set("score", 0d).build();
+    Assert.assertEquals("2,,,0.0", new String(encoder.encode(record), StandardCharsets.UTF_8));
+  }
+
+  @Test
+  public void testJson() throws Exception {
+    KafkaRecordEncoder encoder = new KafkaRecordEncoder("json");
+    StructuredRecord record = StructuredRecord.builder(SCHEMA)
+      .set("id", 1L).set("first", "sämuel").set("last", "jackson").set("score", 2.5d).build();
+    Assert.assertArrayEquals(StructuredRecordStringConverter.toJsonString(record).getBytes(StandardCharsets.UTF_8),
+                             encoder.encode(record));
+  }
+}